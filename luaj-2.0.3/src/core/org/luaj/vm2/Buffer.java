@@ -68,7 +68,11 @@ public final class Buffer {
 	 * @param initialCapacity the initial capacity
 	 */
 	public Buffer( int initialCapacity ) {
+		/* DAN200 START */
+		//bytes = new byte[ initialCapacity ];
 		bytes = new byte[ initialCapacity ];
+		LuaThread.allocated( bytes, initialCapacity );
+		/* DAN200 END */
 		length = 0;
 		offset = 0;
 		value = null;
@@ -232,10 +236,21 @@ public final class Buffer {
 	public final void makeroom( int nbefore, int nafter ) {
 		if ( value != null ) {
 			LuaString s = value.strvalue();
+			/* DAN200 START */
+			// the new array is counted before the buffer changes, in case that raises an error
+			/*
 			value = null;
 			length = s.m_length;
 			offset = nbefore;
 			bytes = new byte[nbefore+length+nafter];
+			*/
+			byte[] b = new byte[nbefore+s.m_length+nafter];
+			LuaThread.allocated( b, b.length );
+			value = null;
+			length = s.m_length;
+			offset = nbefore;
+			bytes = b;
+			/* DAN200 END */
 			System.arraycopy(s.m_bytes, s.m_offset, bytes, offset, length);
 		} else if ( offset+length+nafter > bytes.length || offset<nbefore ) {
 			int n = nbefore+length+nafter;
@@ -251,6 +266,9 @@ public final class Buffer {
 	private final void realloc( int newSize, int newOffset ) {
 		if ( newSize != bytes.length ) {
 			byte[] newBytes = new byte[ newSize ];
+			/* DAN200 START */
+			LuaThread.allocated( newBytes, newSize );
+			/* DAN200 END */
 			System.arraycopy( bytes, offset, newBytes, newOffset, length );
 			bytes = newBytes;
 			offset = newOffset;
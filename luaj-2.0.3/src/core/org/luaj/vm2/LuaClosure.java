@@ -128,39 +128,45 @@ public class LuaClosure extends LuaFunction {
 		return s_metatable; 
 	}
 	
+	/* DAN200 START */
+	// registers come from the running call stack, which takes back those of frames nothing else can see
 	public final LuaValue call() {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
-		return execute(stack,NONE).arg1();
+		//LuaValue[] stack = new LuaValue[p.maxstacksize];
+		//System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		//return execute(stack,NONE).arg1();
+		LuaThread.CallStack cs = LuaThread.getRunning().callstack;
+		return execute(cs,Frame.take(cs,this,null),NONE).arg1();
 	}
 
 	public final LuaValue call(LuaValue arg) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		LuaThread.CallStack cs = LuaThread.getRunning().callstack;
+		Frame f = Frame.take(cs,this,null);
 		switch ( p.numparams ) {
-		default: stack[0]=arg; return execute(stack,NONE).arg1();
-		case 0: return execute(stack,arg).arg1();
+		default: f.stack[0]=arg; return execute(cs,f,NONE).arg1();
+		case 0: return execute(cs,f,arg).arg1();
 		}
 	}
 	
 	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		LuaThread.CallStack cs = LuaThread.getRunning().callstack;
+		Frame f = Frame.take(cs,this,null);
+		LuaValue[] stack = f.stack;
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE).arg1();
-		case 1: stack[0]=arg1; return execute(stack,arg2).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; return execute(cs,f,NONE).arg1();
+		case 1: stack[0]=arg1; return execute(cs,f,arg2).arg1();
+		case 0: return execute(cs,f,p.is_vararg!=0? varargsOf(arg1,arg2): NONE).arg1();
 		}
 	}
 
 	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		LuaThread.CallStack cs = LuaThread.getRunning().callstack;
+		Frame f = Frame.take(cs,this,null);
+		LuaValue[] stack = f.stack;
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE).arg1();
-		case 2: stack[0]=arg1; stack[1]=arg2; return execute(stack,arg3).arg1();
-		case 1: stack[0]=arg1; return execute(stack,p.is_vararg!=0? varargsOf(arg2,arg3): NONE).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(cs,f,NONE).arg1();
+		case 2: stack[0]=arg1; stack[1]=arg2; return execute(cs,f,arg3).arg1();
+		case 1: stack[0]=arg1; return execute(cs,f,p.is_vararg!=0? varargsOf(arg2,arg3): NONE).arg1();
+		case 0: return execute(cs,f,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE).arg1();
 		}
 	}
 
@@ -169,347 +175,829 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public Varargs onInvoke(Varargs varargs) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
-		for ( int i=0; i<p.numparams; i++ )
-			stack[i] = varargs.arg(i+1);		
-		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
+		//LuaValue[] stack = new LuaValue[p.maxstacksize];
+		//System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		//for ( int i=0; i<p.numparams; i++ )
+		//	stack[i] = varargs.arg(i+1);		
+		//return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
+		LuaThread.CallStack cs = LuaThread.getRunning().callstack;
+		Frame f = Frame.take(cs,this,null);
+		f.setargs(varargs);
+		f.enter(cs);
+		return execute(f, null, null, null, null);
 	}
 	
 	
 	protected Varargs execute( LuaValue[] stack, Varargs varargs ) {
-		// loop through instructions
-		int i,a,b,c,pc=0,top=0;
-		LuaValue o;
-		Varargs v = NONE;
-		int[] code = p.code;
-		LuaValue[] k = p.k;
-		
-		// upvalues are only possible when closures create closures
-		UpValue[] openups = p.p.length>0? new UpValue[stack.length]: null;
-		
-		// create varargs "arg" table
-		if ( p.is_vararg >= Lua.VARARG_NEEDSARG )
-			stack[p.numparams] = new LuaTable(varargs);
+		Frame f = new Frame(this, null, stack, varargs);
+		f.enter(LuaThread.getRunning().callstack);
+		return execute(f, null, null, null, null);
+	}
 
-		// debug wants args to this function
-		if (DebugLib.DEBUG_ENABLED) 
-			DebugLib.debugSetupCall(varargs, stack);
+	private static Varargs execute( LuaThread.CallStack cs, Frame f, Varargs varargs ) {
+		f.varargs = varargs;
+		f.enter(cs);
+		return execute(f, null, null, null, null);
+	}
 
-		// process instructions
-		LuaThread.CallStack cs = LuaThread.onCall( this ); 
-		try {
-			while ( true ) {
-				if (DebugLib.DEBUG_ENABLED) 
-					DebugLib.debugBytecode(pc, v, top);
+	/**
+	 * Run lua bytecode until the chain of frames ending in {@code f} returns.
+	 * <p>
+	 * When a coroutine state is supplied the chain belongs to a stackless coroutine.  Calls 
+	 * then push a new {@link Frame} rather than recursing in Java, so the state of the whole 
+	 * chain is kept on the heap, and calls to coroutine.yield() suspend it by returning early, 
+	 * leaving the frames to be carried on with by a later call.  Otherwise calls are made 
+	 * directly in Java.
+	 * 
+	 * @param f frame to run, or to deliver results to; null if the results are the final ones 
+	 * @param fn function to call on behalf of f before running it, or null
+	 * @param results arguments for fn, or results for the call f is waiting on, or null 
+	 * @param error error to unwind from f with, or null
+	 * @param state coroutine state if the chain may be suspended, otherwise null
+	 * @return values returned by the chain, or passed to yield if the coroutine was suspended
+	 * @see LuaThread
+	 */
+	static Varargs execute( Frame f, LuaValue fn, Varargs results, Throwable error, LuaThread.State state ) {
+		int i,a,b,c,pc,top;
+		LuaValue o,r;
+		Varargs v;
+		LuaClosure cl;
+		int[] code;
+		LuaValue[] k;
+		LuaValue[] stack;
+		/* DAN200 START */
+		Prototype.Cache ic;
+		/* DAN200 END */
+		
+		frames:
+		while ( true ) {
+			if ( error != null ) {
+				// code compiled to java bytecode has no call depth limit of its own
+				if ( error instanceof StackOverflowError )
+					error = new LuaError("stack overflow");
+
+				// unwind to the innermost protected call
+				for ( ; f != null; f = f.parent ) {
+					if ( f.closure != null ) {
+						if ( error instanceof Exception && !(error instanceof LuaError) )
+							error = new LuaError(error);
+						f.leave();
+					} else {
+						f.leaveProtected();
+						if ( error instanceof Exception ) {
+							String m = error.getMessage();
+							results = varargsOf(FALSE, error instanceof LuaError?
+								(m!=null? valueOf(m): NIL):
+								valueOf(m!=null? m: error.toString()));
+							error = null;
+							f = f.parent;
+							break;
+						}
+					}
+				}
+				if ( error instanceof RuntimeException )
+					throw (RuntimeException) error;
+				if ( error instanceof Error )
+					throw (Error) error;
+				if ( error != null )
+					throw new LuaError(error);
+			}
+			
+			try {
+				// make the call pending in f, pushing a new frame if it is to a closure
+				while ( fn != null ) {
+					o = fn;
+					v = results;
+					fn = null;
+					results = null;
+					if ( o instanceof LuaClosure ) {
+						LuaThread.CallStack cs = f != null? f.cs: LuaThread.getRunning().callstack;
+						Frame n = Frame.take(cs, (LuaClosure) o, f);
+						n.setargs(v);
+						n.enter(cs);
+						f = n;
+						break;
+					}
+					switch ( state != null && o instanceof LuaFunction? ((LuaFunction) o).callmode(): LuaFunction.CALLMODE_NORMAL ) {
+					case LuaFunction.CALLMODE_YIELD:
+						return state.suspend(f, v);
+					case LuaFunction.CALLMODE_JAVAYIELD:
+						return state.migrate(f, o, v);
+					case LuaFunction.CALLMODE_PCALL:
+						fn = v.checkvalue(1);
+						results = v.subargs(2);
+						f = new Frame(f, LuaThread.onCall((LuaFunction) o));
+						f.olderr = LuaThread.setErrorFunc(null);
+						break;
+					case LuaFunction.CALLMODE_XPCALL:
+						{
+							Frame m = new Frame(f, LuaThread.onCall((LuaFunction) o));
+							LuaValue errfunc;
+							try {
+								errfunc = v.checkvalue(2);
+							} catch ( LuaError le ) {
+								m.cs.onReturn();
+								throw le;
+							}
+							fn = v.arg1();
+							results = NONE;
+							m.olderr = LuaThread.setErrorFunc(errfunc);
+							f = m;
+						}
+						break;
+					default:
+						results = o.invoke(v);
+						break;
+					}
+				}
 				
-				// pull out instruction
-				i = code[pc++];
-				a = ((i>>6) & 0xff);
+				// pass results out through any protected calls
+				if ( results != null ) {
+					for ( ; f != null && f.closure == null; f = f.parent ) {
+						f.leaveProtected();
+						results = varargsOf(TRUE, results);
+					}
+					if ( f == null )
+						return results;
+				}
 				
-				// process the op code
-				switch ( i & 0x3f ) {
+				cl = f.closure;
+				code = cl.p.code;
+				k = cl.p.k;
+				/* DAN200 START */
+				if ( (ic = cl.p.cache) == null )
+					cl.p.cache = ic = new Prototype.Cache(code.length);
+				/* DAN200 END */
+				stack = f.stack;
+				pc = f.pc;
+				top = f.top;
+				v = NONE;
 				
-				case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
-					stack[a] = stack[i>>>23];
-					continue;
-					
-				case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
-					stack[a] = k[i>>>14];
-					continue;
-					
-				case Lua.OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
-	                stack[a] = (i>>>23!=0)? LuaValue.TRUE: LuaValue.FALSE;
-	                if ((i&(0x1ff<<14)) != 0)
-	                    pc++; /* skip next instruction (if C) */
-	                continue;
-	
-				case Lua.OP_LOADNIL: /*	A B	R(A):= ...:= R(B):= nil			*/
-					for ( b=i>>>23; a<=b; )
-						stack[a++] = LuaValue.NIL;
-					continue;
-					
-				case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
-	                stack[a] = upValues[i>>>23].getValue();
-	                continue;
-					
-				case Lua.OP_GETGLOBAL: /*	A Bx	R(A):= Gbl[Kst(Bx)]				*/
-	                stack[a] = env.get(k[i>>>14]);
-					continue;
-					
-				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
-	                stack[a] = stack[i>>>23].get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_SETGLOBAL: /*	A Bx	Gbl[Kst(Bx)]:= R(A)				*/
-	                env.set(k[i>>>14], stack[a]);
-					continue;
-					
-				case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
-					upValues[i>>>23].setValue(stack[a]);
-					continue;
-					
-				case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
-					stack[a].set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
-					stack[a] = new LuaTable(i>>>23,(i>>14)&0x1ff);
-					continue;
-					
-				case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
-					stack[a+1] = (o = stack[i>>>23]);
-					stack[a] = o.get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).add((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).sub((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mul((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).div((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mod((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).pow((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
-					continue;
-					
-				case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
-					stack[a] = stack[i>>>23].neg();
-					continue;
-					
-				case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
-					stack[a] = stack[i>>>23].not();
-					continue;
-					
-				case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
-					stack[a] = stack[i>>>23].len();
-					continue;
-					
-				case Lua.OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
-					b = i>>>23;
-					c = (i>>14)&0x1ff;
-					{
-						if ( c > b+1 ) {
-							Buffer sb = stack[c].buffer();
-							while ( --c>=b ) 
-								sb = stack[c].concat(sb);
-							stack[a] = sb.value();
+				// complete the call the frame was waiting on
+				if ( results != null ) {
+					i = code[pc-1];
+					a = ((i>>6) & 0xff);
+					if ( (i & 0x3f) == Lua.OP_TFORLOOP ) {
+						if ( (o=results.arg1()).isnil() ) {
+							++pc;
+							v = results;
 						} else {
-							stack[a] = stack[c-1].concat(stack[c]);
+							stack[a+2] = stack[a+3] = o;
+							for ( c=(i>>14)&0x1ff; c>1; --c )
+								stack[a+2+c] = results.arg(c);
 						}
+					} else if ( (c=(i>>14)&0x1ff) > 0 ) {
+						while ( --c > 0 )
+							stack[a+c-1] = results.arg(c);
+					} else {
+						v = results;
+						top = a + v.narg();
 					}
-					continue;
-					
-				case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
-					pc  += (i>>>14)-0x1ffff;
-					continue;
-					
-				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).eq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lt_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/ 
-					if ( stack[a].toboolean() != ((i&(0x1ff<<14))!=0) ) 
-						++pc;
-					continue;
-					
-				case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
-					/* note: doc appears to be reversed */
-					if ( (o=stack[i>>>23]).toboolean() != ((i&(0x1ff<<14))!=0) ) 
-						++pc;
-					else
-						stack[a] = o; // TODO: should be sBx? 
-					continue;
-					
-				case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
-					switch ( i & (Lua.MASK_B | Lua.MASK_C) ) {
-					case (1<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(NONE); top=a+v.narg(); continue;
-					case (2<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(stack[a+1]); top=a+v.narg(); continue;
-					case (1<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(); continue;
-					case (2<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1]); continue;
-					case (3<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
-					case (1<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(); continue;
-					case (2<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1]); continue;
-					case (3<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
-					default:
+					results = null;
+				}
+		/* DAN200 END */
+				
+				while ( true ) {
+					if (DebugLib.DEBUG_ENABLED) 
+						DebugLib.debugBytecode(pc, v, top);
+					
+					// pull out instruction
+					i = code[pc++];
+					a = ((i>>6) & 0xff);
+					/* DAN200 START */
+					// keep the current instruction visible for error messages
+					f.pc = pc;
+					/* DAN200 END */
+					
+					// process the op code
+					switch ( i & 0x3f ) {
+					
+					case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
+						stack[a] = stack[i>>>23];
+						continue;
+						
+					case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+						stack[a] = k[i>>>14];
+						continue;
+						
+					case Lua.OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
+		                stack[a] = (i>>>23!=0)? LuaValue.TRUE: LuaValue.FALSE;
+		                if ((i&(0x1ff<<14)) != 0)
+		                    pc++; /* skip next instruction (if C) */
+		                continue;
+		
+					case Lua.OP_LOADNIL: /*	A B	R(A):= ...:= R(B):= nil			*/
+						for ( b=i>>>23; a<=b; )
+							stack[a++] = LuaValue.NIL;
+						continue;
+						
+					case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
+		                stack[a] = cl.upValues[i>>>23].getValue();
+		                continue;
+						
+					case Lua.OP_GETGLOBAL: /*	A Bx	R(A):= Gbl[Kst(Bx)]				*/
+						/* DAN200 START */
+						// lookups of constant string keys in tables go through the instruction's inline cache
+		                //stack[a] = cl.env.get(k[i>>>14]);
+						stack[a] = (o = cl.env) instanceof LuaTable?
+							((LuaTable) o).get(k[i>>>14], ic, pc-1):
+							o.get(k[i>>>14]);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
+						/* DAN200 START */
+		                //stack[a] = stack[i>>>23].get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						stack[a] = (c=(i>>14)&0x1ff)>0xff && (r = k[c&0x0ff]) instanceof LuaString && (o = stack[i>>>23]) instanceof LuaTable?
+							((LuaTable) o).get(r, ic, pc-1):
+							stack[i>>>23].get(c>0xff? k[c&0x0ff]: stack[c]);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_SETGLOBAL: /*	A Bx	Gbl[Kst(Bx)]:= R(A)				*/
+		                cl.env.set(k[i>>>14], stack[a]);
+						continue;
+						
+					case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
+						cl.upValues[i>>>23].setValue(stack[a]);
+						continue;
+						
+					case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
+						stack[a].set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+						
+					case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
+						stack[a] = new LuaTable(i>>>23,(i>>14)&0x1ff);
+						continue;
+						
+					case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
+						stack[a+1] = (o = stack[i>>>23]);
+						/* DAN200 START */
+						//stack[a] = o.get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						stack[a] = (c=(i>>14)&0x1ff)>0xff && (r = k[c&0x0ff]) instanceof LuaString && o instanceof LuaTable?
+							((LuaTable) o).get(r, ic, pc-1):
+							o.get(c>0xff? k[c&0x0ff]: stack[c]);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
+						/* DAN200 START */
+						// arithmetic on two numbers is done here rather than through two virtual calls
+						//stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).add((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+						r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+						stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? 
+							LuaDouble.valueOf(o.todouble() + r.todouble()): 
+							o.add(r);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
+						/* DAN200 START */
+						//stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).sub((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+						r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+						stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? 
+							LuaDouble.valueOf(o.todouble() - r.todouble()): 
+							o.sub(r);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
+						/* DAN200 START */
+						//stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mul((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+						r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+						stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? 
+							LuaDouble.valueOf(o.todouble() * r.todouble()): 
+							o.mul(r);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
+						/* DAN200 START */
+						//stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).div((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+						r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+						stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? 
+							LuaDouble.ddiv(o.todouble(), r.todouble()): 
+							o.div(r);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
+						/* DAN200 START */
+						//stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mod((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+						r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+						stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? 
+							LuaDouble.dmod(o.todouble(), r.todouble()): 
+							o.mod(r);
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).pow((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+						
+					case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
+						/* DAN200 START */
+						//stack[a] = stack[i>>>23].neg();
+						stack[a] = (o = stack[i>>>23]) instanceof LuaNumber? LuaDouble.valueOf(-o.todouble()): o.neg();
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
+						stack[a] = stack[i>>>23].not();
+						continue;
+						
+					case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
+						stack[a] = stack[i>>>23].len();
+						continue;
+						
+					case Lua.OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
 						b = i>>>23;
 						c = (i>>14)&0x1ff;
-						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
-						v = stack[a].invoke(v);
-						if ( c > 0 ) {
-							while ( --c > 0 )
-								stack[a+c-1] = v.arg(c);
-							v = NONE; // TODO: necessary?
-						} else {
-							top = a + v.narg();
+						{
+							/* DAN200 START */
+							// A leftmost string is concatenated last and on its own, so it can append in place
+							/*
+							if ( c > b+1 ) {
+								Buffer sb = stack[c].buffer();
+								while ( --c>=b ) 
+									sb = stack[c].concat(sb);
+								stack[a] = sb.value();
+							} else {
+							*/
+							if ( c > b+1 ) {
+								Buffer sb = stack[c].buffer();
+								if ( stack[b] instanceof LuaString ) {
+									while ( --c>b ) 
+										sb = stack[c].concat(sb);
+									stack[a] = stack[b].concat(sb.value());
+								} else {
+									while ( --c>=b ) 
+										sb = stack[c].concat(sb);
+									stack[a] = sb.value();
+								}
+							} else {
+							/* DAN200 END */
+								stack[a] = stack[c-1].concat(stack[c]);
+							}
 						}
 						continue;
-					}
-					
-				case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
-					switch ( i & Lua.MASK_B ) {
-					case (1<<Lua.POS_B): return new TailcallVarargs(stack[a], NONE);
-					case (2<<Lua.POS_B): return new TailcallVarargs(stack[a], stack[a+1]);
-					case (3<<Lua.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2]));
-					case (4<<Lua.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2],stack[a+3]));
-					default:
+						
+					case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
+						/* DAN200 START */
+						//pc  += (i>>>14)-0x1ffff;
+						if ( (b=(i>>>14)-0x1ffff) < 0 && LuaThread.interrupt_pending )
+							LuaThread.onInterrupt();
+						pc += b;
+						/* DAN200 END */
+						continue;
+						
+					case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
+						if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).eq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+							++pc;
+						continue;
+						
+					case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
+						/* DAN200 START */
+						//if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lt_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+						o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+						r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+						if ( (o instanceof LuaNumber && r instanceof LuaNumber? o.todouble() < r.todouble(): o.lt_b(r)) != (a!=0) ) 
+						/* DAN200 END */
+							++pc;
+						continue;
+						
+					case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+						/* DAN200 START */
+						//if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+						o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+						r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+						if ( (o instanceof LuaNumber && r instanceof LuaNumber? o.todouble() <= r.todouble(): o.lteq_b(r)) != (a!=0) ) 
+						/* DAN200 END */
+							++pc;
+						continue;
+						
+					case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/ 
+						if ( stack[a].toboolean() != ((i&(0x1ff<<14))!=0) ) 
+							++pc;
+						continue;
+						
+					case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
+						/* note: doc appears to be reversed */
+						if ( (o=stack[i>>>23]).toboolean() != ((i&(0x1ff<<14))!=0) ) 
+							++pc;
+						else
+							stack[a] = o; // TODO: should be sBx? 
+						continue;
+						
+					case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+						/* DAN200 START */
+						// calls from a stackless coroutine push a frame, so they can be suspended
+						o = stack[a];
+						if ( state != null ) {
+							fn = o;
+							results = callargs(f, stack, a, i>>>23, top, v);
+							f.pc = pc;
+							f.top = top;
+							continue frames;
+						}
+						// calls from one closure to another are made on the caller's call stack, 
+						// rather than looking up the running thread again
+						if ( o instanceof LuaClosure ) {
+							v = callclosure(f, (LuaClosure) o, stack, a, i>>>23, top, v);
+							if ( (c=(i>>14)&0x1ff) > 0 ) {
+								while ( --c > 0 )
+									stack[a+c-1] = v.arg(c);
+								v = NONE;
+							} else {
+								top = a + v.narg();
+							}
+							continue;
+						}
+						/* DAN200 END */
+						switch ( i & (Lua.MASK_B | Lua.MASK_C) ) {
+						case (1<<Lua.POS_B) | (0<<Lua.POS_C): v=o.invoke(NONE); top=a+v.narg(); continue;
+						case (2<<Lua.POS_B) | (0<<Lua.POS_C): v=o.invoke(stack[a+1]); top=a+v.narg(); continue;
+						case (1<<Lua.POS_B) | (1<<Lua.POS_C): o.call(); continue;
+						case (2<<Lua.POS_B) | (1<<Lua.POS_C): o.call(stack[a+1]); continue;
+						case (3<<Lua.POS_B) | (1<<Lua.POS_C): o.call(stack[a+1],stack[a+2]); continue;
+						case (4<<Lua.POS_B) | (1<<Lua.POS_C): o.call(stack[a+1],stack[a+2],stack[a+3]); continue;
+						case (1<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = o.call(); continue;
+						case (2<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = o.call(stack[a+1]); continue;
+						case (3<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = o.call(stack[a+1],stack[a+2]); continue;
+						case (4<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = o.call(stack[a+1],stack[a+2],stack[a+3]); continue;
+						default:
+							c = (i>>14)&0x1ff;
+							/* DAN200 START */
+							//b = i>>>23;
+							//v = b>0? 
+							//	varargsOf(stack,a+1,b-1): // exact arg count
+							//	varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+							v = callargs(f, stack, a, i>>>23, top, v);
+							/* DAN200 END */
+							v = o.invoke(v);
+							if ( c > 0 ) {
+								while ( --c > 0 )
+									stack[a+c-1] = v.arg(c);
+								v = NONE; // TODO: necessary?
+							} else {
+								top = a + v.narg();
+							}
+							continue;
+						}
+						
+					case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+						/* DAN200 START */
+						// only the first frame of a chain can leave a tail call to its caller
+						o = stack[a];
+						// the arguments must be taken before leaving, which may clear the registers
+						v = callargs(f, stack, a, i>>>23, top, v);
+						f.leave();
+						if ( state != null || f.parent != null ) {
+							fn = o;
+							results = v;
+							f = f.parent;
+							continue frames;
+						}
+						// a closure called from the first frame takes its place on the same call stack
+						if ( o instanceof LuaClosure ) {
+							LuaThread.CallStack cs = f.cs;
+							f = Frame.take(cs, (LuaClosure) o, null);
+							f.setargs(v);
+							f.enter(cs);
+							continue frames;
+						}
+						return new TailcallVarargs( o, v );
+						/* DAN200 END */
+						//switch ( i & Lua.MASK_B ) {
+						//case (1<<Lua.POS_B): return new TailcallVarargs(o, NONE);
+						//case (2<<Lua.POS_B): return new TailcallVarargs(o, stack[a+1]);
+						//case (3<<Lua.POS_B): return new TailcallVarargs(o, varargsOf(stack[a+1],stack[a+2]));
+						//case (4<<Lua.POS_B): return new TailcallVarargs(o, varargsOf(stack[a+1],stack[a+2],stack[a+3]));
+						//default:
+						//	b = i>>>23;
+						//	v = b>0? 
+						//		varargsOf(stack,a+1,b-1): // exact arg count
+						//		varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+						//	return new TailcallVarargs( o, v );
+						//}
+						
+					case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
 						b = i>>>23;
-						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
-						return new TailcallVarargs( stack[a], v );
-					}
-					
-				case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
-					b = i>>>23;
-					switch ( b ) {
-					case 0: return varargsOf(stack, a, top-v.narg()-a, v); 
-					case 1: return NONE;
-					case 2: return stack[a]; 
-					default:
-						return varargsOf(stack, a, b-1);
-					}
-					
-				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
-					{
-			            LuaValue limit = stack[a + 1];
-						LuaValue step  = stack[a + 2];
-						LuaValue idx   = step.add(stack[a]);
-			            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
-		                    stack[a] = idx;
-		                    stack[a + 3] = idx;
-		                    pc += (i>>>14)-0x1ffff;
-			            }
-					}
-					continue;
-					
-				case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
-					{
-						LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
-						LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
-						LuaValue step  = stack[a + 2].checknumber("'for' step must be a number");
-						stack[a] = init.sub(step);
-						stack[a + 1] = limit;
-						stack[a + 2] = step;
-						pc += (i>>>14)-0x1ffff;
-					}
-					continue;
-					
-				case Lua.OP_TFORLOOP: /*
-									 * A C R(A+3), ... ,R(A+2+C):= R(A)(R(A+1),
-									 * R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
-									 * else pc++
-									 */
-					// TODO: stack call on for loop body, such as:   stack[a].call(ci);
-					v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
-					if ( (o=v.arg1()).isnil() )
-						++pc;
-					else {
-						stack[a+2] = stack[a+3] = o;
-						for ( c=(i>>14)&0x1ff; c>1; --c )
-							stack[a+2+c] = v.arg(c);
-						v = NONE; // todo: necessary? 
-					}
-					continue;
-					
-				case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
-					{
-		                if ( (c=(i>>14)&0x1ff) == 0 )
-		                    c = code[pc++];
-		                int offset = (c-1) * Lua.LFIELDS_PER_FLUSH;
-		                o = stack[a];
-		                if ( (b=i>>>23) == 0 ) {
-		                    b = top - a - 1;
-		                    int m = b - v.narg(); 
-		                	int j=1;
-		                	for ( ;j<=m; j++ )
-		                    	o.set(offset+j, stack[a + j]);
-		                	for ( ;j<=b; j++ )
-		                    	o.set(offset+j, v.arg(j-m));
-		                } else {
-		                    o.presize( offset + b );
-		                    for (int j=1; j<=b; j++)
-		                    	o.set(offset+j, stack[a + j]);
-		                }
-					}
-					continue;
-					
-				case Lua.OP_CLOSE: /*	A 	close all variables in the stack up to (>=) R(A)*/
-					for ( b=openups.length; --b>=a; )
-						if ( openups[b]!=null ) {
-							openups[b].close();
-							openups[b] = null;
+						/* DAN200 START */
+						// up to three results are copied out so the registers can be used again
+						switch ( b ) {
+						case 0: f.shared = true; results = varargsOf(stack, a, top-v.narg()-a, v); break;
+						case 1: results = NONE; break;
+						case 2: results = stack[a]; break;
+						case 3: results = varargsOf(stack[a], stack[a+1]); break;
+						case 4: results = varargsOf(stack[a], stack[a+1], stack[a+2]); break;
+						//default: results = varargsOf(stack, a, b-1); break;
+						default: f.shared = true; results = varargsOf(stack, a, b-1); break;
 						}
-					continue;
-					
-				case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))	*/
-					{
-						Prototype newp = p.p[i>>>14];
-						LuaClosure newcl = new LuaClosure(newp, env);
-						for ( int j=0, nup=newp.nups; j<nup; ++j ) {
-							i = code[pc++];
-							//b = B(i);
-							b = i>>>23;
-							newcl.upValues[j] = (i&4) != 0? 
-									upValues[b]:
-									openups[b]!=null? openups[b]: (openups[b]=new UpValue(stack,b));
+						f.leave();
+						if ( (f = f.parent) == null )
+							return results;
+						continue frames;
+						/* DAN200 END */
+						
+					case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+						{
+				            LuaValue limit = stack[a + 1];
+							LuaValue step  = stack[a + 2];
+							/* DAN200 START */
+							// loops stepping through integers count in ints, taking the boxed counter from the cache
+							if ( step instanceof LuaInteger && (o = stack[a]) instanceof LuaInteger && limit instanceof LuaNumber ) {
+								int s = ((LuaInteger) step).v;
+								long n = (long) ((LuaInteger) o).v + s;
+								if ( s>0? n <= limit.todouble(): n >= limit.todouble() ) {
+									stack[a] = stack[a + 3] = LuaInteger.valueOf(n);
+									pc += (i>>>14)-0x1ffff;
+									if ( LuaThread.interrupt_pending )
+										LuaThread.onInterrupt();
+								}
+								continue;
+							}
+							/* DAN200 END */
+							LuaValue idx   = step.add(stack[a]);
+				            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
+			                    stack[a] = idx;
+			                    stack[a + 3] = idx;
+			                    pc += (i>>>14)-0x1ffff;
+			                    /* DAN200 START */
+			                    if ( LuaThread.interrupt_pending )
+			                    	LuaThread.onInterrupt();
+			                    /* DAN200 END */
+				            }
 						}
-						stack[a] = newcl;
-					}
-					continue;
-					
-				case Lua.OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
-					b = i>>>23;
-					if ( b == 0 ) {
-						top = a + (b = varargs.narg());
-						v = varargs;
-					} else { 
-						for ( int j=1; j<b; ++j )
-							stack[a+j-1] = varargs.arg(j);
+						continue;
+						
+					case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+						{
+							LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
+							LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
+							LuaValue step  = stack[a + 2].checknumber("'for' step must be a number");
+							stack[a] = init.sub(step);
+							stack[a + 1] = limit;
+							stack[a + 2] = step;
+							pc += (i>>>14)-0x1ffff;
+						}
+						continue;
+						
+					case Lua.OP_TFORLOOP: /*
+										 * A C R(A+3), ... ,R(A+2+C):= R(A)(R(A+1),
+										 * R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
+										 * else pc++
+										 */
+						/* DAN200 START */
+						o = stack[a];
+						if ( state != null ) {
+							fn = o;
+							results = varargsOf(stack[a+1],stack[a+2]);
+							f.pc = pc;
+							f.top = top;
+							continue frames;
+						}
+						//v = o.invoke(varargsOf(stack[a+1],stack[a+2]));
+						v = o instanceof LuaClosure? 
+							callclosure(f, (LuaClosure) o, stack, a, 3, top, v):
+							o.invoke(varargsOf(stack[a+1],stack[a+2]));
+						/* DAN200 END */
+						if ( (o=v.arg1()).isnil() )
+							++pc;
+						else {
+							stack[a+2] = stack[a+3] = o;
+							for ( c=(i>>14)&0x1ff; c>1; --c )
+								stack[a+2+c] = v.arg(c);
+							v = NONE; // todo: necessary? 
+						}
+						continue;
+						
+					case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
+						{
+			                if ( (c=(i>>14)&0x1ff) == 0 )
+			                    c = code[pc++];
+			                int offset = (c-1) * Lua.LFIELDS_PER_FLUSH;
+			                o = stack[a];
+			                if ( (b=i>>>23) == 0 ) {
+			                    b = top - a - 1;
+			                    int m = b - v.narg(); 
+			                	int j=1;
+			                	for ( ;j<=m; j++ )
+			                    	o.set(offset+j, stack[a + j]);
+			                	for ( ;j<=b; j++ )
+			                    	o.set(offset+j, v.arg(j-m));
+			                } else {
+			                    o.presize( offset + b );
+			                    for (int j=1; j<=b; j++)
+			                    	o.set(offset+j, stack[a + j]);
+			                }
+						}
+						continue;
+						
+					case Lua.OP_CLOSE: /*	A 	close all variables in the stack up to (>=) R(A)*/
+						{
+							UpValue[] openups = f.openups;
+							for ( b=openups.length; --b>=a; )
+								if ( openups[b]!=null ) {
+									openups[b].close();
+									openups[b] = null;
+								}
+						}
+						continue;
+						
+					case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))	*/
+						{
+							UpValue[] openups = f.openups;
+							Prototype newp = cl.p.p[i>>>14];
+							LuaClosure newcl = new LuaClosure(newp, cl.env);
+							for ( int j=0, nup=newp.nups; j<nup; ++j ) {
+								i = code[pc++];
+								//b = B(i);
+								b = i>>>23;
+								newcl.upValues[j] = (i&4) != 0? 
+										cl.upValues[b]:
+										openups[b]!=null? openups[b]: (openups[b]=new UpValue(stack,b));
+							}
+							stack[a] = newcl;
+						}
+						continue;
+						
+					case Lua.OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
+						b = i>>>23;
+						if ( b == 0 ) {
+							top = a + (b = f.varargs.narg());
+							v = f.varargs;
+						} else { 
+							for ( int j=1; j<b; ++j )
+								stack[a+j-1] = f.varargs.arg(j);
+						}
+						continue;				
 					}
-					continue;				
 				}
+			/* DAN200 START */
+			} catch ( Throwable t ) {
+				error = t;
+				fn = null;
+				results = null;
 			}
-		} catch ( LuaError le ) {
-			throw le;
-		} catch ( Exception e ) {
-			throw new LuaError(e);
-		} finally {
-			cs.onReturn();
+		}
+	}
+
+	/**
+	 * Call a closure from lua code not running as a stackless coroutine, on the call stack 
+	 * the caller's frame is on.  Arguments are copied straight from the registers when there 
+	 * are a fixed number of them and the closure takes no varargs.
+	 * @param b the B operand: one more than the number of arguments, or 0 to run to the top
+	 */
+	private static Varargs callclosure( Frame f, LuaClosure c, LuaValue[] stack, int a, int b, int top, Varargs v ) {
+		LuaThread.CallStack cs = f.cs;
+		Frame n = Frame.take(cs, c, null);
+		Prototype p = c.p;
+		if ( b > 0 && p.is_vararg == 0 ) {
+			LuaValue[] s = n.stack;
+			for ( int j=Math.min(b-1, p.numparams); --j>=0; )
+				s[j] = stack[a+1+j];
+			n.varargs = NONE;
+		} else {
+			n.setargs(callargs(f, stack, a, b, top, v));
+		}
+		n.enter(cs);
+		return execute(n, null, null, null, null).eval();
+	}
+
+	/**
+	 * Get the arguments R(A+1), ... for a call.  Up to three are copied, anything longer 
+	 * is a view of the registers, and marks the frame's registers as shared.
+	 * @param b the B operand: one more than the number of arguments, or 0 to run to the top
+	 */
+	private static Varargs callargs( Frame f, LuaValue[] stack, int a, int b, int top, Varargs v ) {
+		switch ( b ) {
+		case 1: return NONE;
+		case 2: return stack[a+1];
+		case 3: return varargsOf(stack[a+1],stack[a+2]);
+		case 4: return varargsOf(stack[a+1],stack[a+2],stack[a+3]);
+		default:
+			f.shared = true;
+			return b>0? 
+				varargsOf(stack,a+1,b-1): // exact arg count
+				varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+		}
+	}
+
+	/**
+	 * State of one call to a {@link LuaClosure}, or a marker for a protected call 
+	 * made by pcall or xpcall when it has no closure.
+	 */
+	static final class Frame {
+		// frames of closures which have returned are used again, see take()
+		LuaClosure closure;
+		Frame parent;
+		final LuaValue[] stack;
+		Varargs varargs;
+		UpValue[] openups;
+		LuaThread.CallStack cs;
+		LuaValue olderr;
+		int pc, top;
+		/** Whether a view of the registers may have escaped, so they can't be used again */
+		boolean shared;
+
+		Frame(LuaClosure closure, Frame parent, LuaValue[] stack, Varargs varargs) {
+			this.closure = closure;
+			this.parent = parent;
+			this.stack = stack;
+			this.varargs = varargs;
+		}
+
+		/**
+		 * Get a frame for a call to a closure at the current depth of a call stack, using 
+		 * the one left by the last call to return from that depth if it is big enough.
+		 * @return frame with all registers nil and no varargs, which has not been entered
+		 */
+		static Frame take(LuaThread.CallStack cs, LuaClosure closure, Frame parent) {
+			int size = closure.p.maxstacksize;
+			Frame f = cs.takeFrame(size);
+			if ( f == null ) {
+				LuaValue[] stack = new LuaValue[size];
+				System.arraycopy(NILS, 0, stack, 0, size);
+				return new Frame(closure, parent, stack, NONE);
+			}
+			f.closure = closure;
+			f.parent = parent;
+			f.pc = f.top = 0;
+			return f;
+		}
+
+		/** Copy the arguments of a call into the parameters, keeping any others as varargs */
+		void setargs(Varargs args) {
+			Prototype p = closure.p;
+			for ( int i=0; i<p.numparams; i++ )
+				stack[i] = args.arg(i+1);
+			varargs = p.is_vararg!=0? args.subargs(p.numparams+1): NONE;
+		}
+
+		Frame(Frame parent, LuaThread.CallStack cs) {
+			this.closure = null;
+			this.parent = parent;
+			this.stack = null;
+			this.varargs = null;
+			this.cs = cs;
+		}
+
+		void enter(LuaThread.CallStack cs) {
+			Prototype p = closure.p;
+
+			// calls are a safepoint, as are backwards jumps
+			if ( LuaThread.interrupt_pending )
+				LuaThread.onInterrupt();
+			
+			// upvalues are only possible when closures create closures
+			openups = p.p.length>0? new UpValue[p.maxstacksize]: null;
+			
+			// create varargs "arg" table
+			if ( p.is_vararg >= Lua.VARARG_NEEDSARG )
+				stack[p.numparams] = new LuaTable(varargs);
+
+			// debug wants args to this function
+			if (DebugLib.DEBUG_ENABLED) 
+				DebugLib.debugSetupCall(varargs, stack);
+			
+			cs.onCall( this );
+			this.cs = cs;
+		}
+
+		void leave() {
 			if ( openups != null )
 				for ( int u=openups.length; --u>=0; )
 					if ( openups[u] != null )
 						openups[u].close();
+			// the debug library may hold on to the registers
+			if ( !shared && !DebugLib.DEBUG_ENABLED ) {
+				varargs = NONE;
+				cs.giveFrame(this, closure.p.maxstacksize);
+			}
+			cs.onReturn();
+		}
+
+		void leaveProtected() {
+			LuaThread.setErrorFunc(olderr);
+			cs.onReturn();
+		}
+
+		/** Get the source and line of the instruction being run, as in error messages. */
+		String sourceline() {
+			Prototype p = closure.p;
+			String s = p.source.tojstring();
+			int[] li = p.lineinfo;
+			int line = li==null || pc<1 || pc>li.length? -1: li[pc-1];
+			return (s.startsWith("@")||s.startsWith("=")? s.substring(1): s) + ":" + line;
 		}
 	}
+	/* DAN200 END */
 
 	protected LuaValue getUpvalue(int i) {
 		return upValues[i].getValue();
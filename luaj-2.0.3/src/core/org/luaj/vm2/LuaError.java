@@ -101,7 +101,10 @@ public class LuaError extends RuntimeException {
 	private static String addFileLine( String message, int level ) {
 		if ( message == null ) return null;
 		if ( level == 0 ) return message;
-		String fileline = DebugLib.fileline(level-1);
+		/* DAN200 START */
+		//String fileline = DebugLib.fileline(level-1);
+		String fileline = LuaThread.fileline(level-1);
+		/* DAN200 END */
 		return fileline!=null? fileline+": "+message: message;		
 	}
 
@@ -110,7 +113,10 @@ public class LuaError extends RuntimeException {
 	 * */
 	private static String addFileLine( String message ) {
 		if ( message == null ) return null;
-		String fileline = DebugLib.fileline();
+		/* DAN200 START */
+		//String fileline = DebugLib.fileline();
+		String fileline = LuaThread.fileline();
+		/* DAN200 END */
 		return fileline!=null? fileline+": "+message: message;		
 	}
 	
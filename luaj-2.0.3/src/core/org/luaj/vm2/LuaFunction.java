@@ -38,6 +38,23 @@ public class LuaFunction extends LuaValue {
 	/** Shared static metatable for all functions and closures. */
 	public static LuaValue s_metatable;
 
+	/* DAN200 START */
+	/** Call mode of most functions, which are simply invoked */
+	public static final int CALLMODE_NORMAL    = 0;
+	
+	/** Call mode of coroutine.yield() */
+	public static final int CALLMODE_YIELD     = 1;
+	
+	/** Call mode of pcall() */
+	public static final int CALLMODE_PCALL     = 2;
+	
+	/** Call mode of xpcall() */
+	public static final int CALLMODE_XPCALL    = 3;
+	
+	/** Call mode of Java functions which may call {@link LuaThread#yield(Varargs)} */
+	public static final int CALLMODE_JAVAYIELD = 4;
+	/* DAN200 END */
+
 	protected LuaValue env;
 	
 	public LuaFunction() {
@@ -79,4 +96,18 @@ public class LuaFunction extends LuaValue {
 	public void setfenv(LuaValue env) {
 		this.env = env!=null? env: NIL;
 	}
+
+	/* DAN200 START */
+	/**
+	 * Get how calls to this function from lua code in a stackless coroutine must be made.
+	 * <p>
+	 * Functions which yield, or call functions which might, cannot simply be 
+	 * invoked from Java, as there is no Java thread to suspend.  
+	 * @return one of the CALLMODE_ constants
+	 * @see LuaThread#stackless_coroutines
+	 */
+	public int callmode() {
+		return CALLMODE_NORMAL;
+	}
+	/* DAN200 END */
 }
@@ -42,15 +42,36 @@ import org.luaj.vm2.lib.MathLib;
  */
 public class LuaInteger extends LuaNumber {
 
-	private static final LuaInteger[] intValues = new LuaInteger[512];
+	/* DAN200 START */
+	//private static final LuaInteger[] intValues = new LuaInteger[512];
+	//static {
+	//	for ( int i=0; i<512; i++ )
+	//		intValues[i] = new LuaInteger(i-256);
+	//}
+	//
+	//public static LuaInteger valueOf(int i) {
+	//	return i<=255 && i>=-256? intValues[i+256]: new LuaInteger(i);
+	//};
+
+	// Values in the range of loop counters and coordinates are shared.  Small ones are made up 
+	// front, the rest when first asked for; two threads racing to make one just makes a spare.
+	private static final int CACHE_MIN = -32768;
+	private static final int CACHE_MAX = 32767;
+	private static final LuaInteger[] intValues = new LuaInteger[CACHE_MAX-CACHE_MIN+1];
 	static {
-		for ( int i=0; i<512; i++ )
-			intValues[i] = new LuaInteger(i-256);
+		for ( int i=-256; i<256; i++ )
+			intValues[i-CACHE_MIN] = new LuaInteger(i);
 	}
 
 	public static LuaInteger valueOf(int i) {
-		return i<=255 && i>=-256? intValues[i+256]: new LuaInteger(i);
+		if ( i<CACHE_MIN || i>CACHE_MAX )
+			return new LuaInteger(i);
+		LuaInteger n = intValues[i-CACHE_MIN];
+		if ( n == null )
+			intValues[i-CACHE_MIN] = n = new LuaInteger(i);
+		return n;
 	};
+	/* DAN200 END */
 	
 	 // TODO consider moving this to LuaValue
 	/** Return a LuaNumber that represents the value provided
@@ -61,9 +82,12 @@ public class LuaInteger extends LuaNumber {
 	 */
 	public static LuaNumber valueOf(long l) {
 		int i = (int) l;
-		return l==i? (i<=255 && i>=-256? intValues[i+256]: 
-			(LuaNumber) new LuaInteger(i)): 
-			(LuaNumber) LuaDouble.valueOf(l);
+		/* DAN200 START */
+		//return l==i? (i<=255 && i>=-256? intValues[i+256]: 
+		//	(LuaNumber) new LuaInteger(i)): 
+		//	(LuaNumber) LuaDouble.valueOf(l);
+		return l==i? (LuaNumber) valueOf(i): (LuaNumber) LuaDouble.valueOf(l);
+		/* DAN200 END */
 	}
 	
 	/** The value being held by this instance. */
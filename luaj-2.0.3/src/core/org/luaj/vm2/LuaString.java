@@ -27,8 +27,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.String;
-import java.lang.ref.WeakReference;
-import java.util.Hashtable;
 
 import org.luaj.vm2.lib.MathLib;
 import org.luaj.vm2.lib.StringLib;
@@ -61,8 +59,11 @@ import org.luaj.vm2.lib.StringLib;
  */
 public class LuaString extends LuaValue {
 
+	/* DAN200 START */
+	// The string metatable belongs to the LuaThread.Context, see LuaThread.getStringMetatable()
 	/** The singleton instance representing lua {@code true} */
-	public static LuaValue s_metatable;
+	//public static LuaValue s_metatable;
+	/* DAN200 END */
 
 	/** The bytes for the string */
 	public final byte[] m_bytes;
@@ -73,16 +74,68 @@ public class LuaString extends LuaValue {
 	/** The number of bytes that comprise this string */
 	public final int    m_length;
 
-	private static final Hashtable index_java = new Hashtable();
+	/* DAN200 START */
+	/** The used end of {@link #m_bytes} when it was built by concatenation and has room to grow, or null */
+	private final Tail m_tail;
+
+	/** The hash code, or 0 if it has not been computed yet */
+	private int m_hashcode;
+
+	/** Concatenation results at least this long may be appended to in place */
+	private static final int TAIL_MIN_LENGTH = 64;
+
+	/** How far into a shared byte array strings have claimed. 
+	 * Bytes past {@code used} belong to no string, so whichever string ends exactly at 
+	 * {@code used} may copy more bytes there and return a longer view of the same array. */
+	private static final class Tail {
+		int used;
+		Tail(int used) {
+			this.used = used;
+		}
+	}
+	/* DAN200 END */
+
+	/* DAN200 START */
+	// Java strings are interned in a fixed size, direct mapped cache instead of a synchronized 
+	// Hashtable of weak references, so lua machines on different threads never wait on each 
+	// other, and converting a cached string makes no garbage.  Each slot holds an immutable 
+	// entry, so a race can only cause a miss.  Long strings are not cached, which bounds its size.
+	//private static final Hashtable index_java = new Hashtable();
+	private static final int INDEX_SIZE = 2048;
+	private static final int INDEX_MAX_LENGTH = 64;
+	private static final IndexEntry[] index_java = new IndexEntry[INDEX_SIZE];
+
+	private static final class IndexEntry {
+		final String key;
+		final LuaString value;
+		IndexEntry(String key, LuaString value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final static int index_slot(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (INDEX_SIZE - 1);
+	}
 
-	private final static LuaString index_get(Hashtable indextable, Object key) {
-		WeakReference w = (WeakReference) indextable.get(key);
-		return w!=null? (LuaString) w.get(): null;
+	//private final static LuaString index_get(Hashtable indextable, Object key) {
+	//	WeakReference w = (WeakReference) indextable.get(key);
+	//	return w!=null? (LuaString) w.get(): null;
+	//}
+	private final static LuaString index_get(IndexEntry[] indextable, String key) {
+		IndexEntry e = indextable[index_slot(key)];
+		return e!=null && e.key.equals(key)? e.value: null;
 	}
 	
-	private final static void index_set(Hashtable indextable, Object key, LuaString value) {
-		indextable.put(key, new WeakReference(value));
+	//private final static void index_set(Hashtable indextable, Object key, LuaString value) {
+	//	indextable.put(key, new WeakReference(value));
+	//}
+	private final static void index_set(IndexEntry[] indextable, String key, LuaString value) {
+		if ( key.length() <= INDEX_MAX_LENGTH )
+			indextable[index_slot(key)] = new IndexEntry(key, value);
 	}
+	/* DAN200 END */
 
 	/**
 	 * Get a {@link LuaString} instance whose bytes match 
@@ -105,6 +158,7 @@ public class LuaString extends LuaValue {
             char ch = c[i];
             b[i] = (ch < 256) ? (byte)ch : (byte)'?';
         }
+        LuaThread.allocated(b, b.length);
         /* DAN200 END */
 		s = valueOf(b, 0, b.length);
 		index_set( index_java, string, s );
@@ -138,6 +192,9 @@ public class LuaString extends LuaValue {
 		byte[] b = new byte[n];
 		for ( int i=0; i<n; i++ )
 			b[i] = (byte) bytes[i];
+		/* DAN200 START */
+		LuaThread.allocated(b, n);
+		/* DAN200 END */
 		return valueOf(b, 0, n);
 	}
 	
@@ -163,9 +220,19 @@ public class LuaString extends LuaValue {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	private LuaString(byte[] bytes, int offset, int length) {
+		/* DAN200 START */
+		//this.m_bytes = bytes;
+		//this.m_offset = offset;
+		//this.m_length = length;
+		this(bytes, offset, length, null);
+	}
+
+	private LuaString(byte[] bytes, int offset, int length, Tail tail) {
 		this.m_bytes = bytes;
 		this.m_offset = offset;
 		this.m_length = length;
+		this.m_tail = tail;
+		/* DAN200 END */
 	}
 
 	public boolean isstring() {
@@ -173,7 +240,10 @@ public class LuaString extends LuaValue {
 	}
 		
 	public LuaValue getmetatable() { 
-		return s_metatable; 
+		/* DAN200 START */
+		//return s_metatable; 
+		return LuaThread.getStringMetatable();
+		/* DAN200 END */
 	}
 	
 	public int type() {
@@ -200,7 +270,10 @@ public class LuaString extends LuaValue {
 
 	// get is delegated to the string library
 	public LuaValue get(LuaValue key) {
-		return s_metatable!=null? gettable(this,key): StringLib.instance.get(key);
+		/* DAN200 START */
+		//return s_metatable!=null? gettable(this,key): StringLib.instance.get(key);
+		return LuaThread.getStringMetatable()!=null? gettable(this,key): StringLib.instance.get(key);
+		/* DAN200 END */
 	}
 
 	// unary operators
@@ -254,10 +327,43 @@ public class LuaString extends LuaValue {
 	public Buffer   concat(Buffer rhs)        { return rhs.concatTo(this); }
 	public LuaValue concatTo(LuaNumber lhs)   { return concatTo(lhs.strvalue()); }
 	public LuaValue concatTo(LuaString lhs)   { 
+		/* DAN200 START */
+		// Long concatenations leave room at the end of their array, and the string ending there 
+		// appends in place, so building a string with repeated s = s .. x is linear, not quadratic
+		/*
 		byte[] b = new byte[lhs.m_length+this.m_length];
 		System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
 		System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
 		return new LuaString(b, 0, b.length);
+		*/
+		int n = lhs.m_length+this.m_length;
+		Tail t = lhs.m_tail;
+		if ( t != null ) {
+			int end = lhs.m_offset+lhs.m_length;
+			synchronized ( t ) {
+				if ( t.used == end && this.m_length <= lhs.m_bytes.length-end ) {
+					System.arraycopy(this.m_bytes, this.m_offset, lhs.m_bytes, end, this.m_length);
+					t.used = end+this.m_length;
+					return new LuaString(lhs.m_bytes, lhs.m_offset, n, t);
+				}
+			}
+		}
+		if ( n < TAIL_MIN_LENGTH ) {
+			byte[] b = new byte[n];
+			LuaThread.allocated(b, n);
+			System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
+			System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
+			return new LuaString(b, 0, n);
+		}
+		// only strings which were themselves grown by concatenation get spare room, 
+		// so a one-off concatenation costs no more memory than before
+		int size = t != null && n < Integer.MAX_VALUE/2? n*2: n;
+		byte[] b = new byte[size];
+		LuaThread.allocated(b, size);
+		System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
+		System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
+		return new LuaString(b, 0, n, new Tail(n));
+		/* DAN200 END */
 	}
 
 	// string comparison 
@@ -377,10 +483,20 @@ public class LuaString extends LuaValue {
 	}
 	
 	public int hashCode() {
-		int h = m_length;  /* seed */
+		/* DAN200 START */
+		// the hash is worked out once, as every table lookup with this key needs it
+		int h = m_hashcode;
+		if ( h != 0 )
+			return h;
+		h = m_length;  /* seed */
+		//int h = m_length;  /* seed */
+		/* DAN200 END */
 		int step = (m_length>>5)+1;  /* if string is too long, don't hash all its chars */
 		for (int l1=m_length; l1>=step; l1-=step)  /* compute hash */
 		    h = h ^ ((h<<5)+(h>>2)+(((int) m_bytes[m_offset+l1-1] ) & 0x0FF ));
+		/* DAN200 START */
+		m_hashcode = h;
+		/* DAN200 END */
 		return h;
 	}
 	
@@ -21,6 +21,8 @@
  ******************************************************************************/
 package org.luaj.vm2;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Vector;
 
 /**
@@ -87,6 +89,13 @@ public class LuaTable extends LuaValue {
 	
 	/** metatable for this table, or null */
 	protected LuaValue m_metatable;
+
+	/* DAN200 START */
+	// every table is counted against the memory limit of the context creating it, as are its arrays
+	{
+		LuaThread.allocated( this, 5 * REFERENCE_SIZE );
+	}
+	/* DAN200 END */
 	
 	/** Construct empty table */
 	public LuaTable() {
@@ -173,20 +182,50 @@ public class LuaTable extends LuaValue {
 	}
 
 	public void presize(int narray, int nhash) {
+		/* DAN200 START */
+		int nentries = nhash;
+		/* DAN200 END */
 		if ( nhash > 0 && nhash < MIN_HASH_CAPACITY )
 			nhash = MIN_HASH_CAPACITY;
-		array = (narray>0? new LuaValue[narray]: NOVALS);
-		hashKeys = (nhash>0? new LuaValue[nhash]: NOVALS);
-		hashValues = (nhash>0? new LuaValue[nhash]: NOVALS);
+		/* DAN200 START */
+		// the hash part is always a power of two, so a slot can be found with a mask
+		nhash = ceilpow2(nhash);
+		// and is left room under the load factor, so filling it with nhash entries doesn't rehash it
+		if ( nhash > 0 && nentries >= nhash - (nhash>>3) )
+			nhash <<= 1;
+		/* DAN200 END */
+		/* DAN200 START */
+		//array = (narray>0? new LuaValue[narray]: NOVALS);
+		//hashKeys = (nhash>0? new LuaValue[nhash]: NOVALS);
+		//hashValues = (nhash>0? new LuaValue[nhash]: NOVALS);
+		array = (narray>0? newValues(narray): NOVALS);
+		hashKeys = (nhash>0? newValues(nhash): NOVALS);
+		hashValues = (nhash>0? newValues(nhash): NOVALS);
+		/* DAN200 END */
 		hashEntries = 0;
 	}
 
 	/** Resize the table */
 	private static LuaValue[] resize( LuaValue[] old, int n ) {
-		LuaValue[] v = new LuaValue[n];
+		/* DAN200 START */
+		//LuaValue[] v = new LuaValue[n];
+		LuaValue[] v = newValues(n);
+		/* DAN200 END */
 		System.arraycopy(old, 0, v, 0, old.length);
 		return v;
 	}
+
+	/* DAN200 START */
+	/** Size of a reference in an array of values, as on a 64 bit JVM without compressed references */
+	private static final int REFERENCE_SIZE = 8;
+
+	/** Allocate an array of values, counted against the memory limit of the current context */
+	private static LuaValue[] newValues( int n ) {
+		LuaValue[] v = new LuaValue[n];
+		LuaThread.allocated( v, (long) n * REFERENCE_SIZE );
+		return v;
+	}
+	/* DAN200 END */
 	
 	/** 
 	 * Get the length of the array part of the table. 
@@ -242,10 +281,47 @@ public class LuaTable extends LuaValue {
 		return v.isnil() && m_metatable!=null? gettable(this,key): v;
 	}
 
+	/* DAN200 START */
+	/**
+	 * Get the value for a constant string key of an instruction, trying the hash slot it was
+	 * last found in first.  The slot is only trusted when it still holds the same key object,
+	 * and as a table never holds two equal keys the value beside it is the one wanted,
+	 * whichever table the slot was remembered from.  Otherwise the key is looked up in full,
+	 * and where it was found is remembered for next time.
+	 * @param key the constant key, which must be a {@link LuaString}
+	 * @param cache the inline caches of the function being run
+	 * @param pc index of the instruction doing the lookup
+	 */
+	public LuaValue get( LuaValue key, Prototype.Cache cache, int pc ) {
+		LuaValue[] keys = hashKeys;
+		LuaValue k = cache.keys[pc];
+		int slot = cache.slots[pc];
+		if ( k != null && slot < keys.length && keys[slot] == k ) {
+			LuaValue v = hashValues[slot];
+			if ( v != null )
+				return v;
+		}
+		if ( hashEntries > 0 ) {
+			slot = hashFindSlot(key);
+			if ( ( k = keys[slot] ) != null ) {
+				cache.keys[pc] = k;
+				cache.slots[pc] = slot;
+				LuaValue v = hashValues[slot];
+				if ( v != null )
+					return v;
+			}
+		}
+		return m_metatable!=null? gettable(this,key): NIL;
+	}
+	/* DAN200 END */
+
 	public LuaValue rawget( int key ) {
 		if ( key>0 && key<=array.length ) 
 			return array[key-1]!=null? array[key-1]: NIL;
-		return hashget( LuaInteger.valueOf(key) );
+		/* DAN200 START */
+		//return hashget( LuaInteger.valueOf(key) );
+		return hashget( key );
+		/* DAN200 END */
 	}
 	
 	public LuaValue rawget( LuaValue key ) {
@@ -265,6 +341,27 @@ public class LuaTable extends LuaValue {
 		return NIL;
 	}
 
+	/* DAN200 START */
+	/** 
+	 * Get the hash value for an integer key, without boxing the key into a {@link LuaInteger}.
+	 * Integer keys are always stored as {@link LuaInteger}, whose hash code is the key itself.
+	 * @param key the key to look up
+	 */
+	protected LuaValue hashget(int key) {
+		if ( hashEntries > 0 ) {
+			int mask = hashKeys.length - 1;
+			LuaValue k;
+			for ( int i = hashSlot(key, hashKeys.length); ( k = hashKeys[i] ) != null; i = ( i + 1 ) & mask ) {
+				if ( k.raweq(key) ) {
+					LuaValue v = hashValues[i];
+					return v!=null? v: NIL;
+				}
+			}
+		}
+		return NIL;
+	}
+	/* DAN200 END */
+
 	public void set( int key, LuaValue value ) {
 		if ( m_metatable==null || ! rawget(key).isnil() || ! settable(this,LuaInteger.valueOf(key),value) )
 			rawset(key, value);
@@ -306,6 +403,8 @@ public class LuaTable extends LuaValue {
 		int n = array.length;
 		int m = Math.max(2,n*2);
 		array = resize(array, m);
+		/* DAN200 START */
+		/*
 		for ( int i=n; i<m; i++ ) {
 			LuaValue k = LuaInteger.valueOf(i+1);
 			LuaValue v = hashget(k);
@@ -314,6 +413,16 @@ public class LuaTable extends LuaValue {
 				array[i] = v;
 			}
 		}
+		*/
+		// only box the keys which are actually moved out of the hash part
+		for ( int i=n; i<m && hashEntries > 0; i++ ) {
+			LuaValue v = hashget(i+1);
+			if ( !v.isnil() ) {
+				hashset(LuaInteger.valueOf(i+1), NIL);
+				array[i] = v;
+			}
+		}
+		/* DAN200 END */
 	}
 
 	/** Remove the element at a position in a list-table
@@ -510,8 +619,13 @@ public class LuaTable extends LuaValue {
 			hashRemove(key);
 		else {
 			if ( hashKeys.length == 0 ) {
-				hashKeys = new LuaValue[ MIN_HASH_CAPACITY ];
-				hashValues = new LuaValue[ MIN_HASH_CAPACITY ];
+				/* DAN200 START */
+				//hashKeys = new LuaValue[ MIN_HASH_CAPACITY ];
+				//hashValues = new LuaValue[ MIN_HASH_CAPACITY ];
+				LuaValue[] keys = newValues( MIN_HASH_CAPACITY );
+				hashValues = newValues( MIN_HASH_CAPACITY );
+				hashKeys = keys;
+				/* DAN200 END */
 			}
 			int slot = hashFindSlot( key );
 			if ( hashFillSlot( slot, value ) )
@@ -529,17 +643,53 @@ public class LuaTable extends LuaValue {
 	 * @return slot to use
 	 */
 	public int hashFindSlot(LuaValue key) {		
-		int i = ( key.hashCode() & 0x7FFFFFFF ) % hashKeys.length;
+		/* DAN200 START */
+		//int i = ( key.hashCode() & 0x7FFFFFFF ) % hashKeys.length;
+		int mask = hashKeys.length - 1;
+		int i = hashSlot( key.hashCode(), hashKeys.length );
+		/* DAN200 END */
 		
 		// This loop is guaranteed to terminate as long as we never allow the
 		// table to get 100% full.
 		LuaValue k;
 		while ( ( k = hashKeys[i] ) != null && !k.raweq(key) ) {
-			i = ( i + 1 ) % hashKeys.length;
+			/* DAN200 START */
+			//i = ( i + 1 ) % hashKeys.length;
+			i = ( i + 1 ) & mask;
+			/* DAN200 END */
 		}
 		return i;
 	}
 
+	/* DAN200 START */
+	/**
+	 * Find the home slot of a hash code in a hash part, whose capacity is always a power of two.
+	 * The high bits are folded in, as they would otherwise be ignored by small tables.
+	 * @param hashCode the hash code of the key
+	 * @param capacity the length of the hash part
+	 * @return the first slot to try
+	 */
+	protected static int hashSlot(int hashCode, int capacity) {
+		return ( hashCode ^ ( hashCode >>> 16 ) ) & ( capacity - 1 );
+	}
+
+	/** Smallest power of two which is at least {@code n} */
+	private static int ceilpow2(int n) {
+		int c = 1;
+		while ( c < n )
+			c <<= 1;
+		return n > 0? c: 0;
+	}
+
+	/** Index into {@code nums} for a positive integer key: 0 for 1, and {@code i} for 2^(i-1) < key <= 2^i */
+	private static int ceillog2(int key) {
+		int i = 0;
+		for ( int x = key-1; x > 0; x >>>= 1 )
+			i++;
+		return i;
+	}
+	/* DAN200 END */
+
 	private boolean hashFillSlot( int slot, LuaValue value ) {
 		hashValues[ slot ] = value;
 		if ( hashKeys[ slot ] != null ) {
@@ -566,8 +716,12 @@ public class LuaTable extends LuaValue {
 			
 			int j = i;
 			int n = hashKeys.length; 
-			while ( hashKeys[ j = ( ( j + 1 ) % n ) ] != null ) {
-				final int k = ( ( hashKeys[ j ].hashCode() )& 0x7FFFFFFF ) % n;
+			/* DAN200 START */
+			//while ( hashKeys[ j = ( ( j + 1 ) % n ) ] != null ) {
+			//	final int k = ( ( hashKeys[ j ].hashCode() )& 0x7FFFFFFF ) % n;
+			while ( hashKeys[ j = ( ( j + 1 ) & ( n - 1 ) ) ] != null ) {
+				final int k = hashSlot( hashKeys[ j ].hashCode(), n );
+			/* DAN200 END */
 				if ( ( j > i && ( k <= i || k > j ) ) ||
 					 ( j < i && ( k <= i && k > j ) ) ) {
 					hashKeys[ i ] = hashKeys[ j ];
@@ -594,6 +748,8 @@ public class LuaTable extends LuaValue {
 		return hashEntries >= (hashCapacity - (hashCapacity>>3));
 	}
 
+	/* DAN200 START */
+	/*
 	private void rehash() {
 		final int oldCapacity = hashKeys.length;
 		final int newCapacity = oldCapacity+(oldCapacity>>2)+MIN_HASH_CAPACITY;
@@ -614,44 +770,335 @@ public class LuaTable extends LuaValue {
 			}
 		}
 	}
+	*/
+
+	/**
+	 * Resize both parts of the table once the hash part is full, as lua 5.1 does.
+	 * <p>
+	 * The array part becomes the largest power of two {@code n} such that more than half 
+	 * of the keys {@code 1..n} are in use, so integer keys which were added out of order 
+	 * end up in the array part.  The hash part is sized to fit the rest, 
+	 * and at least doubles when it is what filled up.
+	 */
+	private void rehash() {
+		// nums[i] is the number of keys k with 2^(i-1) < k <= 2^i
+		final int[] nums = new int[32];
+		int nint = 0;
+		int total = 0;
+		for ( int i = 0; i < array.length; ++i ) {
+			if ( array[i] != null ) {
+				nums[ceillog2(i+1)]++;
+				nint++;
+			}
+		}
+		total = nint;
+		for ( int i = 0; i < hashKeys.length; ++i ) {
+			final LuaValue k = hashKeys[i];
+			if ( k != null ) {
+				total++;
+				if ( k.isinttype() ) {
+					int ik = k.toint();
+					if ( ik > 0 ) {
+						nums[ceillog2(ik)]++;
+						nint++;
+					}
+				}
+			}
+		}
+
+		// computesizes: pick the array size
+		int narray = 0;
+		int inarray = 0;
+		int a = 0;
+		for ( int i = 0, twotoi = 1; i < 31 && twotoi/2 < nint; i++, twotoi <<= 1 ) {
+			if ( nums[i] > 0 ) {
+				a += nums[i];
+				if ( a > twotoi/2 ) {
+					narray = twotoi;
+					inarray = a;
+				}
+			}
+			if ( a == nint )
+				break;
+		}
+		resize( narray, total - inarray );
+	}
+
+	/**
+	 * Resize the array part to {@code narray} and the hash part to hold {@code nhash} entries, 
+	 * moving entries between the two as needed.
+	 */
+	private void resize(int narray, int nhash) {
+		final LuaValue[] oldArray = array;
+		final LuaValue[] oldKeys = hashKeys;
+		final LuaValue[] oldValues = hashValues;
+
+		int capacity = MIN_HASH_CAPACITY;
+		while ( capacity - (capacity>>3) <= nhash )
+			capacity <<= 1;
+
+		// allocate everything first, so the table is unchanged if that raises an error
+		final LuaValue[] newArray = ( narray == oldArray.length? oldArray: narray>0? newValues(narray): NOVALS );
+		final LuaValue[] newKeys = newValues( capacity );
+		final LuaValue[] newValues = newValues( capacity );
+
+		if ( newArray != oldArray ) {
+			array = newArray;
+			System.arraycopy(oldArray, 0, array, 0, Math.min(narray, oldArray.length));
+		}
+		hashKeys = newKeys;
+		hashValues = newValues;
+		hashEntries = 0;
+
+		// array entries beyond the new array part
+		for ( int i = narray; i < oldArray.length; ++i )
+			if ( oldArray[i] != null )
+				hashInsert( LuaInteger.valueOf(i+1), oldArray[i] );
+
+		// hash entries, some of which may now belong in the array part
+		for ( int i = 0; i < oldKeys.length; ++i ) {
+			final LuaValue k = oldKeys[i];
+			if ( k != null ) {
+				if ( k.isinttype() ) {
+					int ik = k.toint();
+					if ( ik > 0 && ik <= narray ) {
+						array[ik-1] = oldValues[i];
+						continue;
+					}
+				}
+				hashInsert( k, oldValues[i] );
+			}
+		}
+
+		if ( hashEntries == 0 ) {
+			hashKeys = NOVALS;
+			hashValues = NOVALS;
+		}
+	}
+
+	/** Add a key which is known not to be in the hash part, which must have room for it. */
+	private void hashInsert(LuaValue key, LuaValue value) {
+		int mask = hashKeys.length - 1;
+		int i = hashSlot( key.hashCode(), hashKeys.length );
+		while ( hashKeys[i] != null )
+			i = ( i + 1 ) & mask;
+		hashKeys[i] = key;
+		hashValues[i] = value;
+		++hashEntries;
+	}
+	/* DAN200 END */
 	
 	// ----------------- sort support -----------------------------
 	//
-	// implemented heap sort from wikipedia
-	//
-	// Only sorts the contiguous array part. 
-	//
+	/* DAN200 START */
+	// The heap sort below called lt_b, or the comparator, for every comparison.  
+	// When there is no comparator and every element is a string, or every element is 
+	// a number, the library sort is used instead.  Otherwise the heap sort is replaced 
+	// with the quicksort from Lua 5.1's ltablib.c, which falls back to heap sort if it 
+	// goes too deep and to insertion sort on short ranges.
+//	// implemented heap sort from wikipedia
+//	//
+//	// Only sorts the contiguous array part. 
+//	//
+//	/** Sort the table using a comparator.
+//	 * @param comparator {@link LuaValue} to be called to compare elements.
+//	 */
+//	public void sort(LuaValue comparator) {
+//		int n = array.length;
+//		while ( n > 0 && array[n-1] == null )
+//			--n;
+//		if ( n > 1 ) 
+//			heapSort(n, comparator);
+//	}
+
+//	private void heapSort(int count, LuaValue cmpfunc) {
+//		heapify(count, cmpfunc);
+//		for ( int end=count-1; end>0; ) {
+//			swap(end, 0);
+//			siftDown(0, --end, cmpfunc);
+//		}
+//	}
+
+//	private void heapify(int count, LuaValue cmpfunc) {
+//		for ( int start=count/2-1; start>=0; --start )
+//			siftDown(start, count - 1, cmpfunc);
+//	}
+
+//	private void siftDown(int start, int end, LuaValue cmpfunc) {
+//		for ( int root=start; root*2+1 <= end; ) { 
+//			int child = root*2+1; 
+//			if (child < end && compare(child, child + 1, cmpfunc))
+//				++child; 
+//			if (compare(root, child, cmpfunc)) {
+//				swap(root, child);
+//				root = child;
+//			} else
+//				return;
+//		}
+//	}
+
+//	private boolean compare(int i, int j, LuaValue cmpfunc) {
+//		LuaValue a = array[i];
+//		LuaValue b = array[j];
+//		if ( a == null || b == null )
+//			return false;
+//		if ( ! cmpfunc.isnil() ) {
+//			return cmpfunc.call(a,b).toboolean();
+//		} else {
+//			return a.lt_b(b);
+//		}
+//	}
+
+//	private void swap(int i, int j) {
+//		LuaValue a = array[i];
+//		array[i] = array[j];
+//		array[j] = a;
+//	}
+
+	/** Ranges this short are insertion sorted */
+	private static final int SORT_INSERTION_MAX = 12;
+
+	/** Orders strings the way {@link LuaString#lt_b(LuaValue)} does */
+	private static final Comparator STRING_ORDER = new Comparator() {
+		public int compare(Object a, Object b) {
+			return ((LuaString) a).strcmp((LuaString) b);
+		}
+	};
+
+	/** Orders numbers which are not NaN */
+	private static final Comparator NUMBER_ORDER = new Comparator() {
+		public int compare(Object a, Object b) {
+			double x = ((LuaValue) a).todouble(), y = ((LuaValue) b).todouble();
+			return x < y? -1: x > y? 1: 0;
+		}
+	};
+
 	/** Sort the table using a comparator.
+	 * <p>
+	 * Only sorts the contiguous array part. 
 	 * @param comparator {@link LuaValue} to be called to compare elements.
 	 */
 	public void sort(LuaValue comparator) {
 		int n = array.length;
 		while ( n > 0 && array[n-1] == null )
 			--n;
-		if ( n > 1 ) 
-			heapSort(n, comparator);
+		if ( n > 1 && ! ( comparator.isnil() && sortPrimitive(n) ) ) {
+			int depth = 2;
+			for ( int i=n; i>1; i>>=1 )
+				depth += 2;
+			quickSort(0, n-1, depth, comparator);
+		}
 	}
 
-	private void heapSort(int count, LuaValue cmpfunc) {
-		heapify(count, cmpfunc);
-		for ( int end=count-1; end>0; ) {
-			swap(end, 0);
-			siftDown(0, --end, cmpfunc);
+	/** Sort the first n elements without calling back into lua, if they are all strings or all numbers.
+	 * Both orders are total, so the library sort can be used.
+	 * @return true if the elements were sorted 
+	 */
+	private boolean sortPrimitive(int n) {
+		LuaValue[] a = array;
+		if ( a[0] instanceof LuaString ) {
+			for ( int i=1; i<n; i++ )
+				if ( ! (a[i] instanceof LuaString) )
+					return false;
+			Arrays.sort(a, 0, n, STRING_ORDER);
+			return true;
+		}
+		boolean integers = true;
+		for ( int i=0; i<n; i++ ) {
+			LuaValue v = a[i];
+			if ( v instanceof LuaInteger )
+				continue;
+			if ( ! (v instanceof LuaNumber) || Double.isNaN(v.todouble()) )
+				return false;
+			integers = false;
+		}
+		if ( integers ) {
+			int[] keys = new int[n];
+			for ( int i=0; i<n; i++ )
+				keys[i] = ((LuaInteger) a[i]).v;
+			Arrays.sort(keys);
+			for ( int i=0; i<n; i++ )
+				a[i] = LuaInteger.valueOf(keys[i]);
+		} else {
+			Arrays.sort(a, 0, n, NUMBER_ORDER);
+		}
+		return true;
+	}
+
+	private void quickSort(int lo, int up, int depth, LuaValue cmpfunc) {
+		while ( up - lo >= SORT_INSERTION_MAX ) {
+			if ( --depth < 0 ) {
+				heapSort(lo, up, cmpfunc);
+				return;
+			}
+			// sort elements lo, (lo+up)/2 and up, and use the middle one as the pivot 
+			int i = (lo+up)>>>1;
+			if ( compare(up, lo, cmpfunc) )
+				swap(lo, up);
+			if ( compare(i, lo, cmpfunc) )
+				swap(i, lo);
+			else if ( compare(up, i, cmpfunc) )
+				swap(i, up);
+			LuaValue p = array[i];
+			swap(i, up-1);
+			// invariant: a[lo] <= P == a[up-1] <= a[up], only need to sort from lo+1 to up-2 
+			int j = up-1;
+			i = lo;
+			// Lua raises "invalid order function for sorting" when a scan runs off the end, 
+			// but the heap sort never raised an error, so the scans just stop at the ends 
+			for (;;) {
+				while ( less(array[++i], p, cmpfunc) )
+					if ( i >= up-1 )
+						break;
+				while ( less(p, array[--j], cmpfunc) )
+					if ( j <= lo )
+						break;
+				if ( j < i )
+					break;
+				swap(i, j);
+			}
+			swap(up-1, i);
+			// recurse into the smaller part and loop on the larger, to bound the stack depth 
+			if ( i-lo < up-i ) {
+				quickSort(lo, i-1, depth, cmpfunc);
+				lo = i+1;
+			} else {
+				quickSort(i+1, up, depth, cmpfunc);
+				up = i-1;
+			}
 		}
+		insertionSort(lo, up, cmpfunc);
 	}
 
-	private void heapify(int count, LuaValue cmpfunc) {
+	private void insertionSort(int lo, int up, LuaValue cmpfunc) {
+		for ( int i=lo+1; i<=up; i++ ) {
+			LuaValue v = array[i];
+			int j = i;
+			while ( j > lo && less(v, array[j-1], cmpfunc) ) {
+				array[j] = array[j-1];
+				--j;
+			}
+			array[j] = v;
+		}
+	}
+
+	private void heapSort(int lo, int up, LuaValue cmpfunc) {
+		int count = up - lo + 1;
 		for ( int start=count/2-1; start>=0; --start )
-			siftDown(start, count - 1, cmpfunc);
+			siftDown(lo, start, count - 1, cmpfunc);
+		for ( int end=count-1; end>0; ) {
+			swap(lo+end, lo);
+			siftDown(lo, 0, --end, cmpfunc);
+		}
 	}
 
-	private void siftDown(int start, int end, LuaValue cmpfunc) {
+	private void siftDown(int lo, int start, int end, LuaValue cmpfunc) {
 		for ( int root=start; root*2+1 <= end; ) { 
 			int child = root*2+1; 
-			if (child < end && compare(child, child + 1, cmpfunc))
+			if (child < end && compare(lo + child, lo + child + 1, cmpfunc))
 				++child; 
-			if (compare(root, child, cmpfunc)) {
-				swap(root, child);
+			if (compare(lo + root, lo + child, cmpfunc)) {
+				swap(lo + root, lo + child);
 				root = child;
 			} else
 				return;
@@ -659,8 +1106,10 @@ public class LuaTable extends LuaValue {
 	}
 
 	private boolean compare(int i, int j, LuaValue cmpfunc) {
-		LuaValue a = array[i];
-		LuaValue b = array[j];
+		return less(array[i], array[j], cmpfunc);
+	}
+
+	private static boolean less(LuaValue a, LuaValue b, LuaValue cmpfunc) {
 		if ( a == null || b == null )
 			return false;
 		if ( ! cmpfunc.isnil() ) {
@@ -675,6 +1124,7 @@ public class LuaTable extends LuaValue {
 		array[i] = array[j];
 		array[j] = a;
 	}
+	/* DAN200 END */
 	
 	/** This may be deprecated in a future release.  
 	 * It is recommended to count via iteration over next() instead
@@ -23,6 +23,7 @@ package org.luaj.vm2;
 
 
 /* DAN200 START */
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Enumeration;
 import java.util.Vector;
@@ -58,6 +59,11 @@ import org.luaj.vm2.lib.DebugLib;
  * {@link OrphanedThread} which is an {@link java.lang.Error}. 
  * Applications should not catch {@link OrphanedThread}, because it can break
  * the thread safety of luaj.
+ * <p>
+ * If {@link #stackless_coroutines} is set, coroutines whose body is a {@link LuaClosure}
+ * are instead run on the thread which resumes them, and keep their lua call frames on 
+ * the heap while suspended.  Such a coroutine only gets a Java thread of its own once it 
+ * calls a Java function which may yield from Java, see {@link LuaFunction#callmode()}. 
  *   
  * @see LuaValue
  * @see JsePlatform
@@ -68,18 +74,27 @@ public class LuaThread extends LuaValue {
 	
 	public static LuaValue s_metatable;
 
-	public static int coroutine_count = 0;
+	/* DAN200 START */
+	//public static int coroutine_count = 0;
+	/* DAN200 END */
 
 	/** Interval at which to check for lua threads that are no longer referenced. 
 	 * This can be changed by Java startup code if desired.
 	 */
 	static long thread_orphan_check_interval = 30000;
 	
-	private static final int STATUS_INITIAL       = 0;
-	private static final int STATUS_SUSPENDED     = 1;
-	private static final int STATUS_RUNNING       = 2;
-	private static final int STATUS_NORMAL        = 3;
-	private static final int STATUS_DEAD          = 4;
+	/* DAN200 START */
+	//private static final int STATUS_INITIAL       = 0;
+	//private static final int STATUS_SUSPENDED     = 1;
+	//private static final int STATUS_RUNNING       = 2;
+	//private static final int STATUS_NORMAL        = 3;
+	//private static final int STATUS_DEAD          = 4;
+	static final int STATUS_INITIAL       = 0;
+	static final int STATUS_SUSPENDED     = 1;
+	static final int STATUS_RUNNING       = 2;
+	static final int STATUS_NORMAL        = 3;
+	static final int STATUS_DEAD          = 4;
+	/* DAN200 END */
 	private static final String[] STATUS_NAMES = { 
 		"suspended", 
 		"suspended", 
@@ -88,32 +103,224 @@ public class LuaThread extends LuaValue {
 		"dead",};
 	
 	private LuaValue env;
-	private final State state;
+	/* DAN200 START */
+	//private final State state;
+	final State state;
+	/* DAN200 END */
 
 	/** Field to hold state of error condition during debug hook function calls. */
 	public LuaValue err;
 	
-	final CallStack callstack = new CallStack();
+	/* DAN200 START */
+	//final CallStack callstack = new CallStack();
+	final CallStack callstack = new CallStack(this);
+	/* DAN200 END */
 	
 	public static final int        MAX_CALLSTACK = 256;
+	/* DAN200 START */
+	/** Number of call depths for which a spare frame is kept, see {@link CallStack#takeFrame(int)} */
+	static final int               SPARE_FRAMES  = 64;
 	
-	private static final LuaThread main_thread = new LuaThread();
+	//private static final LuaThread main_thread = new LuaThread();
 	
 	// state of running thread including call stack
-	private static LuaThread       running_thread    = main_thread;
+	//private static LuaThread       running_thread    = main_thread;
+
+	/**
+	 * The main thread, running thread, string metatable and memory use of one set of globals.
+	 * <p>
+	 * Each Java thread runs lua code in the context set with {@link #setContext(Context)}, 
+	 * or in a shared default context if none was set.  Giving each set of globals a context 
+	 * of its own lets them be run on different Java threads at the same time.  Coroutines 
+	 * belong to the context they were created in. 
+	 */
+	public static final class Context {
+		final LuaThread main_thread;
+		LuaThread       running_thread;
+		LuaValue        string_metatable;
+		int             coroutine_count = 0;
+		volatile LuaValue interrupt_hook;
+		boolean         in_interrupt = false;
+		long            memory_limit = 0;
+		long            memory_used = 0;
+		long            small_pending = 0;
+		final Allocation allocations = new Allocation();
+		final ReferenceQueue released = new ReferenceQueue();
+
+		public Context() {
+			main_thread = new LuaThread(this);
+			running_thread = main_thread;
+		}
+
+		/**
+		 * Set the most memory lua code in this context may hold in strings, tables and buffers, 
+		 * see {@link LuaThread#allocated(Object, long)}.  Allocations which would go 
+		 * over it raise the lua error "not enough memory".  Garbage counts until the JVM 
+		 * collects it, which this never forces, so the limit should be well above the size 
+		 * of the young generation.
+		 * @param limit the limit in bytes, or 0 for no limit 
+		 */
+		public synchronized void setMemoryLimit(long limit) {
+			memory_limit = limit;
+		}
+
+		/**
+		 * Get the memory limit set with {@link #setMemoryLimit(long)}.
+		 * @return the limit in bytes, or 0 for no limit
+		 */
+		public synchronized long getMemoryLimit() {
+			return memory_limit;
+		}
+
+		/**
+		 * Get the size of the arrays and tables lua code in this context has allocated, 
+		 * less those which have been garbage collected. 
+		 * @return the memory used in bytes
+		 */
+		public synchronized long getMemoryUsed() {
+			release();
+			return memory_used;
+		}
+
+		/**
+		 * Check size more bytes fit under the memory limit, after releasing the arrays the 
+		 * garbage collector has already queued.  This never waits for or asks for a collection, 
+		 * so a context which holds too much fails at once and other contexts are not held up. 
+		 */
+		synchronized void reserve(long size) {
+			if (memory_limit > 0 && memory_used + size > memory_limit) {
+				release();
+				if (memory_used + size > memory_limit)
+					throw new LuaError("not enough memory");
+			}
+		}
+
+		synchronized void track(Object array, long size) {
+			reserve(size);
+			release();
+			new Allocation(array, size, this);
+		}
+
+		/**
+		 * Count a small array or object.  These are added up and counted together once they 
+		 * reach {@link LuaThread#MEMORY_TRACK_MIN} bytes, and released when the one which 
+		 * completed the batch is garbage collected, so the count is approximate but costs no 
+		 * reference per object.  Threads without a context of their own share the default 
+		 * one, so the pending total is locked like the rest of the count. 
+		 */
+		void charge(Object object, long size) {
+			long pending;
+			synchronized (this) {
+				pending = small_pending + size;
+				if (pending < MEMORY_TRACK_MIN) {
+					small_pending = pending;
+					return;
+				}
+				small_pending = 0;
+			}
+			track(object, pending);
+		}
+
+		private void release() {
+			Allocation a;
+			while ((a = (Allocation) released.poll()) != null)
+				a.unlink(this);
+		}
+
+		/**
+		 * Set a function for lua code running in this context to call at every safepoint, 
+		 * which are calls to lua functions and backwards jumps.
+		 * <p>
+		 * Unlike a debug hook this does not need the debug library, and costs nothing 
+		 * while no hook is set.  It may be set from any Java thread, so can be used to 
+		 * interrupt code which runs for too long.
+		 * @param hook function to call with no arguments, or null to stop calling it. 
+		 */
+		public void setInterruptHook(LuaValue hook) {
+			synchronized (Context.class) {
+				if ((interrupt_hook != null) != (hook != null)) {
+					interrupt_count += hook != null? 1: -1;
+					interrupt_pending = interrupt_count > 0;
+				}
+				interrupt_hook = hook;
+			}
+		}
+	}
+
+	/**
+	 * An array counted against the memory used by a context, 
+	 * kept in a list until it is garbage collected.
+	 */
+	static final class Allocation extends WeakReference {
+		final long size;
+		Allocation prev, next;
+
+		/** The head of an empty list */
+		Allocation() {
+			super(null);
+			size = 0;
+			prev = next = this;
+		}
+
+		Allocation(Object array, long size, Context c) {
+			super(array, c.released);
+			this.size = size;
+			prev = c.allocations;
+			next = prev.next;
+			prev.next = next.prev = this;
+			c.memory_used += size;
+		}
+
+		void unlink(Context c) {
+			if (next != null) {
+				prev.next = next;
+				next.prev = prev;
+				prev = next = null;
+				c.memory_used -= size;
+			}
+		}
+	}
+
+	private static final Context default_context = new Context();
+	private static final ThreadLocal current_context = new ThreadLocal();
+
+	/** Arrays smaller than this are counted in batches rather than one by one, see {@link #allocated(Object, long)} */
+	public static final int MEMORY_TRACK_MIN = 1024;
+
+	/** Bytes counted for the header of each array or object, on top of its contents */
+	public static final int OBJECT_OVERHEAD = 16;
+
+	/** Whether any context has an interrupt hook, checked by lua code at each safepoint. */
+	static volatile boolean interrupt_pending = false;
+	private static int interrupt_count = 0;
+	/* DAN200 END */
 
 	/** Interval to check for LuaThread dereferencing.  */
 	public static int GC_INTERVAL = 30000;
 
+	/* DAN200 START */
+	/** Whether coroutines created from now on should be stackless where possible.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean stackless_coroutines = false;
+	/* DAN200 END */
+
 	/** Thread-local used by DebugLib to store debugging state.  */
 	public Object debugState;
 
 	/* DAN200 START */
-    private Vector children = new Vector();
+    Vector children = new Vector();
     /* DAN200 END */
 
+	/* DAN200 START */
+	/** The context this thread belongs to */
+	final Context context;
+
 	/** Private constructor for main thread only */
-	private LuaThread() {
+	//private LuaThread() {
+	private LuaThread(Context context) {
+		this.context = context;
+	/* DAN200 END */
 		state = new State(this, null);
 		state.status = STATUS_RUNNING;
 	}
@@ -125,6 +332,9 @@ public class LuaThread extends LuaValue {
 	 */
 	public LuaThread(LuaValue func, LuaValue env) {	
 		LuaValue.assert_(func != null, "function cannot be null");
+		/* DAN200 START */
+		this.context = getContext();
+		/* DAN200 END */
 		this.env = env;
 		state = new State(this, func);
 	}
@@ -170,15 +380,121 @@ public class LuaThread extends LuaValue {
 	 * @return {@link LuaThread} that is currenly running
 	 */
 	public static LuaThread getRunning() {
-		return running_thread;
+		/* DAN200 START */
+		//return running_thread;
+		return getContext().running_thread;
+		/* DAN200 END */
 	}
+
+	/* DAN200 START */
+	/**
+	 * Get the context lua code runs in on the current Java thread.
+	 * @return the context last set on this Java thread, or the default context
+	 */
+	public static Context getContext() {
+		Context c = (Context) current_context.get();
+		return c != null? c: default_context;
+	}
+
+	/**
+	 * Set the context lua code runs in on the current Java thread. 
+	 * @param context the new context, or null for the default context.
+	 * @return the previous context.
+	 */
+	public static Context setContext(Context context) {
+		Context prev = getContext();
+		current_context.set(context);
+		return prev;
+	}
+
+	/**
+	 * Check for an interrupt at a safepoint of code compiled to Java bytecode,
+	 * which has no access to {@link #interrupt_pending}.
+	 * @see Context#setInterruptHook(LuaValue)
+	 */
+	public static void safepoint() {
+		if (interrupt_pending)
+			onInterrupt();
+	}
+
+	/**
+	 * Called by lua code at a safepoint while {@link #interrupt_pending} is set, 
+	 * to call the interrupt hook of the current context if it has one.
+	 */
+	static void onInterrupt() {
+		Context c = getContext();
+		LuaValue hook = c.interrupt_hook;
+		if (hook != null && !c.in_interrupt) {
+			c.in_interrupt = true;
+			try {
+				hook.call();
+			} finally {
+				c.in_interrupt = false;
+			}
+		}
+	}
+
+	/**
+	 * Count an array or object allocated by lua code against the memory used by the current 
+	 * context, until it is garbage collected.  Those of fewer than {@link #MEMORY_TRACK_MIN} 
+	 * bytes are added up and counted in batches, so small strings and tables cost little to 
+	 * count, and the count of them is approximate. 
+	 * <p>
+	 * Call this after allocating the array and before making it reachable, 
+	 * so nothing is left half changed if the limit is reached. 
+	 * @param array the array or object
+	 * @param size its size in bytes, not counting {@link #OBJECT_OVERHEAD}
+	 * @throws LuaError "not enough memory" if the context would go over its memory limit 
+	 * @see Context#setMemoryLimit(long)
+	 */
+	public static void allocated(Object array, long size) {
+		if (current_context == null || default_context == null)
+			return; // constants made while the classes are being initialized
+		Context c = getContext();
+		if (size >= MEMORY_TRACK_MIN)
+			c.track(array, size + OBJECT_OVERHEAD);
+		else
+			c.charge(array, size + OBJECT_OVERHEAD);
+	}
+
+	/**
+	 * Check an array could be allocated without the current context going over its memory limit, 
+	 * before allocating it.  This is for arrays whose size lua code chooses, which could be 
+	 * too big for the Java heap, and does not count the array, see {@link #allocated(Object, long)}.
+	 * @param size the size of the array in bytes
+	 * @throws LuaError "not enough memory" if the context would go over its memory limit
+	 */
+	public static void allocating(long size) {
+		if (current_context != null && default_context != null)
+			getContext().reserve(size);
+	}
+
+	/**
+	 * Get the metatable shared by all strings in the current context.
+	 * @return the string metatable, or null if there is none 
+	 */
+	public static LuaValue getStringMetatable() {
+		return getContext().string_metatable;
+	}
+
+	/**
+	 * Set the metatable shared by all strings in the current context.
+	 * @param mt the new string metatable, or null for none
+	 */
+	public static void setStringMetatable(LuaValue mt) {
+		getContext().string_metatable = mt;
+	}
+	/* DAN200 END */
 	
 	/**
 	 * Test if this is the main thread 
 	 * @return true if this is the main thread
 	 */
 	public static boolean isMainThread(LuaThread r) {		
-		return r == main_thread;
+		/* DAN200 START */
+		//return r == main_thread;
+		return r == r.context.main_thread;
+		/* DAN200 END */
 	}
 	
 	/** 
@@ -188,14 +504,20 @@ public class LuaThread extends LuaValue {
 	 * @param globals The global variables for the main ghread. 
 	 */
 	public static void setGlobals(LuaValue globals) {
-		running_thread.env = globals;
+		/* DAN200 START */
+		//running_thread.env = globals;
+		getRunning().env = globals;
+		/* DAN200 END */
 	}
 	
 	/** Get the current thread's environment 
 	 * @return {@link LuaValue} containing the global variables of the current thread.
 	 */
 	public static LuaValue getGlobals() {
-		LuaValue e = running_thread.env;
+		/* DAN200 START */
+		//LuaValue e = running_thread.env;
+		LuaValue e = getRunning().env;
+		/* DAN200 END */
 		return e!=null? e: LuaValue.error("LuaThread.setGlobals() not initialized");
 	}
 
@@ -206,18 +528,49 @@ public class LuaThread extends LuaValue {
 	 * @see DebugLib
 	 */
 	public static final CallStack onCall(LuaFunction function) {
-		CallStack cs = running_thread.callstack;
+		/* DAN200 START */
+		//CallStack cs = running_thread.callstack;
+		CallStack cs = getRunning().callstack;
+		/* DAN200 END */
 		cs.onCall(function);
 		return cs;
 	}
 
+	/* DAN200 START */
+	/**
+	 * Get the source and line being run at a level of the call stack, for error messages.
+	 * @param level 0 for the innermost function on the call stack, 1 for the one calling it.
+	 * @return "source:line" for lua functions, the function's name otherwise, or null if 
+	 * outside of range of active stack
+	 */
+	public static String fileline(int level) {
+		CallStack cs = getRunning().callstack;
+		return cs.sourceline(cs.calls-1-level);
+	}
+
+	/**
+	 * Get the source and line being run by the innermost lua function on the call stack.
+	 * @return "source:line", or null if there is none
+	 */
+	public static String fileline() {
+		CallStack cs = getRunning().callstack;
+		for (int n = cs.calls; --n >= 0; )
+			if (cs.frames[n] != null)
+				return cs.sourceline(n);
+		return fileline(0);
+	}
+	/* DAN200 END */
+
 	/**
 	 * Get the function called as a specific location on the stack.
 	 * @param level 1 for the function calling this one, 2 for the next one.
 	 * @return LuaFunction on the call stack, or null if outside of range of active stack
 	 */
 	public static final LuaFunction getCallstackFunction(int level) {
-		return running_thread.callstack.getFunction(level);
+		/* DAN200 START */
+		//return running_thread.callstack.getFunction(level);
+		return getRunning().callstack.getFunction(level);
+		/* DAN200 END */
 	}
 
 	/**
@@ -226,8 +579,13 @@ public class LuaThread extends LuaValue {
 	 * @return the previous error function.
 	 */
 	public static LuaValue setErrorFunc(LuaValue errfunc) {
-		LuaValue prev = running_thread.err;
-		running_thread.err = errfunc;
+		/* DAN200 START */
+		//LuaValue prev = running_thread.err;
+		//running_thread.err = errfunc;
+		LuaThread running = getRunning();
+		LuaValue prev = running.err;
+		running.err = errfunc;
+		/* DAN200 END */
 		return prev;
 	}
 
@@ -237,11 +595,29 @@ public class LuaThread extends LuaValue {
 	 * @return {@link Varargs} provided as arguments to {@link #resume(Varargs)}
 	 */
 	public static Varargs yield(Varargs args) {
-		State s = running_thread.state;
+		/* DAN200 START */
+		//State s = running_thread.state;
+		State s = getRunning().state;
+		/* DAN200 END */
 		if (s.function == null)
 			throw new LuaError("cannot yield main thread");
+		/* DAN200 START */
+		if (s.stackless && !s.migrated)
+			throw new LuaError("attempt to yield across metamethod/C-call boundary");
+		/* DAN200 END */
 		return s.lua_yield(args);
 	}
+
+	/* DAN200 START */
+	/** Test if the running thread can be suspended by {@link #yield(Varargs)}
+	 * 
+	 * @return false for the main thread, and stackless coroutines without a Java thread of their own
+	 */
+	public static boolean canYield() {
+		State s = getRunning().state;
+		return s.function != null && !(s.stackless && !s.migrated);
+	}
+	/* DAN200 END */
 	
 	/** Start or resume this thread 
 	 * 
@@ -290,18 +666,49 @@ public class LuaThread extends LuaValue {
 		int status = LuaThread.STATUS_INITIAL;
         /* DAN200 START */
         boolean abandoned = false;
+
+		// A stackless coroutine runs on the thread which resumes it until it is migrated onto a 
+		// thread of its own.  While suspended, or waiting to be migrated, it keeps the frame which 
+		// the values it is resumed with are for, and the call it was about to make.
+		final boolean stackless;
+		boolean migrated = false;
+		boolean suspended = false;
+		LuaClosure.Frame frame = null;
+		LuaValue call = null;
+		Varargs callargs = LuaValue.NONE;
+
+		final Context context;
         /* DAN200 END */
 
 		State(LuaThread lua_thread, LuaValue function) {
 			this.lua_thread = new WeakReference(lua_thread);
 			this.function = function;
+			/* DAN200 START */
+			this.context = lua_thread.context;
+			this.stackless = stackless_coroutines && function instanceof LuaClosure;
+			/* DAN200 END */
 		}
 		
 		public synchronized void run() {
 			try {
 				Varargs a = this.args;
 				this.args = LuaValue.NONE;
-				this.result = function.invoke(a);
+				/* DAN200 START */
+				current_context.set(this.context);
+				//this.result = function.invoke(a);
+				if (this.migrated) {
+					// make the call which needed this thread, then carry on with the frames
+					LuaClosure.Frame f = this.frame;
+					LuaValue c = this.call;
+					Varargs ca = this.callargs;
+					this.frame = null;
+					this.call = null;
+					this.callargs = LuaValue.NONE;
+					this.result = LuaClosure.execute(f, c, ca, null, null).eval();
+				} else {
+					this.result = function.invoke(a);
+				}
+				/* DAN200 END */
 			} catch (Throwable t) {
 				this.error = t.getMessage();
 			} finally {
@@ -311,13 +718,28 @@ public class LuaThread extends LuaValue {
 		}
 
 		synchronized Varargs lua_resume(LuaThread new_thread, Varargs args) {
-			LuaThread previous_thread = LuaThread.running_thread;
+			/* DAN200 START */
+			//LuaThread previous_thread = LuaThread.running_thread;
+			LuaThread previous_thread = context.running_thread;
 			try {
-				LuaThread.running_thread = new_thread;
+				//LuaThread.running_thread = new_thread;
+				context.running_thread = new_thread;
+				/* DAN200 END */
 				this.args = args;
-				if (this.status == STATUS_INITIAL) {
+				/* DAN200 START */
+				//if (this.status == STATUS_INITIAL) {
+				if (this.stackless && !this.migrated) {
+					Varargs r = lua_resume_stackless(previous_thread, args);
+					if (!this.migrated)
+						return r;
+				}
+				if (this.status == STATUS_INITIAL || this.migrated && this.call != null) {
+				/* DAN200 END */
 					this.status = STATUS_RUNNING; 
-					new Thread(this, "Coroutine-"+(++coroutine_count)).start();
+					/* DAN200 START */
+					//new Thread(this, "Coroutine-"+(++coroutine_count)).start();
+					new Thread(this, "Coroutine-"+(++context.coroutine_count)).start();
+					/* DAN200 END */
 				} else {
 					this.notify();
 				}
@@ -330,14 +752,77 @@ public class LuaThread extends LuaValue {
 			} catch (InterruptedException ie) {
 				throw new OrphanedThread();
 			} finally {
-				running_thread = previous_thread;
-				running_thread.state.status =STATUS_RUNNING;
+				/* DAN200 START */
+				//running_thread = previous_thread;
+				//running_thread.state.status =STATUS_RUNNING;
+				context.running_thread = previous_thread;
+				previous_thread.state.status =STATUS_RUNNING;
+				/* DAN200 END */
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
 				this.error = null;
 			}
 		}
 
+		/* DAN200 START */
+		private Varargs lua_resume_stackless(LuaThread previous_thread, Varargs args) {
+			boolean initial = this.status == STATUS_INITIAL;
+			previous_thread.state.status = STATUS_NORMAL;
+			this.status = STATUS_RUNNING;
+			try {
+				LuaClosure.Frame f = this.frame;
+				this.frame = null;
+				Varargs r = initial?
+					LuaClosure.execute(null, function, args, null, this):
+					LuaClosure.execute(f, null, args, null, this);
+				if (this.suspended) {
+					this.suspended = false;
+					this.status = STATUS_SUSPENDED;
+				} else if (!this.migrated) {
+					this.status = STATUS_DEAD;
+				}
+				return LuaValue.varargsOf(LuaValue.TRUE, r);
+			} catch (OrphanedThread t) {
+				this.status = STATUS_DEAD;
+				throw t;
+			} catch (Throwable t) {
+				this.status = STATUS_DEAD;
+				String m = t.getMessage();
+				return m != null?
+					LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(m)):
+					LuaValue.varargsOf(LuaValue.TRUE, LuaValue.NONE);
+			}
+		}
+
+		/** Called by {@link LuaClosure} when a stackless coroutine yields 
+		 * 
+		 * @param f frame to deliver the values the coroutine is resumed with to 
+		 * @param args values to yield
+		 * @return args
+		 */
+		Varargs suspend(LuaClosure.Frame f, Varargs args) {
+			this.frame = f;
+			this.suspended = true;
+			return args;
+		}
+
+		/** Called by {@link LuaClosure} when a stackless coroutine calls a function which
+		 * needs a Java thread to yield on.
+		 * 
+		 * @param f frame to deliver the results of the call to  
+		 * @param call function to call 
+		 * @param args arguments for the call
+		 * @return none
+		 */
+		Varargs migrate(LuaClosure.Frame f, LuaValue call, Varargs args) {
+			this.frame = f;
+			this.call = call;
+			this.callargs = args;
+			this.migrated = true;
+			return LuaValue.NONE;
+		}
+		/* DAN200 END */
+
 		synchronized Varargs lua_yield(Varargs args) {
 			try {
 				this.result = args;
@@ -365,13 +850,15 @@ public class LuaThread extends LuaValue {
 
 		/* DAN200 START */
         synchronized void lua_abandon(LuaThread thread) {
-            LuaThread current = LuaThread.running_thread;
+            LuaThread current = context.running_thread;
 
             try {
                 current.state.status = STATUS_NORMAL;
                 this.abandoned = true;
-                if(this.status == STATUS_INITIAL) {
+                //if(this.status == STATUS_INITIAL) {
+                if(this.status == STATUS_INITIAL || this.stackless && !this.migrated) {
                     this.status = STATUS_DEAD;
+                    this.frame = null;
                 } else {
                     this.notify();
                     this.wait();
@@ -391,25 +878,94 @@ public class LuaThread extends LuaValue {
 	public static class CallStack {
 		final LuaFunction[]     functions     = new LuaFunction[MAX_CALLSTACK];
 		int                     calls         = 0;
+		/* DAN200 START */
+		final LuaThread         thread;
+		final LuaClosure.Frame[] frames       = new LuaClosure.Frame[MAX_CALLSTACK];
+		private LuaClosure.Frame[] spare_frames;
+
+		CallStack(LuaThread thread) {
+			this.thread = thread;
+		}
+		/* DAN200 END */
 
 		/**
 		 * Method to indicate the start of a call
 		 * @see DebugLib
 		 */
 		final void onCall(LuaFunction function) {
+			/* DAN200 START */
+			if (calls >= MAX_CALLSTACK)
+				throw new LuaError("stack overflow");
+			/* DAN200 END */
 			functions[calls++] = function;
 			if (DebugLib.DEBUG_ENABLED) 
-				DebugLib.debugOnCall(running_thread, calls, function);
+				/* DAN200 START */
+				//DebugLib.debugOnCall(running_thread, calls, function);
+				DebugLib.debugOnCall(thread, calls, function);
+				/* DAN200 END */
 		}
 		
+		/* DAN200 START */
+		/**
+		 * Method to indicate the start of a call to a lua closure, which also records 
+		 * the frame so that its current line can be found without the debug library.
+		 * @param frame Frame of the closure being called
+		 */
+		final void onCall(LuaClosure.Frame frame) {
+			onCall(frame.closure);
+			frames[calls-1] = frame;
+		}
+
+		/**
+		 * Get the frame left behind by the last closure to return from the current depth, 
+		 * so a call about to be made at that depth can use it again.
+		 * @param size number of registers needed
+		 * @return frame with at least {@code size} registers, all nil, or null if there is none
+		 */
+		final LuaClosure.Frame takeFrame(int size) {
+			LuaClosure.Frame[] spare = spare_frames;
+			if (spare != null && calls < SPARE_FRAMES) {
+				LuaClosure.Frame f = spare[calls];
+				if (f != null && f.stack.length >= size) {
+					spare[calls] = null;
+					return f;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Hand back the frame of a closure which is returning, so the next call at the 
+		 * same depth can use it. Must only be called when nothing else can still see the 
+		 * frame's registers, and before {@link #onReturn()}.
+		 * @param f frame of the returning closure
+		 * @param used number of registers which may have been written to
+		 */
+		final void giveFrame(LuaClosure.Frame f, int used) {
+			int depth = calls-1;
+			if (depth < 0 || depth >= SPARE_FRAMES)
+				return;
+			if (spare_frames == null)
+				spare_frames = new LuaClosure.Frame[SPARE_FRAMES];
+			System.arraycopy(LuaValue.NILS, 0, f.stack, 0, used);
+			spare_frames[depth] = f;
+		}
+		/* DAN200 END */
+
 		/**
 		 * Method to signal the end of a call
 		 * @see DebugLib
 		 */
 		public final void onReturn() {
 			functions[--calls] = null;
+			/* DAN200 START */
+			frames[calls] = null;
+			/* DAN200 END */
 			if (DebugLib.DEBUG_ENABLED) 
-				DebugLib.debugOnReturn(running_thread, calls);
+				/* DAN200 START */
+				//DebugLib.debugOnReturn(running_thread, calls);
+				DebugLib.debugOnReturn(thread, calls);
+				/* DAN200 END */
 		}
 		
 		/**
@@ -429,5 +985,13 @@ public class LuaThread extends LuaValue {
 		LuaFunction getFunction(int level) {
 			return level>0 && level<=calls? functions[calls-level]: null;
 		}
+
+		/* DAN200 START */
+		String sourceline(int n) {
+			if (n < 0 || n >= calls) 
+				return null;
+			return frames[n] != null? frames[n].sourceline(): functions[n].tojstring();
+		}
+		/* DAN200 END */
 	}
 }
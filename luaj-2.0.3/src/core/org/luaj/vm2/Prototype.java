@@ -51,6 +51,27 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* DAN200 START */
+	/* inline caches for table lookups with constant string keys, made the first time the function runs */
+	public Cache cache;
+
+	/**
+	 * For each instruction, the key object and hash slot where a table lookup last found 
+	 * its constant key.  The two arrays may be written by several threads at once, so an 
+	 * entry's key and slot may come from different lookups; this is harmless, since 
+	 * {@link LuaTable#get(LuaValue, Cache, int)} only trusts a slot which holds the very 
+	 * key object remembered for the instruction.
+	 */
+	public static final class Cache {
+		final LuaValue[] keys;
+		final int[] slots;
+
+		Cache(int n) {
+			keys = new LuaValue[n];
+			slots = new int[n];
+		}
+	}
+	/* DAN200 END */
 
 	
 	public String toString() {
@@ -0,0 +1,618 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.CoroutineLib;
+
+/**
+ * Saves lua values, and everything reachable from them, to a stream,
+ * so they can be restored into another set of globals later.
+ * <p>
+ * Tables, closures, upvalues and coroutines keep their identity, so a value
+ * which is reachable in several ways is still shared once restored.  Suspended
+ * coroutines are saved with their call frames, so can only be saved while they
+ * keep them on the heap: they must be stackless, and not waiting for a Java
+ * function on a thread of their own.  See {@link LuaThread#stackless_coroutines}.
+ * <p>
+ * Java functions can't be saved, so the tables and functions reachable from
+ * a table of libraries are given names, and are saved by name.  When restoring,
+ * the libraries must have been created the same way, so that the names refer to
+ * equivalent values.  Named tables are saved with their contents, and are
+ * refilled with them when restored.  Saving fails if any other Java function,
+ * or any userdata, can be reached.
+ */
+public class Snapshot {
+
+	/** Version of the format written by {@link #save(LuaValue[], DataOutputStream)} */
+	public static final int FORMAT = 1;
+
+	private static final int T_NULL    = 0;
+	private static final int T_NIL     = 1;
+	private static final int T_FALSE   = 2;
+	private static final int T_TRUE    = 3;
+	private static final int T_INT     = 4;
+	private static final int T_DOUBLE  = 5;
+	private static final int T_REF     = 6;
+	private static final int T_NAMED   = 7;
+	private static final int T_STRING  = 8;
+	private static final int T_TABLE   = 9;
+	private static final int T_CLOSURE = 10;
+	private static final int T_THREAD  = 11;
+	private static final int T_WRAPPED = 12;
+	private static final int T_UPVALUE = 13;
+	private static final int T_ARRAY   = 14;
+
+	private static final int P_REF     = 0;
+	private static final int P_CHILD   = 1;
+	private static final int P_DUMP    = 2;
+
+	/** Names of library values, by value */
+	private final Hashtable names = new Hashtable();
+
+	/** Library values, by name */
+	private final Hashtable values = new Hashtable();
+
+	/**
+	 * Name the tables and functions reachable from a table of libraries.
+	 * <p>
+	 * This must be done before any lua code has run, as it assumes that tables
+	 * and functions reached the same way will be equivalent when restoring.
+	 * @param libraries table of the values to name, such as the globals.
+	 */
+	public Snapshot(LuaValue libraries) {
+		index(libraries, null);
+	}
+
+	private void index(LuaValue t, String prefix) {
+		for ( LuaValue k = LuaValue.NIL; ; ) {
+			Varargs n = t.next(k);
+			if ( (k = n.arg1()).isnil() )
+				break;
+			LuaValue v = n.arg(2);
+			if ( !k.isstring() || !(v.istable() || v.isfunction()) || names.containsKey(v) )
+				continue;
+			String name = prefix != null? prefix + "." + k.tojstring(): k.tojstring();
+			names.put(v, name);
+			values.put(name, v);
+			if ( v.istable() )
+				index(v, name);
+		}
+	}
+
+	/**
+	 * Save some values, and everything reachable from them.
+	 * @param roots the values to save
+	 * @param out stream to write to
+	 * @throws IOException if a value can't be saved, or the stream can't be written to.
+	 */
+	public void save(LuaValue[] roots, DataOutputStream out) throws IOException {
+		Writer w = new Writer(out);
+		out.writeInt(FORMAT);
+		out.writeInt(roots.length);
+		for ( int i=0; i<roots.length; i++ )
+			w.write(roots[i]);
+
+		// writing the contents of an object may find more of them
+		for ( int i=0; i<w.objects.size(); i++ )
+			w.writeContents(w.objects.elementAt(i));
+	}
+
+	/**
+	 * Restore values saved by {@link #save(LuaValue[], DataOutputStream)}.
+	 * <p>
+	 * This must be done in the context the values are to belong to. If it fails,
+	 * the named tables may have been partly refilled, so the libraries should not
+	 * be used any more.
+	 * @param in stream to read from
+	 * @return the roots that were saved
+	 * @throws IOException if the values can't be restored, or the stream can't be read from.
+	 */
+	public LuaValue[] restore(DataInputStream in) throws IOException {
+		if ( in.readInt() != FORMAT )
+			throw new IOException("unsupported format");
+		Reader r = new Reader(in);
+		LuaValue[] roots = new LuaValue[in.readInt()];
+		for ( int i=0; i<roots.length; i++ )
+			roots[i] = r.readValue(false);
+		for ( int i=0; i<r.objects.size(); i++ )
+			r.readContents(r.objects.elementAt(i));
+		return roots;
+	}
+
+	private static IOException cannotSave(String what) {
+		return new IOException("cannot save "+what);
+	}
+
+	private static IOException corrupt() {
+		return new IOException("snapshot is corrupt");
+	}
+
+	private class Writer {
+		final DataOutputStream out;
+		final Hashtable ids = new Hashtable();
+		final Vector objects = new Vector();
+		final Hashtable protos = new Hashtable();
+		final Hashtable children = new Hashtable();
+
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		/** Write a value, or the parts of an object needed to create it, leaving its contents for later */
+		void write(Object o) throws IOException {
+			if ( o == null ) {
+				out.writeByte(T_NULL);
+				return;
+			}
+			if ( o instanceof LuaValue ) {
+				LuaValue v = (LuaValue) o;
+				switch ( v.type() ) {
+				case LuaValue.TNONE:
+				case LuaValue.TNIL:
+					out.writeByte(T_NIL);
+					return;
+				case LuaValue.TBOOLEAN:
+					out.writeByte(v.toboolean()? T_TRUE: T_FALSE);
+					return;
+				case LuaValue.TINT:
+					out.writeByte(T_INT);
+					out.writeInt(v.toint());
+					return;
+				case LuaValue.TNUMBER:
+					out.writeByte(T_DOUBLE);
+					out.writeDouble(v.todouble());
+					return;
+				}
+			}
+
+			Integer id = (Integer) ids.get(o);
+			if ( id != null ) {
+				out.writeByte(T_REF);
+				out.writeInt(id.intValue());
+				return;
+			}
+			ids.put(o, new Integer(objects.size()));
+			objects.addElement(o);
+
+			String name = (String) names.get(o);
+			if ( name != null ) {
+				out.writeByte(T_NAMED);
+				out.writeUTF(name);
+			} else if ( o instanceof LuaString ) {
+				LuaString s = (LuaString) o;
+				out.writeByte(T_STRING);
+				out.writeInt(s.m_length);
+				out.write(s.m_bytes, s.m_offset, s.m_length);
+			} else if ( o instanceof LuaTable ) {
+				LuaTable t = (LuaTable) o;
+				out.writeByte(T_TABLE);
+				out.writeByte(t instanceof WeakTable? mode(t.m_metatable): 0);
+			} else if ( o instanceof LuaClosure ) {
+				out.writeByte(T_CLOSURE);
+				writePrototype(((LuaClosure) o).p);
+			} else if ( o instanceof LuaThread ) {
+				LuaThread.State s = ((LuaThread) o).state;
+				switch ( s.status ) {
+				case LuaThread.STATUS_SUSPENDED:
+					if ( !s.stackless || s.migrated || s.frame == null || s.call != null )
+						throw cannotSave("coroutine waiting for a Java function");
+					break;
+				case LuaThread.STATUS_RUNNING:
+				case LuaThread.STATUS_NORMAL:
+					throw cannotSave("running coroutine");
+				}
+				out.writeByte(T_THREAD);
+				out.writeByte(s.status);
+				write(s.function);
+			} else if ( o instanceof UpValue ) {
+				out.writeByte(T_UPVALUE);
+			} else if ( o instanceof LuaValue[] ) {
+				out.writeByte(T_ARRAY);
+				out.writeInt(((LuaValue[]) o).length);
+			} else if ( CoroutineLib.getWrapped(o) != null ) {
+				out.writeByte(T_WRAPPED);
+				write(CoroutineLib.getWrapped(o));
+			} else {
+				throw cannotSave(o instanceof LuaValue? ((LuaValue) o).typename(): o.getClass().getName());
+			}
+		}
+
+		/** Flags for weak keys and values, from the mode a {@link WeakTable} was created with */
+		private int mode(LuaValue mt) {
+			LuaValue mode = mt != null? mt.rawget(LuaValue.MODE): LuaValue.NIL;
+			String m = mode.isstring()? mode.tojstring(): "";
+			return (m.indexOf('k')>=0? 1: 0) | (m.indexOf('v')>=0? 2: 0);
+		}
+
+		private void writePrototype(Prototype p) throws IOException {
+			Integer id = (Integer) protos.get(p);
+			if ( id != null ) {
+				out.writeByte(P_REF);
+				out.writeInt(id.intValue());
+				return;
+			}
+			id = new Integer(protos.size());
+			protos.put(p, id);
+
+			// a function defined inside one which has already been written is found through it
+			int[] child = (int[]) children.get(p);
+			if ( child != null ) {
+				out.writeByte(P_CHILD);
+				out.writeInt(child[0]);
+				out.writeInt(child[1]);
+			} else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DumpState.dump(p, bytes, false);
+				out.writeByte(P_DUMP);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+			for ( int i=0; i<p.p.length; i++ )
+				if ( !protos.containsKey(p.p[i]) && !children.containsKey(p.p[i]) )
+					children.put(p.p[i], new int[] { id.intValue(), i });
+		}
+
+		/** Write the contents of an object which {@link #write(Object)} left for later */
+		void writeContents(Object o) throws IOException {
+			if ( o instanceof LuaTable ) {
+				LuaTable t = (LuaTable) o;
+				write(t.m_metatable);
+				for ( LuaValue k = LuaValue.NIL; ; ) {
+					Varargs n = t.next(k);
+					if ( (k = n.arg1()).isnil() )
+						break;
+					write(k);
+					write(n.arg(2));
+				}
+				write(LuaValue.NIL);
+			} else if ( o instanceof LuaClosure ) {
+				LuaClosure c = (LuaClosure) o;
+				write(c.getfenv());
+				out.writeInt(c.upValues.length);
+				for ( int i=0; i<c.upValues.length; i++ )
+					write(c.upValues[i]);
+			} else if ( o instanceof LuaThread ) {
+				writeThread((LuaThread) o);
+			} else if ( o instanceof UpValue ) {
+				UpValue u = (UpValue) o;
+				write(u.array);
+				out.writeInt(u.index);
+			} else if ( o instanceof LuaValue[] ) {
+				LuaValue[] a = (LuaValue[]) o;
+				for ( int i=0; i<a.length; i++ )
+					write(a[i]);
+			}
+		}
+
+		private void writeThread(LuaThread t) throws IOException {
+			write(t.getfenv());
+			write(t.err);
+
+			// children are abandoned along with the thread
+			Vector live = new Vector();
+			for ( Enumeration e = t.children.elements(); e.hasMoreElements(); ) {
+				LuaThread c = (LuaThread) ((WeakReference) e.nextElement()).get();
+				if ( c != null && c.state.status != LuaThread.STATUS_DEAD )
+					live.addElement(c);
+			}
+			out.writeInt(live.size());
+			for ( int i=0; i<live.size(); i++ )
+				write(live.elementAt(i));
+
+			// frames of a suspended coroutine, from the outermost in, which match its call stack one to one
+			Vector frames = new Vector();
+			LuaThread.CallStack cs = t.callstack;
+			if ( t.state.status == LuaThread.STATUS_SUSPENDED ) {
+				for ( LuaClosure.Frame f = t.state.frame; f != null; f = f.parent )
+					frames.insertElementAt(f, 0);
+				if ( cs.calls != frames.size() )
+					throw cannotSave("coroutine called from a Java function");
+			}
+			out.writeInt(frames.size());
+			for ( int i=0; i<frames.size(); i++ ) {
+				LuaClosure.Frame f = (LuaClosure.Frame) frames.elementAt(i);
+				if ( f.closure != null ) {
+					if ( cs.functions[i] != f.closure )
+						throw cannotSave("coroutine called from a Java function");
+					out.writeBoolean(true);
+					write(f.closure);
+					write(f.stack);
+					writeVarargs(f.varargs);
+					if ( f.openups != null ) {
+						out.writeInt(f.openups.length);
+						for ( int u=0; u<f.openups.length; u++ )
+							write(f.openups[u]);
+					} else {
+						out.writeInt(-1);
+					}
+					out.writeInt(f.pc);
+					out.writeInt(f.top);
+				} else {
+					out.writeBoolean(false);
+					write(cs.functions[i]);
+				}
+				write(f.olderr);
+			}
+		}
+
+		private void writeVarargs(Varargs v) throws IOException {
+			if ( v instanceof TailcallVarargs )
+				throw cannotSave("tail call");
+			int n = v.narg();
+			out.writeInt(n);
+			for ( int i=1; i<=n; i++ )
+				write(v.arg(i));
+		}
+	}
+
+	private class Reader {
+		final DataInputStream in;
+		final Vector objects = new Vector();
+		final Vector protos = new Vector();
+
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		/** Read a value, creating objects as they are first seen */
+		Object read() throws IOException {
+			int tag = in.readUnsignedByte();
+			switch ( tag ) {
+			case T_NULL: return null;
+			case T_NIL: return LuaValue.NIL;
+			case T_FALSE: return LuaValue.FALSE;
+			case T_TRUE: return LuaValue.TRUE;
+			case T_INT: return LuaValue.valueOf(in.readInt());
+			case T_DOUBLE: return LuaValue.valueOf(in.readDouble());
+			case T_REF: {
+				int id = in.readInt();
+				if ( id < 0 || id >= objects.size() )
+					throw corrupt();
+				return objects.elementAt(id);
+			}
+			}
+
+			// objects are numbered in the order they were first seen, even if creating one reads another
+			int id = objects.size();
+			objects.addElement(null);
+			Object o;
+			switch ( tag ) {
+			case T_NAMED: {
+				String name = in.readUTF();
+				o = values.get(name);
+				if ( o == null )
+					throw new IOException("cannot restore "+name);
+				if ( o instanceof LuaTable )
+					clear((LuaTable) o);
+				break;
+			}
+			case T_STRING: {
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				o = LuaString.valueOf(b);
+				break;
+			}
+			case T_TABLE: {
+				int mode = in.readUnsignedByte();
+				o = mode != 0? new WeakTable((mode&1) != 0, (mode&2) != 0): new LuaTable();
+				break;
+			}
+			case T_CLOSURE:
+				o = new LuaClosure(readPrototype(), LuaValue.NIL);
+				break;
+			case T_THREAD: {
+				int status = in.readUnsignedByte();
+				LuaThread t = new LuaThread(readValue(false), LuaValue.NIL);
+				switch ( status ) {
+				case LuaThread.STATUS_INITIAL:
+					break;
+				case LuaThread.STATUS_SUSPENDED:
+					if ( !t.state.stackless )
+						throw new IOException("cannot restore coroutine which is not stackless");
+					t.state.status = status;
+					break;
+				case LuaThread.STATUS_DEAD:
+					t.state.status = status;
+					break;
+				default:
+					throw corrupt();
+				}
+				o = t;
+				break;
+			}
+			case T_WRAPPED:
+				o = CoroutineLib.wrap((LuaThread) readType(LuaThread.class));
+				break;
+			case T_UPVALUE:
+				o = new UpValue(null, 0);
+				break;
+			case T_ARRAY: {
+				int n = in.readInt();
+				if ( n < 0 )
+					throw corrupt();
+				o = new LuaValue[n];
+				break;
+			}
+			default:
+				throw corrupt();
+			}
+			objects.setElementAt(o, id);
+			return o;
+		}
+
+		LuaValue readValue(boolean nullable) throws IOException {
+			Object o = read();
+			if ( o == null? !nullable: !(o instanceof LuaValue) )
+				throw corrupt();
+			return (LuaValue) o;
+		}
+
+		Object readType(Class c) throws IOException {
+			Object o = read();
+			if ( o != null && !c.isInstance(o) )
+				throw corrupt();
+			return o;
+		}
+
+		private void clear(LuaTable t) {
+			Vector keys = new Vector();
+			for ( LuaValue k = LuaValue.NIL; !(k = t.next(k).arg1()).isnil(); )
+				keys.addElement(k);
+			for ( int i=0; i<keys.size(); i++ )
+				t.rawset((LuaValue) keys.elementAt(i), LuaValue.NIL);
+			t.m_metatable = null;
+		}
+
+		private Prototype readPrototype() throws IOException {
+			Prototype p;
+			switch ( in.readUnsignedByte() ) {
+			case P_REF:
+				return protoAt(in.readInt());
+			case P_CHILD: {
+				Prototype parent = protoAt(in.readInt());
+				int i = in.readInt();
+				if ( i < 0 || i >= parent.p.length )
+					throw corrupt();
+				p = parent.p[i];
+				break;
+			}
+			case P_DUMP: {
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				ByteArrayInputStream bytes = new ByteArrayInputStream(b);
+				p = LoadState.loadBinaryChunk(bytes.read(), bytes, "snapshot");
+				break;
+			}
+			default:
+				throw corrupt();
+			}
+			protos.addElement(p);
+			return p;
+		}
+
+		private Prototype protoAt(int id) throws IOException {
+			if ( id < 0 || id >= protos.size() )
+				throw corrupt();
+			return (Prototype) protos.elementAt(id);
+		}
+
+		/** Fill in an object created by {@link #read()} */
+		void readContents(Object o) throws IOException {
+			if ( o instanceof LuaTable ) {
+				LuaTable t = (LuaTable) o;
+				LuaValue mt = readValue(true);
+				while ( true ) {
+					LuaValue k = readValue(false);
+					if ( k.isnil() )
+						break;
+					t.rawset(k, readValue(false));
+				}
+				// set directly, as setting it normally would replace the table if it is weak
+				t.m_metatable = mt;
+			} else if ( o instanceof LuaClosure ) {
+				LuaClosure c = (LuaClosure) o;
+				c.setfenv(readValue(false));
+				if ( in.readInt() != c.upValues.length )
+					throw corrupt();
+				for ( int i=0; i<c.upValues.length; i++ )
+					c.upValues[i] = (UpValue) readType(UpValue.class);
+			} else if ( o instanceof LuaThread ) {
+				readThread((LuaThread) o);
+			} else if ( o instanceof UpValue ) {
+				UpValue u = (UpValue) o;
+				u.array = (LuaValue[]) readType(LuaValue[].class);
+				u.index = in.readInt();
+				if ( u.array == null || u.index < 0 || u.index >= u.array.length )
+					throw corrupt();
+			} else if ( o instanceof LuaValue[] ) {
+				LuaValue[] a = (LuaValue[]) o;
+				for ( int i=0; i<a.length; i++ )
+					a[i] = readValue(true);
+			}
+		}
+
+		private void readThread(LuaThread t) throws IOException {
+			t.setfenv(readValue(false));
+			t.err = readValue(true);
+			for ( int n = in.readInt(); --n >= 0; )
+				t.addChild((LuaThread) readType(LuaThread.class));
+
+			int n = in.readInt();
+			if ( (n > 0) != (t.state.status == LuaThread.STATUS_SUSPENDED) || n > LuaThread.MAX_CALLSTACK )
+				throw corrupt();
+			LuaThread.CallStack cs = t.callstack;
+			LuaClosure.Frame f = null;
+			for ( int i=0; i<n; i++ ) {
+				if ( in.readBoolean() ) {
+					LuaClosure c = (LuaClosure) readType(LuaClosure.class);
+					LuaValue[] stack = (LuaValue[]) readType(LuaValue[].class);
+					Varargs varargs = readVarargs();
+					if ( c == null || stack == null || stack.length < c.p.maxstacksize )
+						throw corrupt();
+					f = new LuaClosure.Frame(c, f, stack, varargs);
+					int nups = in.readInt();
+					if ( nups >= 0 ) {
+						f.openups = new UpValue[nups];
+						for ( int u=0; u<nups; u++ )
+							f.openups[u] = (UpValue) readType(UpValue.class);
+					}
+					f.pc = in.readInt();
+					f.top = in.readInt();
+					if ( f.pc < 1 || f.pc > c.p.code.length )
+						throw corrupt();
+					cs.onCall(c);
+					cs.frames[cs.calls-1] = f;
+					f.cs = cs;
+				} else {
+					LuaFunction fn = (LuaFunction) readType(LuaFunction.class);
+					if ( fn == null )
+						throw corrupt();
+					cs.onCall(fn);
+					f = new LuaClosure.Frame(f, cs);
+				}
+				f.olderr = readValue(true);
+			}
+			t.state.frame = f;
+		}
+
+		private Varargs readVarargs() throws IOException {
+			int n = in.readInt();
+			if ( n < 0 )
+				throw corrupt();
+			LuaValue[] v = new LuaValue[n];
+			for ( int i=0; i<n; i++ )
+				v[i] = readValue(false);
+			return LuaValue.varargsOf(v);
+		}
+	}
+}
@@ -152,6 +152,13 @@ public class WeakTable extends LuaTable {
 		return super.rawget(key).strongvalue();
 	}
 
+	/* DAN200 START */
+	// keys and values are held through references, so slots are never cached
+	public LuaValue get( LuaValue key, Prototype.Cache cache, int pc ) {
+		return get(key);
+	}
+	/* DAN200 END */
+
 	/** Get the hash value for a key 
 	 * key the key to look up 
 	 * */
@@ -169,7 +176,10 @@ public class WeakTable extends LuaTable {
 	
 	// override to remove values for weak keys as we search
 	public int hashFindSlot(LuaValue key) {		
-		int i = ( key.hashCode() & 0x7FFFFFFF ) % hashKeys.length;
+		/* DAN200 START */
+		//int i = ( key.hashCode() & 0x7FFFFFFF ) % hashKeys.length;
+		int i = hashSlot( key.hashCode(), hashKeys.length );
+		/* DAN200 END */
 		LuaValue k;
 		while ( ( k = hashKeys[i] ) != null ) {
 			if ( k.isweaknil() ) {
@@ -180,7 +190,10 @@ public class WeakTable extends LuaTable {
 			else {
 				if ( k.raweq(key.strongkey()) )
 					return i;
-				i = ( i + 1 ) % hashKeys.length;
+				/* DAN200 START */
+				//i = ( i + 1 ) % hashKeys.length;
+				i = ( i + 1 ) & ( hashKeys.length - 1 );
+				/* DAN200 END */
 			}
 		}
 		return i;
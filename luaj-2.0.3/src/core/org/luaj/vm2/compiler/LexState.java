@@ -137,6 +137,11 @@ public class LexState {
 	FuncState fs;  /* `FuncState' is private to the parser */
 	LuaC L;
 	InputStream z;  /* input stream */
+	/* DAN200 START */
+	byte[] src;  /* input bytes, read directly instead of z when not null */
+	int srcpos;  /* index of the next byte of src */
+	int srclimit;  /* index just past the last byte of src */
+	/* DAN200 END */
 	byte[] buff;  /* buffer for tokens */
 	int nbuff; /* length of buffer */
 	LuaString source;  /* current source name */
@@ -201,7 +206,24 @@ public class LexState {
 		this.L = state;
 	}
 
+	/* DAN200 START */
+	/** Lex bytes from an array, without a call through an InputStream for every character */
+	public LexState(LuaC state, byte[] bytes, int offset, int length) {
+		this.src = bytes;
+		this.srcpos = offset;
+		this.srclimit = offset + length;
+		this.buff = new byte[32];
+		this.L = state;
+	}
+	/* DAN200 END */
+
 	void nextChar() {
+		/* DAN200 START */
+		if ( src != null ) {
+			current = srcpos < srclimit? src[srcpos++] & 0xff: EOZ;
+			return;
+		}
+		/* DAN200 END */
 		try {
  			current = z.read();
 		} catch ( IOException e ) {
@@ -206,9 +206,33 @@ public class LuaC extends Lua implements LuaCompiler {
 			(new LuaC(new Hashtable())).luaY_parser(firstByte, stream, name);
 	}
 
+	/* DAN200 START */
+	/** Compile a prototype or load as a binary chunk, from the bytes of a string */
+	public static Prototype compile(LuaString source, String name) throws IOException {
+		int firstByte = source.m_length > 0? source.luaByte(0): -1;
+		if ( firstByte == '\033' ) {
+			InputStream stream = source.toInputStream();
+			stream.read();
+			return LoadState.loadBinaryChunk(firstByte, stream, name);
+		}
+		LuaC compiler = new LuaC(new Hashtable());
+		LexState lexstate = firstByte < 0?
+			new LexState(compiler, source.m_bytes, source.m_offset, 0):
+			new LexState(compiler, source.m_bytes, source.m_offset + 1, source.m_length - 1);
+		return compiler.luaY_parser(firstByte, lexstate, name);
+	}
+	/* DAN200 END */
+
 	/** Parse the input */
 	private Prototype luaY_parser(int firstByte, InputStream z, String name) {
-		LexState lexstate = new LexState(this, z);
+		/* DAN200 START */
+		//LexState lexstate = new LexState(this, z);
+		return luaY_parser(firstByte, new LexState(this, z), name);
+	}
+
+	private Prototype luaY_parser(int firstByte, LexState lexstate, String name) {
+		InputStream z = lexstate.z;
+		/* DAN200 END */
 		FuncState funcstate = new FuncState();
 		// lexstate.buff = buff;
 		lexstate.setinput( this, firstByte, z, (LuaString) LuaValue.valueOf(name) );
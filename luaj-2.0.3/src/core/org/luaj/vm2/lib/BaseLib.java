@@ -205,6 +205,15 @@ public class BaseLib extends OneArgFunction implements ResourceFinder {
 
 	static final class BaseLibV extends VarArgFunction {
 		public BaseLib baselib;
+		/* DAN200 START */
+		public int callmode() {
+			switch ( opcode ) {
+			case 7: return CALLMODE_PCALL;
+			case 8: return CALLMODE_XPCALL;
+			default: return CALLMODE_NORMAL;
+			}
+		}
+		/* DAN200 END */
 		public Varargs invoke(Varargs args) {
 			switch ( opcode ) {
 			case 0: // "assert", // ( v [,message] ) -> v, message | ERR
@@ -371,6 +380,12 @@ public class BaseLib extends OneArgFunction implements ResourceFinder {
 			LuaThread.setErrorFunc(olderr);
 			String m = e.getMessage();
 			return varargsOf(FALSE, valueOf(m!=null? m: e.toString()));
+		/* DAN200 START */
+		} catch ( StackOverflowError e ) {
+			// code compiled to java bytecode has no call depth limit of its own
+			LuaThread.setErrorFunc(olderr);
+			return varargsOf(FALSE, valueOf("stack overflow"));
+		/* DAN200 END */
 		}
 	}
 	
@@ -21,6 +21,9 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+/* DAN200 START */
+import org.luaj.vm2.LuaFunction;
+/* DAN200 END */
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
@@ -78,6 +81,36 @@ public class CoroutineLib extends VarArgFunction {
 		return t;
 	}
 	
+	/* DAN200 START */
+	public int callmode() {
+		return opcode == YIELD? CALLMODE_YIELD: CALLMODE_NORMAL;
+	}
+
+	/**
+	 * Create a function which resumes a coroutine, as returned by {@code coroutine.wrap()}
+	 * @param thread the coroutine to resume
+	 * @return the function
+	 */
+	public static LuaFunction wrap(LuaThread thread) {
+		CoroutineLib cl = new CoroutineLib();
+		cl.setfenv(thread);
+		cl.name = "wrapped";
+		cl.opcode = WRAPPED;
+		return cl;
+	}
+
+	/**
+	 * Get the coroutine resumed by a function returned by {@code coroutine.wrap()}
+	 * @param f the function
+	 * @return the coroutine, or null if f was not returned by {@code coroutine.wrap()}
+	 */
+	public static LuaThread getWrapped(Object f) {
+		if (!(f instanceof CoroutineLib) || ((CoroutineLib) f).opcode != WRAPPED)
+			return null;
+		return (LuaThread) ((CoroutineLib) f).env;
+	}
+	/* DAN200 END */
+	
 	public Varargs invoke(Varargs args) {
 		switch ( opcode ) {
 			case INIT: {
@@ -111,12 +144,13 @@ public class CoroutineLib extends VarArgFunction {
 				final LuaThread thread = new LuaThread(func, func.getfenv());
                 /* DAN200 START */
                 LuaThread.getRunning().addChild( thread );
+				//CoroutineLib cl = new CoroutineLib();
+				//cl.setfenv(thread);
+				//cl.name = "wrapped";
+				//cl.opcode = WRAPPED;
+				//return cl;
+				return wrap(thread);
                 /* DAN200 END */
-				CoroutineLib cl = new CoroutineLib();
-				cl.setfenv(thread);
-				cl.name = "wrapped";
-				cl.opcode = WRAPPED;
-				return cl;
 			}
 			case WRAPPED: {
 				final LuaThread t = (LuaThread) env;
@@ -586,7 +586,10 @@ public class DebugLib extends VarArgFunction {
 				case TNIL:      LuaNil.s_metatable      = mt; break;
 				case TNUMBER:   LuaNumber.s_metatable   = mt; break;
 				case TBOOLEAN:  LuaBoolean.s_metatable  = mt; break;
-				case TSTRING:   LuaString.s_metatable   = mt; break;
+				/* DAN200 START */
+				//case TSTRING:   LuaString.s_metatable   = mt; break;
+				case TSTRING:   LuaThread.setStringMetatable( mt ); break;
+				/* DAN200 END */
 				case TFUNCTION: LuaFunction.s_metatable = mt; break;
 				case TTHREAD:   LuaThread.s_metatable   = mt; break;
 				default: object.setmetatable( mt );
@@ -23,11 +23,15 @@ package org.luaj.vm2.lib;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+/* DAN200 START */
+import java.util.Hashtable;
+/* DAN200 END */
 
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.Buffer;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.compiler.DumpState;
@@ -76,8 +80,12 @@ public class StringLib extends OneArgFunction {
 			"sub"} );
 		env.set("string", t);
 		instance = t;
-		if ( LuaString.s_metatable == null )
-			LuaString.s_metatable = tableOf( new LuaValue[] { INDEX, t } );
+		/* DAN200 START */
+		//if ( LuaString.s_metatable == null )
+		//	LuaString.s_metatable = tableOf( new LuaValue[] { INDEX, t } );
+		if ( LuaThread.getStringMetatable() == null )
+			LuaThread.setStringMetatable( tableOf( new LuaValue[] { INDEX, t } ) );
+		/* DAN200 END */
 		PackageLib.instance.LOADED.set("string", t);
 		return t;
 	}
@@ -160,6 +168,9 @@ public class StringLib extends OneArgFunction {
 			if (c<0 || c>=256) argerror(a, "invalid value");
 			bytes[i] = (byte) c;
 		}
+		/* DAN200 START */
+		LuaThread.allocated( bytes, n );
+		/* DAN200 END */
 		return LuaString.valueOf( bytes );
 	}
 		
@@ -521,13 +532,23 @@ public class StringLib extends OneArgFunction {
 		private int soffset;
 		public GMatchAux(Varargs args, LuaString src, LuaString pat) {
 			this.srclen = src.length();
-			this.ms = new MatchState(args, src, pat);
+			/* DAN200 START */
+			//this.ms = new MatchState(args, src, pat);
+			this.ms = new MatchState(args, src, pat, CompiledPattern.get(pat, 0));
+			/* DAN200 END */
 			this.soffset = 0;
 		}
 		public Varargs invoke(Varargs args) {
 			for ( ; soffset<srclen; soffset++ ) {
+				/* DAN200 START */
+				if ( (soffset = ms.skip(soffset)) < 0 ) {
+					soffset = srclen;
+					break;
+				}
 				ms.reset();
-				int res = ms.match(soffset, 0);
+				//int res = ms.match(soffset, 0);
+				int res = ms.domatch(soffset, 0);
+				/* DAN200 END */
 				if ( res >=0 ) {
 					int soff = soffset;
 					soffset = res;
@@ -596,13 +617,29 @@ public class StringLib extends OneArgFunction {
 		final boolean anchor = p.length() > 0 && p.charAt( 0 ) == '^';
 		
 		Buffer lbuf = new Buffer( srclen );
-		MatchState ms = new MatchState( args, src, p );
+		/* DAN200 START */
+		//MatchState ms = new MatchState( args, src, p );
+		MatchState ms = new MatchState( args, src, p, CompiledPattern.get( p, anchor ? 1 : 0 ) );
+		/* DAN200 END */
 		
 		int soffset = 0;
 		int n = 0;
 		while ( n < max_s ) {
+			/* DAN200 START */
+			if ( !anchor ) {
+				// copy everything before the next place the pattern could match in one go
+				int next = ms.skip( soffset );
+				if ( next < 0 )
+					break;
+				if ( next > soffset ) {
+					lbuf.append( src.substring( soffset, next ) );
+					soffset = next;
+				}
+			}
 			ms.reset();
-			int res = ms.match( soffset, anchor ? 1 : 0 );
+			//int res = ms.match( soffset, anchor ? 1 : 0 );
+			int res = ms.domatch( soffset, anchor ? 1 : 0 );
+			/* DAN200 END */
 			if ( res != -1 ) {
 				n++;
 				ms.add_value( lbuf, soffset, res, repl );
@@ -662,7 +699,12 @@ public class StringLib extends OneArgFunction {
 	static Varargs rep( Varargs args ) {
 		LuaString s = args.checkstring( 1 );
 		int n = args.checkint( 2 );
+		/* DAN200 START */
+		//final byte[] bytes = new byte[ s.length() * n ];
+		LuaThread.allocating( (long) s.length() * n );
 		final byte[] bytes = new byte[ s.length() * n ];
+		LuaThread.allocated( bytes, bytes.length );
+		/* DAN200 END */
 		int len = s.length();
 		for ( int offset = 0; offset < bytes.length; offset += len ) {
 			s.copyInto( 0, bytes, offset, len );
@@ -679,6 +721,9 @@ public class StringLib extends OneArgFunction {
 		LuaString s = arg.checkstring();
 		int n = s.length();
 		byte[] b = new byte[n];
+		/* DAN200 START */
+		LuaThread.allocated( b, n );
+		/* DAN200 END */
 		for ( int i=0, j=n-1; i<n; i++, j-- )
 			b[j] = (byte) s.luaByte(i);
 		return LuaString.valueOf( b );
@@ -747,7 +792,9 @@ public class StringLib extends OneArgFunction {
 				return varargsOf( valueOf(result+1), valueOf(result+pat.length()) );
 			}
 		} else {
-			MatchState ms = new MatchState( args, s, pat );
+			/* DAN200 START */
+			//MatchState ms = new MatchState( args, s, pat );
+			/* DAN200 END */
 			
 			boolean anchor = false;
 			int poff = 0;
@@ -755,12 +802,20 @@ public class StringLib extends OneArgFunction {
 				anchor = true;
 				poff = 1;
 			}
+			/* DAN200 START */
+			MatchState ms = new MatchState( args, s, pat, CompiledPattern.get( pat, poff ) );
+			/* DAN200 END */
 			
 			int soff = init;
 			do {
 				int res;
+				/* DAN200 START */
+				if ( !anchor && ( soff = ms.skip( soff ) ) < 0 )
+					break;
 				ms.reset();
-				if ( ( res = ms.match( soff, poff ) ) != -1 ) {
+				//if ( ( res = ms.match( soff, poff ) ) != -1 ) {
+				if ( ( res = ms.domatch( soff, poff ) ) != -1 ) {
+				/* DAN200 END */
 					if ( find ) {
 						return varargsOf( valueOf(soff+1), valueOf(res), ms.push_captures( false, soff, res ));
 					} else {
@@ -834,19 +889,172 @@ public class StringLib extends OneArgFunction {
 		int level;
 		int[] cinit;
 		int[] clen;
+		/* DAN200 START */
+		final CompiledPattern cp;
+		/* DAN200 END */
 		
 		MatchState( Varargs args, LuaString s, LuaString pattern ) {
+			/* DAN200 START */
+			this( args, s, pattern, null );
+		}
+
+		MatchState( Varargs args, LuaString s, LuaString pattern, CompiledPattern cp ) {
+			this.cp = cp;
+			/* DAN200 END */
 			this.s = s;
 			this.p = pattern;
 			this.args = args;
 			this.level = 0;
-			this.cinit = new int[ MAX_CAPTURES ];
-			this.clen = new int[ MAX_CAPTURES ];
+			/* DAN200 START */
+			//this.cinit = new int[ MAX_CAPTURES ];
+			//this.clen = new int[ MAX_CAPTURES ];
+			int n = cp != null ? cp.captures : MAX_CAPTURES;
+			this.cinit = new int[ n ];
+			this.clen = new int[ n ];
+			/* DAN200 END */
 		}
 		
 		void reset() {
 			level = 0;
 		}
+
+		/* DAN200 START */
+		/**
+		 * Match from a point in the subject, using the compiled program if there is one.
+		 * @param poffset where in the pattern to start when interpreting it, which the 
+		 * program was compiled from 
+		 */
+		int domatch( int soffset, int poffset ) {
+			return cp != null ? cmatch( soffset, 0 ) : match( soffset, poffset );
+		}
+
+		/**
+		 * Find the first point from soffset where an unanchored match could start, 
+		 * going by the literal text every match has to begin with.
+		 * @return the point, or -1 if there is none
+		 */
+		int skip( int soffset ) {
+			if ( cp == null || cp.prefix == null )
+				return soffset;
+			return s.indexOf( cp.prefix, soffset );
+		}
+
+		/** As {@link #match(int, int)}, running a compiled program from instruction pc. */
+		int cmatch( int soffset, int pc ) {
+			final CompiledPattern cp = this.cp;
+			while ( true ) {
+				switch ( cp.kind[pc] ) {
+				case CompiledPattern.END:
+					return soffset;
+				case CompiledPattern.END_ANCHOR:
+					return ( soffset == s.length() ) ? soffset : -1;
+				case CompiledPattern.OPEN:
+					return cstart_capture( soffset, pc + 1, CAP_UNFINISHED );
+				case CompiledPattern.POSITION:
+					return cstart_capture( soffset, pc + 1, CAP_POSITION );
+				case CompiledPattern.CLOSE:
+					return cend_capture( soffset, pc + 1 );
+				case CompiledPattern.BACKREF:
+					soffset = match_capture( soffset, cp.arg[pc] );
+					if ( soffset == -1 )
+						return -1;
+					pc++;
+					continue;
+				case CompiledPattern.BALANCE:
+					soffset = matchbalance( soffset, cp.arg[pc] >> 8, cp.arg[pc] & 0xff );
+					if ( soffset == -1 ) 
+						return -1;
+					pc++;
+					continue;
+				default: {
+					boolean m = soffset < s.length() && cp.sets[pc][s.luaByte( soffset )];
+					switch ( cp.arg[pc] ) {
+					case '?':
+						int res;
+						if ( m && ( ( res = cmatch( soffset + 1, pc + 1 ) ) != -1 ) )
+							return res;
+						pc++;
+						continue;
+					case '*':
+						return cmax_expand( soffset, pc );
+					case '+':
+						return ( m ? cmax_expand( soffset + 1, pc ) : -1 );
+					case '-':
+						return cmin_expand( soffset, pc );
+					default:
+						if ( !m )
+							return -1;
+						soffset++;
+						pc++;
+						continue;
+					}
+				}
+				}
+			}
+		}
+
+		int cmax_expand( int soff, int pc ) {
+			final boolean[] set = cp.sets[pc];
+			int i = 0;
+			while ( soff + i < s.length() && set[s.luaByte( soff + i )] )
+				i++;
+			while ( i >= 0 ) {
+				int res = cmatch( soff + i, pc + 1 );
+				if ( res != -1 )
+					return res;
+				i--;
+			}
+			return -1;
+		}
+
+		int cmin_expand( int soff, int pc ) {
+			final boolean[] set = cp.sets[pc];
+			for ( ;; ) {
+				int res = cmatch( soff, pc + 1 );
+				if ( res != -1 )
+					return res;
+				else if ( soff < s.length() && set[s.luaByte( soff )] )
+					soff++;
+				else return -1;
+			}
+		}
+
+		int cstart_capture( int soff, int pc, int what ) {
+			int res;
+			int level = this.level;
+			if ( level >= MAX_CAPTURES ) {
+				error( "too many captures" );
+			}
+			cinit[ level ] = soff;
+			clen[ level ] = what;
+			this.level = level + 1;
+			if ( ( res = cmatch( soff, pc ) ) == -1 )
+				this.level--;
+			return res;
+		}
+
+		int cend_capture( int soff, int pc ) {
+			int l = capture_to_close();
+			int res;
+			clen[l] = soff - cinit[l];
+			if ( ( res = cmatch( soff, pc ) ) == -1 )
+				clen[l] = CAP_UNFINISHED;
+			return res;
+		}
+
+		int matchbalance( int soff, int b, int e ) {
+			if ( soff >= s.length() || s.luaByte( soff ) != b )
+				return -1;
+			int cont = 1;
+			while ( ++soff < s.length() ) {
+				if ( s.luaByte( soff ) == e ) {
+					if ( --cont == 0 ) return soff + 1;
+				}
+				else if ( s.luaByte( soff ) == b ) cont++;
+			}
+			return -1;
+		}
+		/* DAN200 END */
 		
 		private void add_s( Buffer lbuf, LuaString news, int soff, int e ) {
 			int l = news.length();
@@ -1187,4 +1395,293 @@ public class StringLib extends OneArgFunction {
 			return -1;
 		}
 	}
+
+	/* DAN200 START */
+	/**
+	 * A pattern turned into a list of instructions, so that matching it doesn't have to 
+	 * parse it again, and each single character class is a lookup in a table of the 256 
+	 * byte values.  The tables are filled in by {@link MatchState#singlematch(int, int, int)}, 
+	 * so they agree with the interpreter exactly.
+	 * <p>
+	 * Patterns which are malformed, or use %f, are left to the interpreter, which reports 
+	 * errors only when matching gets to them.  So are long patterns, which are rarely used 
+	 * more than once, so that compiling them can't be made to use a lot of memory.
+	 * <p>
+	 * Compiled patterns are kept in a small cache, as the same few tend to be used over 
+	 * and over again.
+	 */
+	static final class CompiledPattern {
+		static final int SINGLE = 0;
+		static final int END = 1;
+		static final int END_ANCHOR = 2;
+		static final int OPEN = 3;
+		static final int POSITION = 4;
+		static final int CLOSE = 5;
+		static final int BACKREF = 6;
+		static final int BALANCE = 7;
+
+		/** Instruction kinds */
+		final int[] kind;
+		/** Repetition character for {@link #SINGLE}, capture digit for {@link #BACKREF}, the two characters for {@link #BALANCE} */
+		final int[] arg;
+		/** The characters each {@link #SINGLE} matches */
+		final boolean[][] sets;
+		/** Literal text every match starts with, or null */
+		final LuaString prefix;
+		/** Most captures which can be open at once, up to the limit */
+		final int captures;
+
+		private CompiledPattern( int[] kind, int[] arg, boolean[][] sets, LuaString prefix, int captures ) {
+			this.kind = kind;
+			this.arg = arg;
+			this.sets = sets;
+			this.prefix = prefix;
+			this.captures = captures;
+		}
+
+		/**
+		 * Compile a pattern from a point on.
+		 * @return the program, or null if the pattern has to be interpreted
+		 */
+		static CompiledPattern compile( LuaString p, int poffset ) {
+			final int plen = p.length();
+			if ( plen > MAX_LENGTH )
+				return null;
+			int[] kind = new int[ plen + 1 ];
+			int[] arg = new int[ plen + 1 ];
+			boolean[][] sets = new boolean[ plen + 1 ][];
+			Hashtable classes = new Hashtable();
+			int n = 0;
+			MatchState ms = new MatchState( null, null, p );
+			try {
+				compile:
+				while ( true ) {
+					if ( poffset == plen ) {
+						kind[n++] = END;
+						break;
+					}
+					switch ( p.luaByte( poffset ) ) {
+					case '(':
+						if ( ++poffset < plen && p.luaByte( poffset ) == ')' ) {
+							kind[n++] = POSITION;
+							poffset++;
+						} else {
+							kind[n++] = OPEN;
+						}
+						continue;
+					case ')':
+						kind[n++] = CLOSE;
+						poffset++;
+						continue;
+					case L_ESC:
+						if ( poffset + 1 == plen )
+							return null;
+						switch ( p.luaByte( poffset + 1 ) ) {
+						case 'b':
+							if ( poffset + 3 >= plen )
+								return null;
+							kind[n] = BALANCE;
+							arg[n++] = ( p.luaByte( poffset + 2 ) << 8 ) | p.luaByte( poffset + 3 );
+							poffset += 4;
+							continue;
+						case 'f':
+							return null;
+						default: {
+							int c = p.luaByte( poffset + 1 );
+							if ( Character.isDigit( (char) c ) ) {
+								kind[n] = BACKREF;
+								arg[n++] = c;
+								poffset += 2;
+								continue;
+							}
+						}
+						}
+						break;
+					case '$':
+						if ( poffset + 1 == plen ) {
+							kind[n++] = END_ANCHOR;
+							break compile;
+						}
+						break;
+					}
+					int ep = ms.classend( poffset );
+					boolean[] set = set( ms, p, poffset, ep, classes );
+					int pc = ( ep < plen ) ? p.luaByte( ep ) : '\0';
+					switch ( pc ) {
+					case '?': case '*': case '+': case '-':
+						arg[n] = pc;
+						poffset = ep + 1;
+						break;
+					default:
+						poffset = ep;
+						break;
+					}
+					kind[n] = SINGLE;
+					sets[n++] = set;
+				}
+			} catch ( RuntimeException e ) {
+				// malformed, so leave it to the interpreter to fail in the same way
+				return null;
+			}
+
+			// instructions only go forwards, so each capture is opened at most once
+			int captures = 0;
+			for ( int i = 0; i < n; i++ )
+				if ( kind[i] == OPEN || kind[i] == POSITION )
+					captures++;
+
+			// literal characters the pattern starts with, ahead of anything but captures opening
+			byte[] prefix = new byte[ n ];
+			int np = 0;
+			for ( int i = 0; i < n && i < MAX_CAPTURES; i++ ) {
+				if ( kind[i] == OPEN || kind[i] == POSITION )
+					continue;
+				if ( kind[i] != SINGLE || arg[i] != 0 )
+					break;
+				int c = single( sets[i] );
+				if ( c < 0 )
+					break;
+				prefix[np++] = (byte) c;
+			}
+			return new CompiledPattern( kind, arg, sets, np > 0 ? LuaString.valueOf( prefix, 0, np ) : null, 
+				Math.min( captures, MAX_CAPTURES ) );
+		}
+
+		/** 
+		 * Get the characters a single character class matches.  Sets are never changed once 
+		 * made, so a plain character's set is shared by every pattern, and each class is 
+		 * only worked out once per pattern.
+		 */
+		private static boolean[] set( MatchState ms, LuaString p, int poffset, int ep, Hashtable classes ) {
+			int c = p.luaByte( poffset );
+			if ( ep == poffset + 1 && c != '.' )
+				return literal( c );
+			LuaString key = p.substring( poffset, ep );
+			boolean[] set = (boolean[]) classes.get( key );
+			if ( set == null ) {
+				set = new boolean[256];
+				for ( int i = 0; i < 256; i++ )
+					set[i] = ms.singlematch( i, poffset, ep );
+				classes.put( key, set );
+			}
+			return set;
+		}
+
+		/** Get the set matching only one character */
+		private static boolean[] literal( int c ) {
+			synchronized ( literals ) {
+				boolean[] set = literals[c];
+				if ( set == null ) {
+					set = new boolean[256];
+					set[c] = true;
+					literals[c] = set;
+				}
+				return set;
+			}
+		}
+
+		/** Get the only character in a set, or -1 if there isn't exactly one */
+		private static int single( boolean[] set ) {
+			int c = -1;
+			for ( int i = 0; i < 256; i++ ) {
+				if ( set[i] ) {
+					if ( c >= 0 )
+						return -1;
+					c = i;
+				}
+			}
+			return c;
+		}
+
+		/** Longest pattern which is compiled */
+		private static final int MAX_LENGTH = 256;
+		private static final boolean[][] literals = new boolean[256][];
+
+		private static final int CACHE_SIZE = 128;
+		private static final CompiledPattern INTERPRETED = new CompiledPattern( null, null, null, null, 0 );
+		private static final Hashtable cache = new Hashtable();
+		private static final CacheEntry lru = new CacheEntry( null );
+		
+		// patterns are mostly constants, which are the same string every time, so the last 
+		// entries found are looked up again by identity, without taking the lock
+		private static final int RECENT_SIZE = 64;
+		private static final RecentEntry[] recent = new RecentEntry[ RECENT_SIZE ];
+
+		private static final class RecentEntry {
+			final LuaString pattern;
+			final CacheEntry entry;
+			RecentEntry( LuaString pattern, CacheEntry entry ) {
+				this.pattern = pattern;
+				this.entry = entry;
+			}
+		}
+
+		/** Cached programs for one pattern, in a list with the most recently used first */
+		private static final class CacheEntry {
+			final LuaString pattern;
+			final CompiledPattern[] programs = new CompiledPattern[2];
+			CacheEntry prev = this, next = this;
+			CacheEntry( LuaString pattern ) {
+				this.pattern = pattern;
+			}
+		}
+
+		/**
+		 * Get the program for a pattern from a point on, which is 0 or 1 (after a leading ^).
+		 * @return the program, or null if the pattern has to be interpreted
+		 */
+		static CompiledPattern get( LuaString p, int poffset ) {
+			if ( p.length() > MAX_LENGTH )
+				return null;
+			int slot = System.identityHashCode( p ) & ( RECENT_SIZE - 1 );
+			RecentEntry r = recent[ slot ];
+			CacheEntry e;
+			if ( r != null && r.pattern == p ) {
+				e = r.entry;
+			} else {
+				e = lookup( p );
+				if ( p.m_offset == 0 && p.m_bytes.length == p.m_length )
+					recent[ slot ] = new RecentEntry( p, e );
+			}
+			CompiledPattern cp = e.programs[poffset];
+			if ( cp == null ) {
+				// if two threads both compile it, either result will do 
+				cp = compile( e.pattern, poffset );
+				e.programs[poffset] = cp != null ? cp : INTERPRETED;
+			}
+			return cp != INTERPRETED ? cp : null;
+		}
+
+		/** Find or make the cache entry for a pattern, and move it to the front of the list */
+		private static CacheEntry lookup( LuaString p ) {
+			synchronized ( cache ) {
+				CacheEntry e = (CacheEntry) cache.get( p );
+				if ( e != null ) {
+					e.prev.next = e.next;
+					e.next.prev = e.prev;
+				} else {
+					// don't keep a large string alive if the pattern is a small part of it 
+					if ( p.m_offset != 0 || p.m_bytes.length != p.m_length ) {
+						byte[] b = new byte[ p.m_length ];
+						p.copyInto( 0, b, 0, b.length );
+						p = LuaString.valueOf( b );
+					}
+					e = new CacheEntry( p );
+					cache.put( p, e );
+					if ( cache.size() > CACHE_SIZE ) {
+						CacheEntry old = lru.prev;
+						old.prev.next = lru;
+						lru.prev = old.prev;
+						cache.remove( old.pattern );
+					}
+				}
+				e.next = lru.next;
+				e.prev = lru;
+				lru.next.prev = e;
+				lru.next = e;
+				return e;
+			}
+		}
+	}
+	/* DAN200 END */
 }
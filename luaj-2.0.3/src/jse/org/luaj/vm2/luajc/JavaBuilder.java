@@ -58,6 +58,9 @@ import org.luaj.vm2.LuaInteger;
 import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
+/* DAN200 START */
+import org.luaj.vm2.LuaThread;
+/* DAN200 END */
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Varargs;
@@ -79,6 +82,9 @@ public class JavaBuilder {
 	private static final String STR_LUATABLE = LuaTable.class.getName();
 	private static final String STR_BUFFER = Buffer.class.getName();
 	private static final String STR_STRING = String.class.getName();
+	/* DAN200 START */
+	private static final String STR_LUATHREAD = LuaThread.class.getName();
+	/* DAN200 END */
 
 	private static final ObjectType TYPE_VARARGS = new ObjectType(STR_VARARGS);
 	private static final ObjectType TYPE_LUAVALUE = new ObjectType(STR_LUAVALUE);
@@ -212,9 +218,19 @@ public class JavaBuilder {
 				STR_LUAVALUE, // method, defining class
 				main, cp);
 		
+		/* DAN200 START */
+		// calls are a safepoint
+		safepoint();
+		/* DAN200 END */
+
 		// initialize the values in the slots
 		initializeSlots();	
 
+		/* DAN200 START */
+		// branches to the first instruction must not run the initialization again
+		beginningOfLuaInstruction = null;
+		/* DAN200 END */
+
 		// initialize branching
 		int nc = p.code.length;
 		targets = new int[nc];
@@ -303,6 +319,12 @@ public class JavaBuilder {
 		append(InstructionConstants.DUP);
 	}
 
+	/* DAN200 START */
+	public void safepoint() {
+		append(factory.createInvoke(STR_LUATHREAD, "safepoint", Type.VOID, Type.NO_ARGS, Constants.INVOKESTATIC));
+	}
+	/* DAN200 END */
+
 	public void pop() {
 		append(InstructionConstants.POP);
 	}
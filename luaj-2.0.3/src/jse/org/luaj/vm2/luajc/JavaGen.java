@@ -202,6 +202,11 @@ public class JavaGen {
 					break;
 					
 				case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
+					/* DAN200 START */
+					// backwards jumps are a safepoint
+					if ( sbx < 0 )
+						builder.safepoint();
+					/* DAN200 END */
 					builder.addBranch(pc, JavaBuilder.BRANCH_GOTO, pc+1+sbx);
 					break;
 					
@@ -329,6 +334,9 @@ public class JavaGen {
 					break;
 					
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					/* DAN200 START */
+					builder.safepoint();
+					/* DAN200 END */
 					builder.loadLocal(pc, a);
 					builder.loadLocal(pc, a+2);
 					builder.binaryop( Lua.OP_ADD );
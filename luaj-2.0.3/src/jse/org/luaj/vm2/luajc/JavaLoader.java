@@ -35,6 +35,10 @@ public class JavaLoader extends ClassLoader {
 	private Map<String,byte[]> unloaded = new HashMap<String,byte[]>();
 	
 	public JavaLoader( LuaValue env ) {
+		/* DAN200 START */
+		// generated classes must link against the same luaj classes as this loader
+		super( JavaLoader.class.getClassLoader() );
+		/* DAN200 END */
 		this.env = env;
 	}
 
@@ -67,7 +71,10 @@ public class JavaLoader extends ClassLoader {
 	}
 
 	public Class findClass(String classname) throws ClassNotFoundException {
-		byte[] bytes = (byte[]) unloaded.get(classname);
+		/* DAN200 START */
+		//byte[] bytes = (byte[]) unloaded.get(classname);
+		byte[] bytes = (byte[]) unloaded.remove(classname);
+		/* DAN200 END */
 		if ( bytes != null )
 			return defineClass(classname, bytes, 0, bytes.length);
 		return super.findClass(classname);
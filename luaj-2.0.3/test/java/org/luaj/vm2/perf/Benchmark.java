@@ -0,0 +1,107 @@
+package org.luaj.vm2.perf;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Timing and allocation measurements shared by the benchmarks in this package.
+ * <p>
+ * The benchmarks only use the public lua and Java APIs, so the same benchmark can be 
+ * run against an older luaj jar to compare the two, for example:
+ * <pre>
+ * ant perf
+ * java -cp build/jse/classes:build/perf/classes org.luaj.vm2.perf.NumericBenchmark
+ * java -cp old/luaj-jse-2.0.3.jar:build/perf/classes org.luaj.vm2.perf.NumericBenchmark
+ * </pre>
+ */
+public abstract class Benchmark {
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/** Run one iteration of the benchmark, doing {@link #operations} operations */
+	protected abstract void run() throws Exception;
+
+	/** The number of operations one call to {@link #run()} does */
+	protected long operations = 1;
+
+	/**
+	 * Run a benchmark until it is warmed up, then time it and print the time 
+	 * and memory allocated per operation.
+	 * @param name the name to print the results under
+	 * @param b the benchmark
+	 * @param iterations how many times to call {@link #run()} when timing it
+	 */
+	public static void measure(String name, Benchmark b, int iterations) throws Exception {
+		for (int i = 0; i < iterations; i++)
+			b.run();
+
+		System.gc();
+		long allocated = allocatedBytes();
+		long gcs = collections();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			b.run();
+		long time = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		gcs = collections() - gcs;
+
+		double ops = (double) iterations * b.operations;
+		System.out.println(pad(name, 40) + 
+				pad(format(time / ops) + " ns/op", 16) + 
+				pad(format(allocated < 0? Double.NaN: allocated / ops) + " B/op", 16) + 
+				gcs + " gcs");
+	}
+
+	/** Load some lua code into a new set of standard globals */
+	public static LuaValue load(String script, String name) throws Exception {
+		LuaValue globals = JsePlatform.standardGlobals();
+		return LoadState.load(new ByteArrayInputStream(script.getBytes("ISO-8859-1")), name, globals);
+	}
+
+	/** Bytes allocated by the current thread so far, or -1 if the JVM can't tell us */
+	public static long allocatedBytes() {
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/** The number of garbage collections so far */
+	public static long collections() {
+		long n = 0;
+		java.util.Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+		while (it.hasNext())
+			n += ((java.lang.management.GarbageCollectorMXBean) it.next()).getCollectionCount();
+		return n;
+	}
+
+	/** Heap in use after collecting garbage */
+	public static long usedHeap() {
+		Runtime r = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return r.totalMemory() - r.freeMemory();
+	}
+
+	public static String format(double d) {
+		if (Double.isNaN(d))
+			return "?";
+		return d >= 100? String.valueOf(Math.round(d)): String.valueOf(Math.round(d * 10) / 10.0);
+	}
+
+	public static String pad(String s, int width) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < width)
+			sb.append(' ');
+		return sb.append(' ').toString();
+	}
+}
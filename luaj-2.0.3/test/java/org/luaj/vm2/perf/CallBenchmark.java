@@ -0,0 +1,46 @@
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * The time and garbage per call for the calls lua programs make most: lua functions 
+ * with up to three arguments, recursive calls, method calls and library functions. 
+ * Each benchmark makes {@link #N} calls from a numeric for loop.
+ */
+public class CallBenchmark {
+	private static final int N = 1000000;
+
+	private static final String[][] BENCHMARKS = {
+		{ "0 arguments", "local function f() end\n" +
+			"return function(n) for i = 1, n do f() end end" },
+		{ "1 argument", "local function f(a) return a end\n" +
+			"return function(n) for i = 1, n do f(i) end end" },
+		{ "2 arguments", "local function f(a, b) return b end\n" +
+			"return function(n) for i = 1, n do f(i, i) end end" },
+		{ "3 arguments", "local function f(a, b, c) return a, c end\n" +
+			"return function(n) for i = 1, n do f(i, i, i) end end" },
+		{ "varargs", "local function f(...) return ... end\n" +
+			"return function(n) for i = 1, n do f(i, i) end end" },
+		{ "recursion", "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+			// fib(n) makes 2 * fib(n + 1) - 1 calls, 21891 for fib(20)
+			"return function(n) for i = 1, n / 21891 do fib(20) end end" },
+		{ "method call", "local obj = { x = 1 }\n" +
+			"function obj:get(d) return self.x + d end\n" +
+			"return function(n) for i = 1, n do obj:get(i) end end" },
+		{ "library call", "local abs, byte, s = math.abs, string.byte, 'abc'\n" +
+			"return function(n) for i = 1, n / 2 do abs(i) byte(s, 2) end end" },
+	};
+
+	public static void main(String[] args) throws Exception {
+		for (int i = 0; i < BENCHMARKS.length; i++) {
+			final LuaValue f = Benchmark.load(BENCHMARKS[i][1], BENCHMARKS[i][0]).call();
+			Benchmark b = new Benchmark() {
+				protected void run() {
+					f.call(LuaValue.valueOf(N));
+				}
+			};
+			b.operations = N;
+			Benchmark.measure(BENCHMARKS[i][0], b, 20);
+		}
+	}
+}
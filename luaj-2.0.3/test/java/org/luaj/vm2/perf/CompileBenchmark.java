@@ -0,0 +1,112 @@
+package org.luaj.vm2.perf;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.compiler.LuaC;
+
+/**
+ * Compile throughput over a tree of lua sources, by default the ComputerCraft ROM.  
+ * Files which don't compile, like the help pages, are left out.  Every other file is compiled once per iteration, through the InputStream that 
+ * {@link LuaC#compile(InputStream, String)} reads, and through the string's bytes when 
+ * the luaj being measured has LuaC.compile(LuaString, String).  Times are per source byte.
+ * <pre>
+ * java -cp build/jse/classes:build/perf/classes org.luaj.vm2.perf.CompileBenchmark [directory]
+ * </pre>
+ */
+public class CompileBenchmark {
+	private static final String DEFAULT_PATH = "../src/main/resources/assets/computercraft/lua";
+
+	public static void main(String[] args) throws Exception {
+		File root = new File(args.length > 0? args[0]: DEFAULT_PATH);
+		List files = new ArrayList();
+		collect(root, files);
+		if (files.isEmpty())
+			throw new IllegalArgumentException("No lua files under " + root);
+
+		List lua = new ArrayList();
+		for (int i = 0; i < files.size(); i++) {
+			File file = (File) files.get(i);
+			try {
+				LuaC.compile(new ByteArrayInputStream(read(file)), file.getName());
+				lua.add(file);
+			} catch (LuaError e) {
+				// not lua
+			}
+		}
+
+		final byte[][] sources = new byte[lua.size()][];
+		final String[] names = new String[lua.size()];
+		final LuaString[] strings = new LuaString[lua.size()];
+		long total = 0;
+		for (int i = 0; i < sources.length; i++) {
+			File file = (File) lua.get(i);
+			sources[i] = read(file);
+			names[i] = file.getName();
+			strings[i] = LuaValue.valueOf(sources[i]);
+			total += sources[i].length;
+		}
+		System.out.println(sources.length + " files, " + (total / 1024) + " KB");
+
+		Benchmark stream = new Benchmark() {
+			protected void run() throws Exception {
+				for (int i = 0; i < sources.length; i++)
+					LuaC.compile(new ByteArrayInputStream(sources[i]), names[i]);
+			}
+		};
+		stream.operations = total;
+		Benchmark.measure("InputStream", stream, 20);
+
+		final Method compile;
+		try {
+			compile = LuaC.class.getMethod("compile", new Class[] { LuaString.class, String.class });
+		} catch (NoSuchMethodException e) {
+			System.out.println(Benchmark.pad("string bytes", 40) + "not in this luaj");
+			return;
+		}
+		Benchmark bytes = new Benchmark() {
+			protected void run() throws Exception {
+				for (int i = 0; i < strings.length; i++)
+					compile.invoke(null, new Object[] { strings[i], names[i] });
+			}
+		};
+		bytes.operations = total;
+		Benchmark.measure("string bytes", bytes, 20);
+	}
+
+	private static void collect(File file, List files) {
+		if (file.isDirectory()) {
+			String[] children = file.list();
+			java.util.Arrays.sort(children);
+			for (int i = 0; i < children.length; i++)
+				collect(new File(file, children[i]), files);
+		} else if (file.isFile()) {
+			files.add(file);
+		}
+	}
+
+	private static byte[] read(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			int n = 0;
+			while (n < bytes.length) {
+				int r = in.read(bytes, n, bytes.length - n);
+				if (r < 0)
+					break;
+				n += r;
+			}
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+}
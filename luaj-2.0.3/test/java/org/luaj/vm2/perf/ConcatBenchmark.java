@@ -0,0 +1,52 @@
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Building a 1 MB string out of small pieces, as programs writing files and network
+ * messages do: by repeated {@code s = s .. x}, by appending several values at once, and
+ * with table.concat for comparison.  Times are per piece appended.
+ * <p>
+ * Without in-place appends, repeated concatenation copies the whole string each time,
+ * so the first two take quadratic time; the older jar needs several seconds per string.
+ */
+public class ConcatBenchmark {
+	private static final int SIZE = 1024 * 1024;
+
+	private static final String[][] BENCHMARKS = {
+		// 65536 pieces of 16 bytes
+		{ "s = s .. x", "65536",
+			"return function()\n" +
+			"  local x, s = '0123456789abcdef', ''\n" +
+			"  for i = 1, 65536 do s = s .. x end\n" +
+			"  return #s\n" +
+			"end" },
+		// 87382 lines of 12 bytes
+		{ "s = s .. 'line ' .. i .. '\\n'", "87382",
+			"return function()\n" +
+			"  local s, i = '', 100000\n" +
+			"  while #s < " + SIZE + " do s = s .. 'line ' .. i .. '\\n' i = i + 1 end\n" +
+			"  return #s\n" +
+			"end" },
+		{ "table.concat", "65536",
+			"return function()\n" +
+			"  local x, t = '0123456789abcdef', {}\n" +
+			"  for i = 1, 65536 do t[i] = x end\n" +
+			"  return #table.concat(t)\n" +
+			"end" },
+	};
+
+	public static void main(String[] args) throws Exception {
+		for (int i = 0; i < BENCHMARKS.length; i++) {
+			final LuaValue f = Benchmark.load(BENCHMARKS[i][2], BENCHMARKS[i][0]).call();
+			Benchmark b = new Benchmark() {
+				protected void run() {
+					if (f.call().toint() < SIZE)
+						throw new IllegalStateException("string too short");
+				}
+			};
+			b.operations = Integer.parseInt(BENCHMARKS[i][1]);
+			Benchmark.measure(BENCHMARKS[i][0], b, 5);
+		}
+	}
+}
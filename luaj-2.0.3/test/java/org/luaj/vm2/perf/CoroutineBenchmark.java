@@ -0,0 +1,62 @@
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Compares the stackless coroutine backend with the original one, which gives every 
+ * coroutine a Java thread of its own: the time for a resume and yield, and the memory 
+ * and threads held by suspended coroutines.
+ * <p>
+ * Only the allocations of the thread running the benchmark are counted, so those made 
+ * on the threads of threaded coroutines are missing from their figures.
+ */
+public class CoroutineBenchmark {
+	private static final String PING_PONG =
+		"local n = ...\n" +
+		"local co = coroutine.wrap(function() while true do coroutine.yield() end end)\n" +
+		"return function() for i = 1, n do co() end end\n";
+
+	private static final String SUSPENDED =
+		"local n = ...\n" +
+		"local t = {}\n" +
+		"for i = 1, n do\n" +
+		"  local co = coroutine.create(function() coroutine.yield() end)\n" +
+		"  coroutine.resume(co)\n" +
+		"  t[i] = co\n" +
+		"end\n" +
+		"return t\n";
+
+	public static void main(String[] args) throws Exception {
+		int suspended = args.length > 0? Integer.parseInt(args[0]): 1000;
+
+		// The threaded backend leaves threads behind, so measure it last
+		run("stackless", true, 100000, suspended);
+		run("threaded", false, 10000, suspended);
+		System.exit(0);
+	}
+
+	private static void run(String name, boolean stackless, int n, int suspended) throws Exception {
+		LuaThread.stackless_coroutines = stackless;
+
+		final LuaValue pingPong = Benchmark.load(PING_PONG, "pingpong").call(LuaValue.valueOf(n));
+		Benchmark b = new Benchmark() {
+			protected void run() {
+				pingPong.call();
+			}
+		};
+		b.operations = n;
+		Benchmark.measure(name + " resume/yield", b, 20);
+
+		LuaValue create = Benchmark.load(SUSPENDED, "suspended");
+		int threadsBefore = Thread.activeCount();
+		long heapBefore = Benchmark.usedHeap();
+		LuaValue held = create.call(LuaValue.valueOf(suspended));
+		long heapAfter = Benchmark.usedHeap();
+		int threadsAfter = Thread.activeCount();
+		System.out.println(Benchmark.pad(name + " suspended coroutine", 40) + 
+				Benchmark.pad((heapAfter - heapBefore) / suspended + " B heap", 16) + 
+				Benchmark.pad(Benchmark.format((threadsAfter - threadsBefore) / (double) suspended) + " threads", 16) + 
+				"(" + held.length() + " held)");
+	}
+}
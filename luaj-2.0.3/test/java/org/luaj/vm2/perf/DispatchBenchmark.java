@@ -0,0 +1,93 @@
+package org.luaj.vm2.perf;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Interpreter throughput on loops of simple instructions: arithmetic, comparisons and
+ * jumps, table fields and calls.  Each benchmark runs {@link #N} iterations of its loop,
+ * of roughly ten instructions each.
+ * <p>
+ * They are run with the standard globals, with an interrupt hook set so every safepoint
+ * checks it, and last with the debug globals, which send every instruction through the
+ * debug library.  Loading the debug library can't be undone in the same JVM.  An interrupt
+ * hook needs {@code LuaThread.Context.setInterruptHook}, so is skipped on older jars.
+ */
+public class DispatchBenchmark {
+	private static final int N = 1000000;
+
+	private static final String[][] BENCHMARKS = {
+		{ "arithmetic",
+			"return function(n)\n" +
+			"  local a, b, c = 1, 2, 3\n" +
+			"  for i = 1, n do a = a + b * c - i b = a % 7 c = b / 3 + 1 end\n" +
+			"  return a\n" +
+			"end" },
+		{ "branches",
+			"return function(n)\n" +
+			"  local i, odd, even = 0, 0, 0\n" +
+			"  while i < n do\n" +
+			"    if i % 2 == 0 then even = even + 1 elseif i > 5 then odd = odd + 1 else odd = odd - 1 end\n" +
+			"    i = i + 1\n" +
+			"  end\n" +
+			"  return odd + even\n" +
+			"end" },
+		{ "table fields",
+			"return function(n)\n" +
+			"  local t = { x = 0, y = 0, z = 0 }\n" +
+			"  for i = 1, n do t.x = t.x + 1 t.y = t.x - t.z t.z = t.y end\n" +
+			"  return t.x\n" +
+			"end" },
+		{ "calls",
+			"local function add(a, b) return a + b end\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i = 1, n do s = add(s, i) end\n" +
+			"  return s\n" +
+			"end" },
+	};
+
+	public static void main(String[] args) throws Exception {
+		run("", JsePlatform.standardGlobals());
+
+		Object context = null;
+		Method setInterruptHook = null;
+		try {
+			context = LuaThread.class.getMethod("getContext", new Class[0]).invoke(null, new Object[0]);
+			setInterruptHook = context.getClass().getMethod("setInterruptHook", new Class[] { LuaValue.class });
+		} catch (NoSuchMethodException e) {
+			System.out.println("interrupt hook                          not in this luaj");
+		}
+		if (setInterruptHook != null) {
+			setInterruptHook.invoke(context, new Object[] { new ZeroArgFunction() {
+				public LuaValue call() {
+					return NONE;
+				}
+			} });
+			run("interrupt hook, ", JsePlatform.standardGlobals());
+			setInterruptHook.invoke(context, new Object[] { null });
+		}
+
+		run("debug globals, ", JsePlatform.debugGlobals());
+	}
+
+	private static void run(String prefix, LuaValue globals) throws Exception {
+		for (int i = 0; i < BENCHMARKS.length; i++) {
+			byte[] script = BENCHMARKS[i][1].getBytes("ISO-8859-1");
+			final LuaValue f = LoadState.load(new ByteArrayInputStream(script), BENCHMARKS[i][0], globals).call();
+			Benchmark b = new Benchmark() {
+				protected void run() {
+					f.call(LuaValue.valueOf(N));
+				}
+			};
+			b.operations = N;
+			Benchmark.measure(prefix + BENCHMARKS[i][0], b, 20);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Numeric loops like those of mining turtles and GPS: integer for loops and arithmetic 
+ * past the small integer cache, and floating point vector maths.  Each benchmark runs 
+ * {@link #N} iterations of its loop.
+ * <p>
+ * The "counter" pairs run the same loop over counters inside and past the range of 
+ * cached integers, so the difference between them is the cost of boxing the counter.
+ */
+public class NumericBenchmark {
+	private static final int N = 1000000;
+
+	private static final String[][] BENCHMARKS = {
+		{ "empty for loop", 
+			"return function(n) for i = 1, n do end end" },
+		{ "integer sum", 
+			"return function(n) local s = 0 for i = 1, n do s = s + i end return s end" },
+		{ "integer arithmetic", 
+			"return function(n)\n" +
+			"  local x, y, z = 1000, 64, -1000\n" +
+			"  for i = 1, n do x = (x * 3 + i) % 4096 - 2048 y = y + i % 3 - 1 z = z - x end\n" +
+			"  return x + y + z\n" +
+			"end" },
+		{ "nested loops", 
+			"return function(n)\n" +
+			"  local c = 0\n" +
+			"  for x = 1, n / 1000 do for z = 1, 1000 do c = c + x * z end end\n" +
+			"  return c\n" +
+			"end" },
+		{ "trilateration", 
+			"local sqrt = math.sqrt\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i = 1, n do\n" +
+			"    local x1, y1, z1 = i * 0.5, 64.25, -i * 0.25\n" +
+			"    local dx, dy, dz = x1 - 120.5, y1 - 70, z1 + 33.75\n" +
+			"    local d = sqrt(dx * dx + dy * dy + dz * dz)\n" +
+			"    s = s + (d * d - 2500) / (2 * d + 1)\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end" },
+		{ "counter in cache, empty", 
+			"return function(n) for r = 1, n / 20000 do for i = 1, 20000 do end end end" },
+		{ "counter past cache, empty", 
+			"return function(n) for r = 1, n / 20000 do for i = 100001, 120000 do end end end" },
+		{ "counter in cache, call", 
+			"local function f(x) return x end\n" +
+			"return function(n) for r = 1, n / 20000 do for i = 1, 20000 do f(i) end end end" },
+		{ "counter past cache, call", 
+			"local function f(x) return x end\n" +
+			"return function(n) for r = 1, n / 20000 do for i = 100001, 120000 do f(i) end end end" },
+	};
+
+	public static void main(String[] args) throws Exception {
+		for (int i = 0; i < BENCHMARKS.length; i++) {
+			final LuaValue f = Benchmark.load(BENCHMARKS[i][1], BENCHMARKS[i][0]).call();
+			Benchmark b = new Benchmark() {
+				protected void run() {
+					f.call(LuaValue.valueOf(N));
+				}
+			};
+			b.operations = N;
+			Benchmark.measure(BENCHMARKS[i][0], b, 20);
+		}
+	}
+}
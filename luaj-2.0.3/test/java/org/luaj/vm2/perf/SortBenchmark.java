@@ -0,0 +1,50 @@
+package org.luaj.vm2.perf;
+
+import java.util.Random;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * table.sort on arrays of 10k to 1M elements: random integers, doubles and strings 
+ * with no comparator, random integers with a lua comparator, and integers which are 
+ * already sorted.  Times include copying the elements into a new table for each sort, 
+ * which is small next to sorting them.
+ */
+public class SortBenchmark {
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 10000, 100000, 1000000 };
+		final LuaValue comparator = Benchmark.load("return function(a, b) return a < b end", "lt").call();
+		for (int s = 0; s < sizes.length; s++) {
+			int n = sizes[s];
+			Random random = new Random(n);
+			LuaValue[] integers = new LuaValue[n];
+			LuaValue[] doubles = new LuaValue[n];
+			LuaValue[] strings = new LuaValue[n];
+			LuaValue[] sorted = new LuaValue[n];
+			for (int i = 0; i < n; i++) {
+				integers[i] = LuaValue.valueOf(random.nextInt(n * 4));
+				doubles[i] = LuaValue.valueOf(random.nextDouble() * n);
+				strings[i] = LuaValue.valueOf("item" + random.nextInt(n * 4));
+				sorted[i] = LuaValue.valueOf(i);
+			}
+			int iterations = Math.max(1, 1000000 / n);
+			measure(n + " integers", integers, LuaValue.NIL, iterations);
+			measure(n + " doubles", doubles, LuaValue.NIL, iterations);
+			measure(n + " strings", strings, LuaValue.NIL, iterations);
+			measure(n + " integers, comparator", integers, comparator, iterations);
+			measure(n + " sorted integers", sorted, LuaValue.NIL, iterations);
+		}
+	}
+
+	private static void measure(String name, final LuaValue[] values, final LuaValue comparator, int iterations) throws Exception {
+		Benchmark b = new Benchmark() {
+			protected void run() {
+				LuaTable t = LuaValue.listOf(values);
+				t.sort(comparator);
+			}
+		};
+		b.operations = values.length;
+		Benchmark.measure(name, b, iterations);
+	}
+}
@@ -0,0 +1,67 @@
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * The throughput of {@link LuaString#valueOf(String)} with many threads converting strings 
+ * at once, as each computer's LuaJLuaMachine.toValue() does for the string arguments and 
+ * results of API calls.  Most strings come from a small vocabulary, like method and event 
+ * names, and one in ten is new, like file contents or chat messages.
+ */
+public class StringInternBenchmark {
+	private static final int VOCABULARY = 1024;
+	private static final int CONVERSIONS = 10000000;
+
+	public static void main(String[] args) throws Exception {
+		// LuaString can't be initialized before LuaValue, whose constants it is built on
+		if (LuaValue.EMPTYSTRING == null)
+			throw new IllegalStateException();
+
+		final String[] words = new String[VOCABULARY];
+		for (int i = 0; i < VOCABULARY; i++)
+			words[i] = "word" + i;
+
+		int[] threadCounts = { 1, 2, 4, 8, 16 };
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up
+			for (int t = 0; t < threadCounts.length; t++)
+				run(words, threadCounts[t], round > 0);
+		}
+	}
+
+	private static void run(final String[] words, int count, boolean print) throws Exception {
+		final int perThread = CONVERSIONS / count;
+		Thread[] threads = new Thread[count];
+		for (int t = 0; t < count; t++) {
+			final int seed = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					int unique = seed * perThread;
+					int x = seed;
+					int length = 0;
+					for (int i = 0; i < perThread; i++) {
+						x = x * 1103515245 + 12345;
+						String s = (i % 10 == 0)? "unique" + (unique++): words[(x >>> 8) % VOCABULARY];
+						length += LuaString.valueOf(s).length();
+					}
+					if (length == 0)
+						throw new IllegalStateException();
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (int t = 0; t < count; t++)
+			threads[t].start();
+		for (int t = 0; t < count; t++)
+			threads[t].join();
+		long time = System.nanoTime() - start;
+
+		if (print) {
+			double ops = (double) perThread * count;
+			System.out.println(Benchmark.pad(count + " threads", 16) + 
+					Benchmark.pad(Benchmark.format(ops * 1e6 / time) + " conversions/ms", 24) + 
+					Benchmark.format(time / ops) + " ns/op");
+		}
+	}
+}
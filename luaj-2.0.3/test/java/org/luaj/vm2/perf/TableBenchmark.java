@@ -0,0 +1,116 @@
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Building and iterating over large tables: filling the array part in order, filling 
+ * the hash part with integer and string keys in a random order, and walking a table 
+ * with next(), both from Java and from lua.
+ */
+public class TableBenchmark {
+	private static final int N = 100000;
+
+	private static final String LUA =
+		"local n = ...\n" +
+		"local keys = {}\n" +
+		"for i = 1, n do keys[i] = 'key' .. i end\n" +
+		"local full = {}\n" +
+		"for i = 1, n do full[keys[i]] = i end\n" +
+		"return function()\n" +
+		"  local t = {}\n" +
+		"  for i = 1, n do t[i] = i end\n" +
+		"end, function()\n" +
+		"  local t = {}\n" +
+		"  for i = 1, n do t[keys[i]] = i end\n" +
+		"end, function()\n" +
+		"  local sum = 0\n" +
+		"  for k, v in pairs(full) do sum = sum + v end\n" +
+		"  return sum\n" +
+		"end\n";
+
+	public static void main(String[] args) throws Exception {
+		final LuaValue[] integers = new LuaValue[N];
+		final LuaValue[] randomIntegers = new LuaValue[N];
+		final LuaValue[] strings = new LuaValue[N];
+		java.util.Random random = new java.util.Random(1);
+		for (int i = 0; i < N; i++) {
+			integers[i] = LuaValue.valueOf(i + 1);
+			randomIntegers[i] = LuaValue.valueOf(random.nextInt());
+			strings[i] = LuaValue.valueOf("key" + i);
+		}
+		for (int i = N - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			LuaValue s = strings[i];
+			strings[i] = strings[j];
+			strings[j] = s;
+		}
+
+		final LuaTable full = new LuaTable();
+		for (int i = 0; i < N; i++)
+			full.set(strings[i], integers[i]);
+
+		Benchmark b = new Benchmark() {
+			protected void run() {
+				LuaTable t = new LuaTable();
+				for (int i = 0; i < N; i++)
+					t.set(i + 1, integers[i]);
+			}
+		};
+		b.operations = N;
+		Benchmark.measure("sequential insert", b, 50);
+
+		b = new Benchmark() {
+			protected void run() {
+				LuaTable t = new LuaTable();
+				for (int i = 0; i < N; i++)
+					t.set(randomIntegers[i], integers[i]);
+			}
+		};
+		b.operations = N;
+		Benchmark.measure("random integer insert", b, 50);
+
+		b = new Benchmark() {
+			protected void run() {
+				LuaTable t = new LuaTable();
+				for (int i = 0; i < N; i++)
+					t.set(strings[i], integers[i]);
+			}
+		};
+		b.operations = N;
+		Benchmark.measure("random string insert", b, 50);
+
+		b = new Benchmark() {
+			protected void run() {
+				int count = 0;
+				LuaValue k = LuaValue.NIL;
+				while (true) {
+					Varargs n = full.next(k);
+					if ((k = n.arg1()).isnil())
+						break;
+					count++;
+				}
+				if (count != N)
+					throw new IllegalStateException();
+			}
+		};
+		b.operations = N;
+		Benchmark.measure("next()", b, 50);
+
+		Varargs lua = Benchmark.load(LUA, "tables").invoke(LuaValue.valueOf(N));
+		measureLua("lua sequential insert", lua.arg(1));
+		measureLua("lua string insert", lua.arg(2));
+		measureLua("lua pairs()", lua.arg(3));
+	}
+
+	private static void measureLua(String name, final LuaValue f) throws Exception {
+		Benchmark b = new Benchmark() {
+			protected void run() {
+				f.call();
+			}
+		};
+		b.operations = N;
+		Benchmark.measure(name, b, 50);
+	}
+}
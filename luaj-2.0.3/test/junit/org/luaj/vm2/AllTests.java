@@ -0,0 +1,19 @@
+package org.luaj.vm2;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * All of the unit tests for the luaj vm and libraries, as run by the test target of build.xml.
+ */
+public class AllTests {
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("All Tests for Luaj-vm2");
+		suite.addTestSuite(LuaThreadContextTest.class);
+		suite.addTestSuite(MemoryLimitTest.class);
+		suite.addTestSuite(StringConcatTest.class);
+		suite.addTestSuite(TableSortTest.class);
+		return suite;
+	}
+}
@@ -0,0 +1,120 @@
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Runs many sets of globals, each with its own {@link LuaThread.Context}, on different 
+ * Java threads at the same time, and checks none of them see another's running 
+ * coroutine, globals or string metatable.
+ */
+public class LuaThreadContextTest extends TestCase {
+	private static final int MACHINES = 16;
+	private static final int ROUNDS = 200;
+
+	/** 
+	 * Each machine tags its string metatable, then runs a number of coroutines which 
+	 * yield back and forth, checking the tag, its id global and coroutine.running() 
+	 * as they go.  It returns the sum of everything it was yielded.
+	 */
+	private static final String SCRIPT =
+		"local id, rounds = ...\n" +
+		"getmetatable('').__index.owner = id\n" +
+		"machine = id\n" +
+		"local function check(co)\n" +
+		"  assert(machine == id, 'global changed')\n" +
+		"  assert(('').owner == id, 'string metatable changed')\n" +
+		"  assert(coroutine.running() == co, 'running coroutine changed')\n" +
+		"end\n" +
+		"local sum = 0\n" +
+		"for r = 1, rounds do\n" +
+		"  local cos = {}\n" +
+		"  for i = 1, 4 do\n" +
+		"    local co\n" +
+		"    co = coroutine.create(function(a)\n" +
+		"      for j = 1, 5 do check(co); a = coroutine.yield(a + j) end\n" +
+		"      return a\n" +
+		"    end)\n" +
+		"    cos[i] = co\n" +
+		"  end\n" +
+		"  for j = 1, 6 do\n" +
+		"    for i = 1, 4 do\n" +
+		"      local ok, v = coroutine.resume(cos[i], id)\n" +
+		"      assert(ok, v)\n" +
+		"      sum = sum + v\n" +
+		"    end\n" +
+		"    check(nil)\n" +
+		"  end\n" +
+		"end\n" +
+		"return sum\n";
+
+	private boolean stackless;
+
+	protected void setUp() throws Exception {
+		stackless = LuaThread.stackless_coroutines;
+	}
+
+	protected void tearDown() throws Exception {
+		LuaThread.stackless_coroutines = stackless;
+	}
+
+	public void testThreadedCoroutines() throws Exception {
+		LuaThread.stackless_coroutines = false;
+		runMachines();
+	}
+
+	public void testStacklessCoroutines() throws Exception {
+		LuaThread.stackless_coroutines = true;
+		runMachines();
+	}
+
+	private void runMachines() throws Exception {
+		final Object[] results = new Object[MACHINES];
+		Thread[] threads = new Thread[MACHINES];
+		for (int i = 0; i < MACHINES; i++) {
+			final int id = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						results[id] = runMachine(id);
+					} catch (Throwable t) {
+						results[id] = t;
+					}
+				}
+			}, "Machine " + i);
+		}
+		for (int i = 0; i < MACHINES; i++)
+			threads[i].start();
+		for (int i = 0; i < MACHINES; i++)
+			threads[i].join();
+
+		for (int id = 0; id < MACHINES; id++) {
+			if (results[id] instanceof Throwable)
+				throw new AssertionError("machine " + id + " failed: " + results[id]);
+			// each round, four coroutines yield id+1 .. id+5, then return id
+			long expected = (long) ROUNDS * 4 * (5 * id + 15 + id);
+			assertEquals("machine " + id, expected, ((Long) results[id]).longValue());
+		}
+	}
+
+	private static Long runMachine(int id) throws Exception {
+		LuaThread.Context context = new LuaThread.Context();
+		LuaThread.Context previous = LuaThread.setContext(context);
+		try {
+			// the libraries register themselves with each other through statics while they load
+			LuaValue globals;
+			synchronized (LuaThreadContextTest.class) {
+				globals = JsePlatform.standardGlobals();
+			}
+			LuaValue chunk = LoadState.load(new ByteArrayInputStream(SCRIPT.getBytes()), "machine", globals);
+			Varargs result = chunk.invoke(LuaValue.varargsOf(LuaValue.valueOf(id), LuaValue.valueOf(ROUNDS)));
+			assertSame(context.main_thread, LuaThread.getRunning());
+			return new Long(result.arg1().tolong());
+		} finally {
+			LuaThread.setContext(previous);
+		}
+	}
+}
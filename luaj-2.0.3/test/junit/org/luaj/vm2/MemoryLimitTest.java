@@ -0,0 +1,78 @@
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Checks the memory limit of a {@link LuaThread.Context} counts small strings and tables 
+ * as well as large ones, and that garbage does not count against it once collected.
+ */
+public class MemoryLimitTest extends TestCase {
+	private static final long LIMIT = 16 << 20;
+
+	private LuaThread.Context context;
+	private LuaValue globals;
+
+	protected void setUp() throws Exception {
+		context = new LuaThread.Context();
+		LuaThread.setContext(context);
+		globals = JsePlatform.standardGlobals();
+		context.setMemoryLimit(LIMIT);
+	}
+
+	protected void tearDown() throws Exception {
+		LuaThread.setContext(null);
+	}
+
+	public void testSmallTablesAreCounted() throws Exception {
+		long before = context.getMemoryUsed();
+		run("keep = {} for i = 1, 10000 do keep[i] = {} end");
+		assertTrue(context.getMemoryUsed() - before >= 10000 * 40);
+	}
+
+	public void testSmallTablesReachLimit() throws Exception {
+		assertOutOfMemory("local t = {} for i = 1, 1e7 do t[i] = {} end");
+	}
+
+	public void testSmallStringsReachLimit() throws Exception {
+		assertOutOfMemory("local t = {} for i = 1, 1e7 do t[i] = 'x' .. i end");
+	}
+
+	public void testLargeStringReachesLimit() throws Exception {
+		assertOutOfMemory("return ('x'):rep(" + (LIMIT + 1) + ")");
+	}
+
+	public void testGarbageIsReleased() throws Exception {
+		// more garbage than the limit in all, collected between runs as the JVM would
+		long before = context.getMemoryUsed();
+		for (int i = 0; i < 4; i++) {
+			run("for i = 1, 50000 do local t = {i, i .. ''} end");
+			collect(before + LIMIT / 8);
+		}
+	}
+
+	private void collect(long target) throws InterruptedException {
+		for (int i = 0; i < 50 && context.getMemoryUsed() > target; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue(context.getMemoryUsed() <= target);
+	}
+
+	private LuaValue run(String script) throws Exception {
+		return LoadState.load(new ByteArrayInputStream(script.getBytes("ISO-8859-1")), "test", globals).call();
+	}
+
+	private void assertOutOfMemory(String script) throws Exception {
+		try {
+			run(script);
+			fail("expected not enough memory");
+		} catch (LuaError e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("not enough memory") >= 0);
+		}
+		assertTrue(context.getMemoryUsed() <= LIMIT);
+	}
+}
@@ -0,0 +1,152 @@
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CyclicBarrier;
+
+import junit.framework.TestCase;
+
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Checks that appending to the end of a long concatenation result in place never
+ * changes a string lua can already see: only one string can own the room after the
+ * end of a shared array, and every other concatenation with the same prefix copies.
+ */
+public class StringConcatTest extends TestCase {
+	private LuaValue globals;
+
+	protected void setUp() throws Exception {
+		globals = JsePlatform.standardGlobals();
+	}
+
+	private Varargs run(String script) throws Exception {
+		return LoadState.load(new ByteArrayInputStream(script.getBytes("ISO-8859-1")), "test", globals).invoke();
+	}
+
+	private static String repeat(char c, int n) {
+		StringBuffer sb = new StringBuffer(n);
+		for (int i = 0; i < n; i++)
+			sb.append(c);
+		return sb.toString();
+	}
+
+	/** A string built by concatenation, which has room to be appended to in place */
+	private static LuaString grown() {
+		LuaValue s = LuaValue.valueOf(repeat('a', 64));
+		s = s.concat(LuaValue.valueOf("b"));
+		s = s.concat(LuaValue.valueOf("c"));
+		return (LuaString) s;
+	}
+
+	private static final String GROWN = repeat('a', 64) + "bc";
+
+	public void testAppendSharesArray() {
+		LuaString s = grown();
+		LuaString a = (LuaString) s.concat(LuaValue.valueOf("x"));
+		assertSame(s.m_bytes, a.m_bytes);
+		assertEquals(GROWN + "x", a.tojstring());
+		assertEquals(GROWN, s.tojstring());
+	}
+
+	public void testSharedPrefixBranches() {
+		LuaString s = grown();
+		LuaString a = (LuaString) s.concat(LuaValue.valueOf("x"));
+		LuaString b = (LuaString) s.concat(LuaValue.valueOf("y"));
+		assertNotSame(a.m_bytes, b.m_bytes);
+		assertEquals(GROWN + "x", a.tojstring());
+		assertEquals(GROWN + "y", b.tojstring());
+		assertEquals(GROWN, s.tojstring());
+	}
+
+	public void testSameSuffixTwice() {
+		LuaString s = grown();
+		LuaValue a = s.concat(LuaValue.valueOf("x"));
+		LuaValue b = s.concat(LuaValue.valueOf("x"));
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertEquals(GROWN + "x", a.tojstring());
+		assertEquals(GROWN, s.tojstring());
+	}
+
+	public void testBranchAfterChain() {
+		LuaString s = grown();
+		LuaValue a = s.concat(LuaValue.valueOf("x"));
+		LuaValue b = a.concat(LuaValue.valueOf("y"));
+		LuaValue c = s.concat(LuaValue.valueOf("z"));
+		LuaValue d = a.concat(LuaValue.valueOf("w"));
+		assertEquals(GROWN, s.tojstring());
+		assertEquals(GROWN + "x", a.tojstring());
+		assertEquals(GROWN + "xy", b.tojstring());
+		assertEquals(GROWN + "z", c.tojstring());
+		assertEquals(GROWN + "xw", d.tojstring());
+	}
+
+	public void testSelfAndSubstring() {
+		LuaString s = grown();
+		assertEquals(GROWN + GROWN, s.concat(s).tojstring());
+		LuaString sub = s.substring(0, s.m_length);
+		assertEquals(GROWN + "q", sub.concat(LuaValue.valueOf("q")).tojstring());
+		assertEquals(GROWN + "r", s.concat(LuaValue.valueOf("r")).tojstring());
+		assertEquals(GROWN, sub.tojstring());
+	}
+
+	public void testLuaBranches() throws Exception {
+		Varargs r = run(
+			"local s = string.rep('a', 64)\n" +
+			"for i = 1, 100 do s = s .. i end\n" +
+			"local copy = s:sub(1)\n" +
+			"local a = s .. 'x'\n" +
+			"local b = s .. 'y'\n" +
+			"local c = s .. 'x' .. 'y'\n" +
+			"local d = a .. b\n" +
+			"return s == copy, a == copy .. 'x', b == copy .. 'y', c == copy .. 'xy', d == copy .. 'x' .. copy .. 'y'");
+		for (int i = 1; i <= 5; i++)
+			assertTrue("result " + i, r.arg(i).toboolean());
+	}
+
+	public void testLuaBuildInLoop() throws Exception {
+		Varargs r = run(
+			"local parts, s = {}, ''\n" +
+			"for i = 1, 2000 do local piece = tostring(i) .. ',' s = s .. piece parts[i] = piece end\n" +
+			"return s == table.concat(parts), #s");
+		assertTrue(r.arg1().toboolean());
+	}
+
+	public void testThreadsAppendToSharedPrefix() throws Exception {
+		final int rounds = 2000;
+		final LuaString[] prefix = new LuaString[1];
+		final LuaValue[][] results = new LuaValue[2][rounds];
+		final CyclicBarrier start = new CyclicBarrier(2, new Runnable() {
+			public void run() {
+				prefix[0] = grown();
+			}
+		});
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[2];
+		for (int t = 0; t < 2; t++) {
+			final int id = t;
+			final LuaValue suffix = LuaValue.valueOf(id == 0? "left": "right");
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < rounds; i++) {
+							start.await();
+							results[id][i] = prefix[0].concat(suffix);
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < 2; t++)
+			threads[t].join();
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+		for (int i = 0; i < rounds; i++) {
+			assertEquals(GROWN + "left", results[0][i].tojstring());
+			assertEquals(GROWN + "right", results[1][i].tojstring());
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Checks table.sort against the semantics of Lua 5.1: numbers and strings are 
+ * compared directly and mixing them is an error, other values are compared with 
+ * __lt or the comparator, and a bad comparator can scramble the order but never 
+ * loses elements or stops the sort from finishing.
+ */
+public class TableSortTest extends TestCase {
+	private LuaValue globals;
+
+	protected void setUp() throws Exception {
+		globals = JsePlatform.standardGlobals();
+	}
+
+	private Varargs run(String script) throws Exception {
+		return LoadState.load(new ByteArrayInputStream(script.getBytes("ISO-8859-1")), "test", globals).invoke();
+	}
+
+	private String sorted(String elements, String comparator) throws Exception {
+		return run("local t = { " + elements + " }\n" +
+			"table.sort(t" + (comparator != null? ", " + comparator: "") + ")\n" +
+			"for i = 1, #t do t[i] = tostring(t[i]) end\n" +
+			"return table.concat(t, ' ')").arg1().tojstring();
+	}
+
+	public void testEmptyAndSingle() throws Exception {
+		assertEquals("", sorted("", null));
+		assertEquals("1", sorted("1", null));
+	}
+
+	public void testIntegers() throws Exception {
+		assertEquals("-300 -1 0 2 3 255 256 70000", sorted("256, 3, -1, 70000, 0, -300, 2, 255", null));
+	}
+
+	public void testMixedIntegersAndDoubles() throws Exception {
+		assertEquals("-1000000000 -2.5 -2 0 0.5 1 1.5 3 1000000000", 
+			sorted("1.5, -2, 1e9, 0, -2.5, 3, -1e9, 0.5, 1", null));
+	}
+
+	public void testStringsCompareBytes() throws Exception {
+		// byte order, so upper case first and shorter prefixes first 
+		assertEquals("A B Z a ab abc b", sorted("'b', 'abc', 'Z', 'a', 'B', 'ab', 'A'", null));
+		assertEquals("1\0000 1\0001 10", sorted("'10', '1\\0001', '1\\0000'", null));
+	}
+
+	public void testStringsAgreeWithLessThan() throws Exception {
+		// luaj compares bytes as signed values, so bytes over 127 come before the rest, 
+		// unlike C Lua; either way sort must agree with the < operator 
+		Varargs r = run(
+			"local t = { 'b', '\\255', 'a', '\\128x', 'A', '\\200', '' }\n" +
+			"table.sort(t)\n" +
+			"for i = 2, #t do if t[i] < t[i - 1] then return false end end\n" +
+			"return #t");
+		assertEquals(7, r.arg1().toint());
+	}
+
+	public void testNumbersAreNotStrings() throws Exception {
+		// numeric order, not the order of their string forms 
+		assertEquals("2 10 100", sorted("100, 2, 10", null));
+		assertEquals("10 100 2", sorted("'100', '2', '10'", null));
+	}
+
+	public void testMixedTypesFail() throws Exception {
+		Varargs r = run("return pcall(table.sort, { 1, 'x', 2 })");
+		assertFalse(r.arg1().toboolean());
+		assertTrue(r.arg(2).tojstring(), r.arg(2).tojstring().indexOf("attempt to compare") >= 0);
+
+		r = run("return pcall(table.sort, { 1, {}, 2 })");
+		assertFalse(r.arg1().toboolean());
+		assertTrue(r.arg(2).tojstring(), r.arg(2).tojstring().indexOf("attempt to compare") >= 0);
+	}
+
+	public void testComparator() throws Exception {
+		assertEquals("9 7 5 3 1", sorted("3, 9, 1, 7, 5", "function(a, b) return a > b end"));
+		assertEquals("a bb ccc dddd", sorted("'ccc', 'a', 'dddd', 'bb'", "function(a, b) return #a < #b end"));
+	}
+
+	public void testComparatorMixingTypes() throws Exception {
+		// a comparator can order values which can't be compared directly 
+		assertEquals("1 2 x y", sorted("'y', 2, 'x', 1", 
+			"function(a, b) if type(a) ~= type(b) then return type(a) == 'number' end return a < b end"));
+	}
+
+	public void testLessThanMetamethod() throws Exception {
+		assertEquals("1 2 3 4", run(
+			"local mt = { __lt = function(a, b) return a.v < b.v end }\n" +
+			"local t = {}\n" +
+			"for i, v in ipairs({ 3, 1, 4, 2 }) do t[i] = setmetatable({ v = v }, mt) end\n" +
+			"table.sort(t)\n" +
+			"for i = 1, #t do t[i] = t[i].v end\n" +
+			"return table.concat(t, ' ')").arg1().tojstring());
+	}
+
+	public void testComparatorErrorsPropagate() throws Exception {
+		Varargs r = run("return pcall(table.sort, { 3, 2, 1 }, function(a, b) error('boom', 0) end)");
+		assertFalse(r.arg1().toboolean());
+		assertEquals("boom", r.arg(2).tojstring());
+	}
+
+	public void testInconsistentComparatorKeepsElements() throws Exception {
+		// Lua 5.1 may raise "invalid order function for sorting" here, or leave any order, 
+		// but the elements must all still be there 
+		String[] comparators = { 
+			"function(a, b) return true end", 
+			"function(a, b) return false end", 
+			"function(a, b) return math.random() < 0.5 end", 
+		};
+		for (int c = 0; c < comparators.length; c++) {
+			Varargs r = run(
+				"local t = {}\n" +
+				"for i = 1, 200 do t[i] = i end\n" +
+				"local ok = pcall(table.sort, t, " + comparators[c] + ")\n" +
+				"local seen, n = {}, 0\n" +
+				"for i = 1, #t do if not seen[t[i]] then seen[t[i]] = true n = n + 1 end end\n" +
+				"return n, #t");
+			assertEquals(comparators[c], 200, r.arg1().toint());
+			assertEquals(comparators[c], 200, r.arg(2).toint());
+		}
+	}
+
+	public void testNaNKeepsElements() throws Exception {
+		Varargs r = run(
+			"local t = { 3, 0/0, 1, 2, 0/0 }\n" +
+			"table.sort(t)\n" +
+			"local nans, sum = 0, 0\n" +
+			"for i = 1, #t do if t[i] ~= t[i] then nans = nans + 1 else sum = sum + t[i] end end\n" +
+			"return nans, sum, #t");
+		assertEquals(2, r.arg1().toint());
+		assertEquals(6, r.arg(2).toint());
+		assertEquals(5, r.arg(3).toint());
+	}
+
+	public void testOnlyArrayIsSorted() throws Exception {
+		// fields other than 1..n are left alone 
+		assertEquals("1 2 3 x", run(
+			"local t = { 3, 1, 2, name = 'x' }\n" +
+			"table.sort(t)\n" +
+			"return t[1] .. ' ' .. t[2] .. ' ' .. t[3] .. ' ' .. t.name").arg1().tojstring());
+	}
+
+	public void testLargeRandomArrays() throws Exception {
+		Random random = new Random(17);
+		int n = 10000;
+		LuaValue[] numbers = new LuaValue[n];
+		LuaValue[] strings = new LuaValue[n];
+		double[] expectedNumbers = new double[n];
+		String[] expectedStrings = new String[n];
+		for (int i = 0; i < n; i++) {
+			double d = (i % 3 == 0)? random.nextInt(1000) - 500: random.nextDouble() * 1e6 - 5e5;
+			numbers[i] = LuaValue.valueOf(d);
+			expectedNumbers[i] = d;
+			String s = Integer.toString(random.nextInt(), 36);
+			strings[i] = LuaValue.valueOf(s);
+			expectedStrings[i] = s;
+		}
+		Arrays.sort(expectedNumbers);
+		Arrays.sort(expectedStrings);
+
+		LuaTable t = LuaValue.listOf(numbers);
+		t.sort(LuaValue.NIL);
+		for (int i = 0; i < n; i++)
+			assertEquals(expectedNumbers[i], t.get(i + 1).todouble(), 0);
+
+		t = LuaValue.listOf(strings);
+		t.sort(LuaValue.NIL);
+		for (int i = 0; i < n; i++)
+			assertEquals(expectedStrings[i], t.get(i + 1).tojstring());
+
+		// the same through a comparator, which takes the quicksort 
+		t = LuaValue.listOf(numbers);
+		t.sort(run("return function(a, b) return a > b end").arg1());
+		for (int i = 0; i < n; i++)
+			assertEquals(expectedNumbers[n - 1 - i], t.get(i + 1).todouble(), 0);
+	}
+
+	public void testSortedAndReversedInput() throws Exception {
+		// the worst cases of a naive quicksort 
+		Varargs r = run(
+			"local t = {}\n" +
+			"for i = 1, 5000 do t[i] = i end\n" +
+			"table.sort(t, function(a, b) return a < b end)\n" +
+			"for i = 1, 5000 do assert(t[i] == i) end\n" +
+			"table.sort(t, function(a, b) return a > b end)\n" +
+			"for i = 1, 5000 do assert(t[i] == 5001 - i) end\n" +
+			"return true");
+		assertTrue(r.arg1().toboolean());
+	}
+}
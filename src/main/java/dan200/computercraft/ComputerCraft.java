@@ -19,6 +19,7 @@ import dan200.computercraft.api.turtle.ITurtleUpgrade;
 import dan200.computercraft.core.filesystem.ComboMount;
 import dan200.computercraft.core.filesystem.FileMount;
 import dan200.computercraft.core.filesystem.JarMount;
+import dan200.computercraft.core.lua.PrototypeCache;
 import dan200.computercraft.shared.common.DefaultBundledRedstoneProvider;
 import dan200.computercraft.shared.computer.blocks.BlockCommandComputer;
 import dan200.computercraft.shared.computer.blocks.BlockComputer;
@@ -67,6 +68,8 @@ import net.minecraftforge.fml.common.network.FMLEventChannel;
 import net.minecraftforge.fml.common.network.NetworkRegistry;
 import net.minecraftforge.fml.common.network.internal.FMLProxyPacket;
 import net.minecraftforge.fml.relauncher.Side;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import java.io.File;
@@ -107,6 +110,8 @@ public class ComputerCraft {
     public static FMLEventChannel networkEventChannel;
     // Creative
     public static CreativeTabMain mainCreativeTab;
+    // Logging, replaced by the mod's own log once it is loaded
+    public static Logger log = LogManager.getLogger("computercraft");
     // Implementation
     @Mod.Instance(value = "computercraft")
     public static ComputerCraft instance;
@@ -525,6 +530,8 @@ public class ComputerCraft {
 
     @Mod.EventHandler
     public void preInit(FMLPreInitializationEvent event) {
+        log = event.getModLog();
+
         // Load config
         Config.config = new Configuration(event.getSuggestedConfigurationFile());
         Config.config.load();
@@ -547,6 +554,35 @@ public class ComputerCraft {
         prop.setComment("A comma separated list of default system settings to set on new computers. Example: \"shell.autocomplete=false,lua.autocomplete=false,edit.autocomplete=false\" will disable all autocompletion");
         Config.default_computer_settings = prop.getString();
 
+        prop = Config.config.get(Configuration.CATEGORY_GENERAL, "computer_threads", Config.computer_threads);
+        prop.setComment("The number of threads Computers and Turtles run on. More threads let more computers run at the same time, but each computer still only runs one event at a time. Takes effect after a restart.");
+        prop.setRequiresMcRestart(true);
+        Config.computer_threads = Math.max(1, prop.getInt(Config.computer_threads));
+
+        prop = Config.config.get(Configuration.CATEGORY_GENERAL, "computer_time_budget", Config.computer_time_budget);
+        prop.setComment("The maximum time, in milliseconds, a single Computer or Turtle may run for during each 50ms tick. Computers which go over their budget are held back until the next tick. Set to 0 for no limit.");
+        Config.computer_time_budget = Math.max(0, prop.getInt(Config.computer_time_budget));
+
+        prop = Config.config.get(Configuration.CATEGORY_GENERAL, "computer_memory_limit", Config.computer_memory_limit);
+        prop.setComment("The maximum memory, in megabytes, a single Computer or Turtle may hold in strings and tables. Allocations which would go over it raise a \"not enough memory\" error. Garbage counts until Java collects it, so set this well above the young generation size of the server. Set to 0 for no limit. Affects computers started after the change.");
+        Config.computer_memory_limit = Math.max(0, prop.getInt(Config.computer_memory_limit));
+
+        prop = Config.config.get(Configuration.CATEGORY_GENERAL, "stackless_coroutines", Config.stackless_coroutines);
+        prop.setComment("Set this to true to run Lua coroutines without an OS thread each. A coroutine only gets a thread of its own once it calls a method which may wait for events, such as peripheral methods. Experimental. Affects computers started after the change.");
+        Config.stackless_coroutines = prop.getBoolean(Config.stackless_coroutines);
+
+        prop = Config.config.get(Configuration.CATEGORY_GENERAL, "bytecode_compile_rom", Config.bytecode_compile_rom);
+        prop.setComment("Set this to true to compile the Lua code of the ROM and other read-only disks to Java bytecode rather than interpreting it. Experimental. Stackless coroutines are not used while any code is compiled. Affects computers started after the change.");
+        Config.bytecode_compile_rom = prop.getBoolean(Config.bytecode_compile_rom);
+
+        prop = Config.config.get(Configuration.CATEGORY_GENERAL, "bytecode_compile_threshold", Config.bytecode_compile_threshold);
+        prop.setComment("The number of times the same Lua program may be loaded before it is compiled to Java bytecode rather than interpreted. Experimental. Set to 0 to never compile programs this way.");
+        Config.bytecode_compile_threshold = Math.max(0, prop.getInt(Config.bytecode_compile_threshold));
+
+        prop = Config.config.get(Configuration.CATEGORY_GENERAL, "suspend_computers", Config.suspend_computers);
+        prop.setComment("Set this to true to save the state of running Computers to disk when they are unloaded, and carry on where they left off when they are loaded again, rather than rebooting them. Experimental. Needs stackless_coroutines, and does not work while any code is compiled to Java bytecode. Computers which have peripherals attached, files open or HTTP requests in progress are shut down as before.");
+        Config.suspend_computers = prop.getBoolean(Config.suspend_computers);
+
         prop = Config.config.get(Configuration.CATEGORY_GENERAL, "enableCommandBlock", Config.enableCommandBlock);
         prop.setComment("Enable Command Block peripheral support");
         Config.enableCommandBlock = prop.getBoolean(Config.enableCommandBlock);
@@ -631,6 +667,9 @@ public class ComputerCraft {
         if (FMLCommonHandler.instance().getEffectiveSide() == Side.SERVER) {
             ComputerCraft.serverComputerRegistry.reset();
             WirelessNetwork.resetNetworks();
+
+            World world = FMLCommonHandler.instance().getMinecraftServerInstance().getEntityWorld();
+            PrototypeCache.setCacheDir(new File(getWorldDir(world), "computer/bytecode"));
         }
     }
 
@@ -639,6 +678,7 @@ public class ComputerCraft {
         if (FMLCommonHandler.instance().getEffectiveSide() == Side.SERVER) {
             ComputerCraft.serverComputerRegistry.reset();
             WirelessNetwork.resetNetworks();
+            PrototypeCache.setCacheDir(null);
         }
     }
 
@@ -648,6 +688,13 @@ public class ComputerCraft {
         public static String http_whitelist = "*";
         public static boolean disable_lua51_features = false;
         public static String default_computer_settings = "";
+        public static int computer_threads = 1;
+        public static int computer_time_budget = 0;
+        public static int computer_memory_limit = 0;
+        public static boolean stackless_coroutines = false;
+        public static boolean bytecode_compile_rom = false;
+        public static int bytecode_compile_threshold = 0;
+        public static boolean suspend_computers = false;
         public static boolean enableCommandBlock = false;
         public static boolean turtlesNeedFuel = true;
         public static int turtleFuelLimit = 20000;
@@ -0,0 +1,28 @@
+/**
+ * This file is part of the public ComputerCraft API - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. This API may be redistributed unmodified and in full only.
+ * For help using the API, and posting your mods, visit the forums at computercraft.info.
+ */
+
+package dan200.computercraft.api.lua;
+
+/**
+ * Implement this interface on an ILuaObject or IPeripheral to receive lua strings as their raw bytes, rather than
+ * converted to Strings. Use this for methods which handle binary data, or large amounts of text, which would otherwise
+ * be copied and converted on the way in.<br>
+ * <br>
+ * When a method of an object implementing this interface is called, each lua string passed directly as an argument
+ * is represented by a java.nio.ByteBuffer whose remaining bytes are the bytes of the string. The buffer is a read only
+ * view of the array backing the lua string, so no copy is made, and it has no accessible array: read it with get().
+ * Strings inside tables are still represented by Strings.<br>
+ * <br>
+ * Any method, whether or not its object implements this interface, may return a byte[] or a java.nio.ByteBuffer to
+ * give lua a string of exactly those bytes. A byte[] is copied, so it may be changed or reused afterwards. The remaining
+ * bytes of a ByteBuffer are used without being copied if the buffer is backed by an accessible array, which must then
+ * not be changed after it has been returned. Read only buffers, and those not backed by an array, are copied.
+ *
+ * @see ILuaObject#callMethod(ILuaContext, int, Object[])
+ * @see dan200.computercraft.api.peripheral.IPeripheral#callMethod(dan200.computercraft.api.peripheral.IComputerAccess, ILuaContext, int, Object[])
+ */
+public interface ILuaBinaryArguments {
+}
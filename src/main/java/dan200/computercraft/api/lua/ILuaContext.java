@@ -45,10 +45,14 @@ public interface ILuaContext {
     Object[] yield(Object[] arguments) throws InterruptedException;
 
     /**
-     * TODO: Document me
+     * Run a task on the main thread, and wait for it to finish, suspending the current coroutine until it does. This is
+     * the same as calling get() on the future returned by submitMainThreadTask().
      *
-     * @param task
-     * @return
+     * @param task The task to run
+     * @return The results the task returned, as they are
+     * @throws LuaException         If the task threw one, or there are too many tasks waiting to be run
+     * @throws InterruptedException If the user shuts down or reboots the computer while the task is running
+     * @see #submitMainThreadTask(ILuaTask)
      */
     Object[] executeMainThreadTask(ILuaTask task) throws LuaException, InterruptedException;
 
@@ -59,4 +63,26 @@ public interface ILuaContext {
      * @return
      */
     long issueMainThreadTask(ILuaTask task) throws LuaException;
+
+    /**
+     * Queue a task to be run on the main thread, returning immediately with a future which completes with its results.
+     * The method can carry on while the task runs, then wait for it with the future's get(). The task's results are
+     * handed to the method directly, and aren't queued as a task_complete event for lua to see.
+     *
+     * @param task The task to run
+     * @return A future which completes with the results of the task, or fails with the message of a LuaException it
+     * throws
+     * @throws LuaException If there are too many tasks waiting to be run
+     * @see ILuaFuture
+     */
+    ILuaFuture submitMainThreadTask(ILuaTask task) throws LuaException;
+
+    /**
+     * Create a future, for a method to wait on while some other thread does work for it. Completing the future from
+     * that thread wakes the method up, with the results passed straight to it.
+     *
+     * @return A new future
+     * @see ILuaFuture
+     */
+    ILuaFuture createFuture();
 }
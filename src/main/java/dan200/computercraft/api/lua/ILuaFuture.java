@@ -0,0 +1,58 @@
+/**
+ * This file is part of the public ComputerCraft API - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. This API may be redistributed unmodified and in full only.
+ * For help using the API, and posting your mods, visit the forums at computercraft.info.
+ */
+
+package dan200.computercraft.api.lua;
+
+/**
+ * The results of some work which finishes after the method that started it, such as a task run on the main thread.
+ * Futures are created by an ILuaContext, and may be completed from any thread. The method which started the work can
+ * carry on, and later wait for the results with get(), which suspends the calling coroutine rather than blocking the
+ * computer's thread.<br>
+ * <br>
+ * The results are handed from the thread completing the future to the waiting method as they are, without being
+ * converted to lua values and back, so they may contain anything a method can return.
+ *
+ * @see ILuaContext#createFuture()
+ * @see ILuaContext#submitMainThreadTask(ILuaTask)
+ */
+public interface ILuaFuture {
+    /**
+     * Check whether the future has been completed or failed, without waiting.
+     *
+     * @return Whether get() would return, or throw, without waiting
+     */
+    boolean isDone();
+
+    /**
+     * Wait for the future to be completed or failed, suspending the current coroutine until it is. Other coroutines,
+     * and other computers, keep running while it waits.
+     *
+     * @return The results the future was completed with
+     * @throws LuaException         If the future failed, with its message, or if the user terminates the program while
+     *                              it is waiting, as with ILuaContext.pullEvent()
+     * @throws InterruptedException If the user shuts down or reboots the computer while it is waiting. This exception
+     *                              must not be caught or intercepted, or the computer will leak memory and end up in a
+     *                              broken state.
+     * @see ILuaContext#pullEvent(String)
+     */
+    Object[] get() throws LuaException, InterruptedException;
+
+    /**
+     * Complete the future with some results, waking the method waiting for it. Only the first call to complete() or
+     * fail() has an effect.
+     *
+     * @param results The results for get() to return, which must not be changed afterwards
+     */
+    void complete(Object[] results);
+
+    /**
+     * Fail the future, so get() throws a LuaException with the given message. Only the first call to complete() or
+     * fail() has an effect.
+     *
+     * @param message The error message, or null for a generic error
+     */
+    void fail(String message);
+}
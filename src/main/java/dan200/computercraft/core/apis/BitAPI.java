@@ -9,10 +9,13 @@ package dan200.computercraft.core.apis;
 import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 // Contributed by Nia
 // Based on LuaBit (http://luaforge.net/projects/bit)
 
-public class BitAPI implements ILuaAPI {
+public class BitAPI implements INonYieldingAPI, ISuspendableAPI {
     private static final int BNOT = 0;
     private static final int BAND = 1;
     private static final int BOR = 2;
@@ -63,6 +66,15 @@ public class BitAPI implements ILuaAPI {
         };
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException {
         Object a = args.length > 0 ? args[0] : null;
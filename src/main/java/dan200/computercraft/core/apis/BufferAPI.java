@@ -11,7 +11,7 @@ import dan200.computercraft.api.lua.ILuaObject;
 import dan200.computercraft.api.lua.LuaException;
 import dan200.computercraft.core.terminal.TextBuffer;
 
-public class BufferAPI implements ILuaAPI {
+public class BufferAPI implements INonYieldingAPI {
     public BufferAPI(IAPIEnvironment _env) {
     }
 
@@ -6,6 +6,7 @@
 
 package dan200.computercraft.core.apis;
 
+import dan200.computercraft.api.lua.ILuaBinaryArguments;
 import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.ILuaObject;
 import dan200.computercraft.api.lua.LuaException;
@@ -13,12 +14,19 @@ import dan200.computercraft.core.filesystem.FileSystem;
 import dan200.computercraft.core.filesystem.FileSystemException;
 import dan200.computercraft.core.filesystem.IMountedFileBinary;
 import dan200.computercraft.core.filesystem.IMountedFileNormal;
+import dan200.computercraft.core.lua.LuaMethod;
+import dan200.computercraft.core.lua.LuaMethodDispatcher;
+import dan200.computercraft.core.lua.PrototypeCache;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-public class FSAPI implements ILuaAPI {
+public class FSAPI implements INonYieldingAPI, ISuspendableAPI {
     private IAPIEnvironment m_env;
     private FileSystem m_fileSystem;
 
@@ -27,236 +35,286 @@ public class FSAPI implements ILuaAPI {
         m_fileSystem = null;
     }
 
-    private static Object[] wrapBufferedReader(final IMountedFileNormal reader) {
-        return new Object[]{new ILuaObject() {
-            @Override
-            public String[] getMethodNames() {
-                return new String[]{
-                        "readLine",
-                        "readAll",
-                        "close"
-                };
+    private static Object[] wrapBufferedReader(IMountedFileNormal reader, boolean readOnly, String cacheKey) {
+        return new Object[]{new BufferedReaderHandle(reader, readOnly, cacheKey)};
+    }
+
+    private static Object[] wrapBufferedWriter(IMountedFileNormal writer) {
+        return new Object[]{new BufferedWriterHandle(writer)};
+    }
+
+    private static Object[] wrapInputStream(IMountedFileBinary reader) {
+        return new Object[]{new InputStreamHandle(reader)};
+    }
+
+    private static Object[] wrapOutputStream(IMountedFileBinary writer) {
+        return new Object[]{new OutputStreamHandle(writer)};
+    }
+
+    /**
+     * A file opened with mode "r". Programs read files line by line in tight loops, so the methods of the handles are
+     * called through a {@link LuaMethodDispatcher}, without their arguments being converted to an Object[] first.
+     */
+    public static class BufferedReaderHandle implements ILuaObject {
+        private final IMountedFileNormal m_reader;
+        private final boolean m_readOnly;
+        private final String m_cacheKey;
+
+        BufferedReaderHandle(IMountedFileNormal reader, boolean readOnly, String cacheKey) {
+            m_reader = reader;
+            m_readOnly = readOnly;
+            m_cacheKey = cacheKey;
+        }
+
+        @Override
+        public String[] getMethodNames() {
+            return LuaMethodDispatcher.get(BufferedReaderHandle.class).getMethodNames();
+        }
+
+        @Override
+        public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
+            return LuaMethodDispatcher.get(BufferedReaderHandle.class).call(this, null, context, method, args);
+        }
+
+        @LuaMethod(order = 0)
+        public Object[] readLine() {
+            try {
+                String line = m_reader.readLine();
+                if (line != null) {
+                    return new Object[]{line};
+                } else {
+                    return null;
+                }
+            } catch (IOException e) {
+                return null;
             }
+        }
 
-            @Override
-            public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException {
-                switch (method) {
-                    case 0: {
-                        // readLine
-                        try {
-                            String line = reader.readLine();
-                            if (line != null) {
-                                return new Object[]{line};
-                            } else {
-                                return null;
-                            }
-                        } catch (IOException e) {
-                            return null;
-                        }
-                    }
-                    case 1: {
-                        // readAll
-                        try {
-                            StringBuilder result = new StringBuilder("");
-                            String line = reader.readLine();
-                            while (line != null) {
-                                result.append(line);
-                                line = reader.readLine();
-                                if (line != null) {
-                                    result.append("\n");
-                                }
-                            }
-                            return new Object[]{result.toString()};
-                        } catch (IOException e) {
-                            return null;
-                        }
-                    }
-                    case 2: {
-                        // close
-                        try {
-                            reader.close();
-                            return null;
-                        } catch (IOException e) {
-                            return null;
-                        }
-                    }
-                    default: {
-                        return null;
+        @LuaMethod(order = 1)
+        public Object[] readAll() {
+            try {
+                StringBuilder result = new StringBuilder("");
+                String line = m_reader.readLine();
+                while (line != null) {
+                    result.append(line);
+                    line = m_reader.readLine();
+                    if (line != null) {
+                        result.append("\n");
                     }
                 }
+
+                // Code read from the ROM can be compiled once and shared between computers, and code read from any
+                // file we can identify can be kept compiled between restarts
+                String text = result.toString();
+                PrototypeCache.admit(text, m_readOnly, m_cacheKey);
+                return new Object[]{text};
+            } catch (IOException e) {
+                return null;
             }
-        }};
+        }
+
+        @LuaMethod(order = 2)
+        public void close() {
+            try {
+                m_reader.close();
+            } catch (IOException e) {
+                // Closing a file which can't be closed does nothing
+            }
+        }
     }
 
-    private static Object[] wrapBufferedWriter(final IMountedFileNormal writer) {
-        return new Object[]{new ILuaObject() {
-            @Override
-            public String[] getMethodNames() {
-                return new String[]{
-                        "write",
-                        "writeLine",
-                        "close",
-                        "flush"
-                };
+    /**
+     * A file opened with mode "w" or "a".
+     */
+    public static class BufferedWriterHandle implements ILuaObject {
+        private final IMountedFileNormal m_writer;
+
+        BufferedWriterHandle(IMountedFileNormal writer) {
+            m_writer = writer;
+        }
+
+        @Override
+        public String[] getMethodNames() {
+            return LuaMethodDispatcher.get(BufferedWriterHandle.class).getMethodNames();
+        }
+
+        @Override
+        public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
+            return LuaMethodDispatcher.get(BufferedWriterHandle.class).call(this, null, context, method, args);
+        }
+
+        @LuaMethod(order = 0)
+        public void write(Object arg) throws LuaException {
+            write(arg, false);
+        }
+
+        @LuaMethod(order = 1)
+        public void writeLine(Object arg) throws LuaException {
+            write(arg, true);
+        }
+
+        private void write(Object arg, boolean newLine) throws LuaException {
+            String text = (arg != null) ? arg.toString() : "";
+            try {
+                m_writer.write(text, 0, text.length(), newLine);
+            } catch (IOException e) {
+                throw new LuaException(e.getMessage());
             }
+        }
 
-            @Override
-            public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException {
-                switch (method) {
-                    case 0: {
-                        // write
-                        String text;
-                        if (args.length > 0 && args[0] != null) {
-                            text = args[0].toString();
-                        } else {
-                            text = "";
-                        }
-                        try {
-                            writer.write(text, 0, text.length(), false);
-                            return null;
-                        } catch (IOException e) {
-                            throw new LuaException(e.getMessage());
-                        }
-                    }
-                    case 1: {
-                        // writeLine
-                        String text;
-                        if (args.length > 0 && args[0] != null) {
-                            text = args[0].toString();
-                        } else {
-                            text = "";
-                        }
-                        try {
-                            writer.write(text, 0, text.length(), true);
-                            return null;
-                        } catch (IOException e) {
-                            throw new LuaException(e.getMessage());
-                        }
-                    }
-                    case 2: {
-                        // close
-                        try {
-                            writer.close();
-                            return null;
-                        } catch (IOException e) {
-                            return null;
-                        }
-                    }
-                    case 3: {
-                        try {
-                            writer.flush();
-                            return null;
-                        } catch (IOException e) {
-                            return null;
-                        }
-                    }
-                    default: {
-                        assert (false);
-                        return null;
-                    }
-                }
+        @LuaMethod(order = 2)
+        public void close() {
+            try {
+                m_writer.close();
+            } catch (IOException e) {
+                // Closing a file which can't be closed does nothing
             }
-        }};
+        }
+
+        @LuaMethod(order = 3)
+        public void flush() {
+            try {
+                m_writer.flush();
+            } catch (IOException e) {
+                // As with close()
+            }
+        }
     }
 
-    private static Object[] wrapInputStream(final IMountedFileBinary reader) {
+    /**
+     * A file opened with mode "rb".
+     */
+    public static class InputStreamHandle implements ILuaObject {
+        private final IMountedFileBinary m_reader;
 
-        return new Object[]{new ILuaObject() {
+        InputStreamHandle(IMountedFileBinary reader) {
+            m_reader = reader;
+        }
 
-            @Override
-            public String[] getMethodNames() {
-                return new String[]{
-                        "read",
-                        "close"
-                };
-            }
+        @Override
+        public String[] getMethodNames() {
+            return LuaMethodDispatcher.get(InputStreamHandle.class).getMethodNames();
+        }
 
-            @Override
-            public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException {
-                switch (method) {
-                    case 0: {
-                        // read
-                        try {
-                            int b = reader.read();
-                            if (b != -1) {
-                                return new Object[]{b};
-                            } else {
-                                return null;
-                            }
-                        } catch (IOException e) {
-                            return null;
-                        }
+        @Override
+        public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
+            return LuaMethodDispatcher.get(InputStreamHandle.class).call(this, null, context, method, args);
+        }
+
+        @LuaMethod(order = 0)
+        public Object[] read(Object countArg) throws LuaException {
+            try {
+                if (countArg != null) {
+                    // Read a number of bytes, into a string of them
+                    if (!(countArg instanceof Number)) {
+                        throw new LuaException("Expected number");
                     }
-                    case 1: {
-                        //close
-                        try {
-                            reader.close();
-                            return null;
-                        } catch (IOException e) {
-                            return null;
+                    int count = ((Number) countArg).intValue();
+                    if (count < 0) {
+                        throw new LuaException("Cannot read a negative number of bytes");
+                    }
+                    byte[] bytes = new byte[Math.min(count, 8192)];
+                    int read = 0;
+                    while (read < count) {
+                        if (read == bytes.length) {
+                            bytes = Arrays.copyOf(bytes, (int) Math.min(count, bytes.length * 2L));
+                        }
+                        int n = m_reader.read(bytes, read, bytes.length - read);
+                        if (n < 0) {
+                            break;
                         }
+                        read += n;
                     }
-                    default: {
-                        assert (false);
+                    if (read == 0 && count > 0) {
                         return null;
                     }
+                    // Short reads are copied, rather than keeping a mostly empty buffer alive
+                    if (read < bytes.length / 2) {
+                        return new Object[]{ByteBuffer.wrap(Arrays.copyOf(bytes, read))};
+                    }
+                    return new Object[]{ByteBuffer.wrap(bytes, 0, read)};
                 }
+
+                int b = m_reader.read();
+                if (b != -1) {
+                    return new Object[]{b};
+                } else {
+                    return null;
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @LuaMethod(order = 1)
+        public void close() {
+            try {
+                m_reader.close();
+            } catch (IOException e) {
+                // Closing a file which can't be closed does nothing
             }
-        }};
+        }
     }
 
-    private static Object[] wrapOutputStream(final IMountedFileBinary writer) {
+    /**
+     * A file opened with mode "wb" or "ab". It takes strings as their bytes, see {@link ILuaBinaryArguments}.
+     */
+    public static class OutputStreamHandle implements ILuaObject, ILuaBinaryArguments {
+        private final IMountedFileBinary m_writer;
 
-        return new Object[]{new ILuaObject() {
+        OutputStreamHandle(IMountedFileBinary writer) {
+            m_writer = writer;
+        }
 
-            @Override
-            public String[] getMethodNames() {
-                return new String[]{
-                        "write",
-                        "close",
-                        "flush"
-                };
-            }
+        @Override
+        public String[] getMethodNames() {
+            return LuaMethodDispatcher.get(OutputStreamHandle.class).getMethodNames();
+        }
 
-            @Override
-            public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException {
-                switch (method) {
-                    case 0: {
-                        // write
-                        try {
-                            if (args.length > 0 && args[0] instanceof Number) {
-                                int number = ((Number) args[0]).intValue();
-                                writer.write(number);
-                            }
-                            return null;
-                        } catch (IOException e) {
-                            throw new LuaException(e.getMessage());
-                        }
-                    }
-                    case 1: {
-                        //close
-                        try {
-                            writer.close();
-                            return null;
-                        } catch (IOException e) {
-                            return null;
-                        }
-                    }
-                    case 2: {
-                        try {
-                            writer.flush();
-                            return null;
-                        } catch (IOException e) {
-                            return null;
-                        }
-                    }
-                    default: {
-                        assert (false);
-                        return null;
+        @Override
+        public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
+            return LuaMethodDispatcher.get(OutputStreamHandle.class).call(this, null, context, method, args);
+        }
+
+        @LuaMethod(order = 0)
+        public void write(Object arg) throws LuaException {
+            try {
+                if (arg instanceof Number) {
+                    int number = ((Number) arg).intValue();
+                    m_writer.write(number);
+                } else if (arg instanceof ByteBuffer) {
+                    // Strings are written as they are, from the bytes lua holds. The buffer is read only, so they are
+                    // copied out through a small array a chunk at a time
+                    ByteBuffer bytes = ((ByteBuffer) arg).duplicate();
+                    byte[] chunk = new byte[Math.min(bytes.remaining(), 8192)];
+                    while (bytes.hasRemaining()) {
+                        int length = Math.min(chunk.length, bytes.remaining());
+                        bytes.get(chunk, 0, length);
+                        m_writer.write(chunk, 0, length);
                     }
                 }
+            } catch (IOException e) {
+                throw new LuaException(e.getMessage());
             }
-        }};
+        }
+
+        @LuaMethod(order = 1)
+        public void close() {
+            try {
+                m_writer.close();
+            } catch (IOException e) {
+                // Closing a file which can't be closed does nothing
+            }
+        }
+
+        @LuaMethod(order = 2)
+        public void flush() {
+            try {
+                m_writer.flush();
+            } catch (IOException e) {
+                // As with close()
+            }
+        }
     }
 
     @Override
@@ -280,6 +338,15 @@ public class FSAPI implements ILuaAPI {
         m_fileSystem = null;
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public String[] getMethodNames() {
         return new String[]{
@@ -452,7 +519,7 @@ public class FSAPI implements ILuaAPI {
                     if (mode.equals("r")) {
                         // Open the file for reading, then create a wrapper around the reader
                         IMountedFileNormal reader = m_fileSystem.openForRead(path);
-                        return wrapBufferedReader(reader);
+                        return wrapBufferedReader(reader, m_fileSystem.isReadOnly(path), m_fileSystem.getCacheKey(path));
 
                     } else if (mode.equals("w")) {
                         // Open the file for writing, then create a wrapper around the writer
@@ -6,15 +6,18 @@
 
 package dan200.computercraft.core.apis;
 
+import dan200.computercraft.api.lua.ILuaBinaryArguments;
 import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.ILuaObject;
 import dan200.computercraft.api.lua.LuaException;
+import dan200.computercraft.shared.util.StringUtil;
 
-import java.io.BufferedReader;
-import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
-public class HTTPAPI implements ILuaAPI {
+public class HTTPAPI implements INonYieldingAPI, ISuspendableAPI, ILuaBinaryArguments {
     private IAPIEnvironment m_apiEnvironment;
     private List<HTTPRequest> m_httpRequests;
 
@@ -23,8 +26,12 @@ public class HTTPAPI implements ILuaAPI {
         m_httpRequests = new ArrayList<HTTPRequest>();
     }
 
-    private static ILuaObject wrapBufferedReader(final BufferedReader reader, final int responseCode, final Map<String, String> responseHeaders) {
+    private static ILuaObject wrapResponse(final byte[] contents, final int responseCode, final Map<String, String> responseHeaders) {
         return new ILuaObject() {
+            // The body is handed to lua in views of the same array, rather than copied out line by line
+            private int m_position = 0;
+            private boolean m_closed = false;
+
             @Override
             public String[] getMethodNames() {
                 return new String[]{
@@ -41,42 +48,32 @@ public class HTTPAPI implements ILuaAPI {
                 switch (method) {
                     case 0: {
                         // readLine
-                        try {
-                            String line = reader.readLine();
-                            if (line != null) {
-                                return new Object[]{line};
-                            } else {
-                                return null;
-                            }
-                        } catch (IOException e) {
+                        if (m_closed || m_position >= contents.length) {
                             return null;
                         }
+                        int start = m_position;
+                        int end = start;
+                        while (end < contents.length && contents[end] != '\n') {
+                            end++;
+                        }
+                        m_position = end + 1;
+                        return new Object[]{ByteBuffer.wrap(contents, start, end - start)};
                     }
                     case 1: {
                         // readAll
-                        try {
-                            StringBuilder result = new StringBuilder("");
-                            String line = reader.readLine();
-                            while (line != null) {
-                                result.append(line);
-                                line = reader.readLine();
-                                if (line != null) {
-                                    result.append("\n");
-                                }
-                            }
-                            return new Object[]{result.toString()};
-                        } catch (IOException e) {
+                        if (m_closed) {
                             return null;
                         }
+                        // Every line ends with a newline, which is left off the last one
+                        int start = Math.min(m_position, contents.length);
+                        int end = Math.max(start, contents.length - 1);
+                        m_position = contents.length;
+                        return new Object[]{ByteBuffer.wrap(contents, start, end - start)};
                     }
                     case 2: {
                         // close
-                        try {
-                            reader.close();
-                            return null;
-                        } catch (IOException e) {
-                            return null;
-                        }
+                        m_closed = true;
+                        return null;
                     }
                     case 3: {
                         // getResponseCode
@@ -116,15 +113,15 @@ public class HTTPAPI implements ILuaAPI {
                     final String url = h.getURL();
                     if (h.wasSuccessful()) {
                         // Queue the "http_success" event
-                        final BufferedReader contents = h.getContents();
-                        final Object result = wrapBufferedReader(contents, h.getResponseCode(), h.getResponseHeaders());
+                        final byte[] contents = h.getContents();
+                        final Object result = wrapResponse(contents, h.getResponseCode(), h.getResponseHeaders());
                         m_apiEnvironment.queueEvent("http_success", new Object[]{url, result});
                     } else {
                         // Queue the "http_failure" event
-                        BufferedReader contents = h.getContents();
+                        byte[] contents = h.getContents();
                         Object result = null;
                         if (contents != null) {
-                            result = wrapBufferedReader(contents, h.getResponseCode(), h.getResponseHeaders());
+                            result = wrapResponse(contents, h.getResponseCode(), h.getResponseHeaders());
                         }
                         m_apiEnvironment.queueEvent("http_failure", new Object[]{url, "Could not connect", result});
                     }
@@ -146,6 +143,18 @@ public class HTTPAPI implements ILuaAPI {
         }
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        // Requests in progress are cancelled on shutdown, so their events would never arrive
+        synchronized (m_httpRequests) {
+            return m_httpRequests.isEmpty();
+        }
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public String[] getMethodNames() {
         return new String[]{
@@ -160,15 +169,15 @@ public class HTTPAPI implements ILuaAPI {
             case 0: {
                 // request
                 // Get URL
-                if (args.length < 1 || !(args[0] instanceof String)) {
+                if (args.length < 1 || !(args[0] instanceof ByteBuffer)) {
                     throw new LuaException("Expected string");
                 }
-                String urlString = args[0].toString();
+                String urlString = StringUtil.fromBytes((ByteBuffer) args[0]);
 
-                // Get POST
-                String postString = null;
-                if (args.length >= 2 && args[1] instanceof String) {
-                    postString = args[1].toString();
+                // Get POST, which is encoded straight from the bytes of the string on the request's thread
+                ByteBuffer postString = null;
+                if (args.length >= 2 && args[1] instanceof ByteBuffer) {
+                    postString = (ByteBuffer) args[1];
                 }
 
                 // Get Headers
@@ -198,10 +207,10 @@ public class HTTPAPI implements ILuaAPI {
             case 1: {
                 // checkURL
                 // Get URL
-                if (args.length < 1 || !(args[0] instanceof String)) {
+                if (args.length < 1 || !(args[0] instanceof ByteBuffer)) {
                     throw new LuaException("Expected string");
                 }
-                String urlString = args[0].toString();
+                String urlString = StringUtil.fromBytes((ByteBuffer) args[0]);
 
                 // Check URL
                 try {
@@ -13,6 +13,7 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,11 +32,11 @@ public class HTTPRequest {
     private boolean m_complete;
     private boolean m_cancelled;
     private boolean m_success;
-    private String m_result;
+    private byte[] m_result;
     private int m_responseCode;
     private Map<String, String> m_responseHeaders;
 
-    public HTTPRequest(String url, final String postText, final Map<String, String> headers) throws HTTPRequestException {
+    public HTTPRequest(String url, final ByteBuffer postText, final Map<String, String> headers) throws HTTPRequestException {
         // Parse the URL
         m_urlString = url;
         m_url = checkURL(m_urlString);
@@ -74,15 +75,8 @@ public class HTTPRequest {
                 // Send POST text
                 if (postText != null) {
                     OutputStream os = connection.getOutputStream();
-                    OutputStreamWriter osw;
-                    try {
-                        osw = new OutputStreamWriter(os, "UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        osw = new OutputStreamWriter(os);
-                    }
-                    BufferedWriter writer = new BufferedWriter(osw);
-                    writer.write(postText, 0, postText.length());
-                    writer.close();
+                    os.write(encodeUTF8(postText));
+                    os.close();
                 }
 
                 // Read response
@@ -141,7 +135,7 @@ public class HTTPRequest {
                         // We completed
                         m_complete = true;
                         m_success = responseSuccess;
-                        m_result = result.toString();
+                        m_result = toLuaBytes(result);
                         m_responseCode = connection.getResponseCode();
 
                         Joiner joiner = Joiner.on(',');
@@ -235,15 +229,53 @@ public class HTTPRequest {
         }
     }
 
-    public BufferedReader getContents() {
-        String result = null;
+    /**
+     * Get the body of the response, as the bytes of the lua string it is read as. Each line of the body ends with
+     * a newline, whatever it ended with originally.
+     *
+     * @return The body, or null if there is none.
+     */
+    public byte[] getContents() {
         synchronized (m_lock) {
-            result = m_result;
+            return m_result;
+        }
+    }
+
+    /**
+     * Convert the body of a response to the bytes lua will see, the same way LuaString.valueOf converts a String.
+     * This is done on the request's thread, so the body can be handed to lua without being converted again.
+     */
+    private static byte[] toLuaBytes(CharSequence text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            char ch = text.charAt(i);
+            bytes[i] = (ch < 256) ? (byte) ch : (byte) '?';
         }
+        return bytes;
+    }
 
-        if (result != null) {
-            return new BufferedReader(new StringReader(result));
+    /**
+     * Encode the bytes of a lua string as UTF-8, treating each byte as the character with the same value, the same as
+     * writing the String it would be converted to through a UTF-8 writer.
+     */
+    private static byte[] encodeUTF8(ByteBuffer text) {
+        int length = text.remaining();
+        for (int i = text.position(); i < text.limit(); ++i) {
+            if (text.get(i) < 0) {
+                length++;
+            }
+        }
+        byte[] bytes = new byte[length];
+        int n = 0;
+        for (int i = text.position(); i < text.limit(); ++i) {
+            int b = text.get(i) & 0xff;
+            if (b < 0x80) {
+                bytes[n++] = (byte) b;
+            } else {
+                bytes[n++] = (byte) (0xc0 | (b >> 6));
+                bytes[n++] = (byte) (0x80 | (b & 0x3f));
+            }
         }
-        return null;
+        return bytes;
     }
 }
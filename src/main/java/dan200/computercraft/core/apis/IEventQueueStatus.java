@@ -0,0 +1,16 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.apis;
+
+/**
+ * Something events can be queued on, which can say when the computer behind it has too many events waiting to take
+ * any more. Producers which can hold on to their events, such as networks, should wait instead of having them
+ * dropped.
+ */
+public interface IEventQueueStatus {
+    boolean isEventQueueFull();
+}
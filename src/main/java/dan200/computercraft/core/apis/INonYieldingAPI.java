@@ -0,0 +1,14 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.apis;
+
+/**
+ * An API none of whose methods pull events or yield, so it can be called from a coroutine which doesn't have a
+ * thread of its own.
+ */
+public interface INonYieldingAPI extends ILuaAPI {
+}
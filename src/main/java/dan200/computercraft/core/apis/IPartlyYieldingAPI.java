@@ -0,0 +1,21 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.apis;
+
+/**
+ * An API only some of whose methods pull events or yield. The others can be called from a coroutine which doesn't
+ * have a thread of its own, the same as the methods of an {@link INonYieldingAPI}.
+ */
+public interface IPartlyYieldingAPI extends ILuaAPI {
+    /**
+     * Whether a method may pull events or yield.
+     *
+     * @param method The index of the method, as in {@link #getMethodNames()}.
+     * @return Whether the method needs a thread to wait on.
+     */
+    boolean mayYield(int method);
+}
@@ -0,0 +1,35 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.apis;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An API which can save its state when the computer it belongs to is suspended, and pick it up again when it is
+ * resumed. A computer is only suspended if all of its APIs are suspendable.
+ */
+public interface ISuspendableAPI extends ILuaAPI {
+    /**
+     * Save the state of this API.
+     *
+     * @param output The stream to write the state to.
+     * @return Whether the state could be saved. If the API is busy with something which can't be saved, the computer
+     * is shut down instead.
+     * @throws IOException If the state could not be written.
+     */
+    boolean saveState(DataOutputStream output) throws IOException; // LT
+
+    /**
+     * Restore the state saved by {@link #saveState(DataOutputStream)}. This is called after {@link #startup()}.
+     *
+     * @param input The stream to read the state from.
+     * @throws IOException If the state could not be read.
+     */
+    void restoreState(DataInputStream input) throws IOException; // LT
+}
@@ -9,9 +9,11 @@ import net.minecraftforge.fml.common.Loader;
 import net.minecraftforge.fml.common.ModContainer;
 import org.luaj.vm2.ast.Str;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.List;
 
-public class MinecraftAPI implements ILuaAPI {
+public class MinecraftAPI implements INonYieldingAPI, ISuspendableAPI {
     private Terminal m_terminal;
     private IComputerEnvironment m_environment;
 
@@ -43,6 +45,15 @@ public class MinecraftAPI implements ILuaAPI {
 
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public String[] getMethodNames() {
         return new String[]
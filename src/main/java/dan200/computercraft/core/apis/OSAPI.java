@@ -8,14 +8,18 @@ package dan200.computercraft.core.apis;
 
 import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
+import dan200.computercraft.core.computer.Computer;
 import dan200.computercraft.shared.util.StringUtil;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
-public class OSAPI implements ILuaAPI {
+public class OSAPI implements INonYieldingAPI, ISuspendableAPI {
     private final Map<Integer, Timer> m_timers;
     private final Map<Integer, Alarm> m_alarms;
     private IAPIEnvironment m_apiEnvironment;
@@ -115,6 +119,53 @@ public class OSAPI implements ILuaAPI {
         }
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) throws IOException {
+        synchronized (m_timers) {
+            output.writeInt(m_clock);
+            output.writeInt(m_nextTimerToken);
+            output.writeInt(m_timers.size());
+            for (Map.Entry<Integer, Timer> entry : m_timers.entrySet()) {
+                output.writeInt(entry.getKey());
+                output.writeInt(entry.getValue().m_ticksLeft);
+            }
+        }
+
+        synchronized (m_alarms) {
+            output.writeInt(m_nextAlarmToken);
+            output.writeInt(m_alarms.size());
+            for (Map.Entry<Integer, Alarm> entry : m_alarms.entrySet()) {
+                output.writeInt(entry.getKey());
+                output.writeDouble(entry.getValue().m_time);
+                output.writeInt(entry.getValue().m_day);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) throws IOException {
+        // Timers carry on counting down from where they were. Alarms are for a time of day, so go off as soon as the
+        // computer is resumed if it has passed.
+        synchronized (m_timers) {
+            m_clock = input.readInt();
+            m_nextTimerToken = input.readInt();
+            for (int i = input.readInt(); i > 0; --i) {
+                int token = input.readInt();
+                m_timers.put(token, new Timer(input.readInt()));
+            }
+        }
+
+        synchronized (m_alarms) {
+            m_nextAlarmToken = input.readInt();
+            for (int i = input.readInt(); i > 0; --i) {
+                int token = input.readInt();
+                double time = input.readDouble();
+                m_alarms.put(token, new Alarm(time, input.readInt()));
+            }
+        }
+    }
+
     @Override
     public String[] getMethodNames() {
         return new String[]{
@@ -133,6 +184,7 @@ public class OSAPI implements ILuaAPI {
                 "day",
                 "cancelTimer",
                 "cancelAlarm",
+                "getMemoryUsage",
         };
     }
 
@@ -253,6 +305,12 @@ public class OSAPI implements ILuaAPI {
                 }
                 return null;
             }
+            case 15: {
+                // getMemoryUsage
+                Computer computer = m_apiEnvironment.getComputer();
+                long limit = computer.getMemoryLimit();
+                return new Object[]{computer.getMemoryUsage(), limit > 0 ? limit : null};
+            }
             default: {
                 return null;
             }
@@ -8,6 +8,7 @@ package dan200.computercraft.core.apis;
 
 import dan200.computercraft.api.filesystem.IMount;
 import dan200.computercraft.api.filesystem.IWritableMount;
+import dan200.computercraft.api.lua.ILuaBinaryArguments;
 import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
 import dan200.computercraft.api.peripheral.IComputerAccess;
@@ -17,10 +18,15 @@ import dan200.computercraft.core.computer.ComputerThread;
 import dan200.computercraft.core.computer.ITask;
 import dan200.computercraft.core.filesystem.FileSystem;
 import dan200.computercraft.core.filesystem.FileSystemException;
+import dan200.computercraft.shared.util.StringUtil;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
-public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChangeListener {
+// Strings arrive as bytes, so they can be passed on to peripherals which take them that way, see ILuaBinaryArguments
+public class PeripheralAPI implements IPartlyYieldingAPI, IAPIEnvironment.IPeripheralChangeListener, ISuspendableAPI, ILuaBinaryArguments {
     private IAPIEnvironment m_environment;
     private FileSystem m_fileSystem;
     private PeripheralWrapper[] m_peripherals;
@@ -139,6 +145,23 @@ public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChange
         }
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        // Peripherals forget about a computer when it detaches, so it can't be suspended while any are attached
+        synchronized (m_peripherals) {
+            for (int i = 0; i < 6; ++i) {
+                if (m_peripherals[i] != null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public String[] getMethodNames() {
         return new String[]{
@@ -149,6 +172,12 @@ public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChange
         };
     }
 
+    @Override
+    public boolean mayYield(int method) {
+        // Only peripheral methods can wait on the main thread
+        return method == 3;
+    }
+
     @Override
     public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
         switch (method) {
@@ -206,10 +235,10 @@ public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChange
             }
             case 3: {
                 // call
-                if (args.length < 2 || args[1] == null || !(args[1] instanceof String)) {
+                if (args.length < 2 || args[1] == null || !(args[1] instanceof ByteBuffer)) {
                     throw new LuaException("Expected string, string");
                 }
-                String methodName = (String) args[1];
+                String methodName = StringUtil.fromBytes((ByteBuffer) args[1]);
                 Object[] methodArgs = trimArray(args, 2);
 
                 int side = parseSide(args);
@@ -238,10 +267,10 @@ public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChange
     // Privates
 
     private int parseSide(Object[] args) throws LuaException {
-        if (args.length < 1 || args[0] == null || !(args[0] instanceof String)) {
+        if (args.length < 1 || args[0] == null || !(args[0] instanceof ByteBuffer)) {
             throw new LuaException("Expected string");
         }
-        String side = (String) args[0];
+        String side = StringUtil.fromBytes((ByteBuffer) args[0]);
         for (int n = 0; n < Computer.s_sideNames.length; ++n) {
             if (side.equals(Computer.s_sideNames[n])) {
                 return n;
@@ -265,7 +294,7 @@ public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChange
         }
     }
 
-    private class PeripheralWrapper implements IComputerAccess {
+    private class PeripheralWrapper implements IComputerAccess, IEventQueueStatus {
         private final String m_side;
         private final IPeripheral m_peripheral;
 
@@ -338,6 +367,13 @@ public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChange
                 }
             }
             if (method >= 0) {
+                if (!(m_peripheral instanceof ILuaBinaryArguments)) {
+                    for (int i = 0; i < arguments.length; ++i) {
+                        if (arguments[i] instanceof ByteBuffer) {
+                            arguments[i] = StringUtil.fromBytes((ByteBuffer) arguments[i]);
+                        }
+                    }
+                }
                 return m_peripheral.callMethod(this, context, method, arguments);
             } else {
                 throw new LuaException("No such method " + methodName);
@@ -436,6 +472,11 @@ public class PeripheralAPI implements ILuaAPI, IAPIEnvironment.IPeripheralChange
             m_environment.queueEvent(event, arguments);
         }
 
+        @Override
+        public boolean isEventQueueFull() {
+            return m_environment.getComputer().isEventQueueFull();
+        }
+
         @Override
         public synchronized String getAttachmentName() {
             if (!m_attached) {
@@ -10,10 +10,12 @@ import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
 import dan200.computercraft.core.computer.Computer;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
-public class RedstoneAPI implements ILuaAPI {
+public class RedstoneAPI implements INonYieldingAPI, ISuspendableAPI {
     private IAPIEnvironment m_environment;
 
     public RedstoneAPI(IAPIEnvironment environment) {
@@ -59,6 +61,15 @@ public class RedstoneAPI implements ILuaAPI {
         };
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException {
         switch (method) {
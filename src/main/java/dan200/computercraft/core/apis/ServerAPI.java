@@ -8,10 +8,12 @@ import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraftforge.fml.common.FMLCommonHandler;
 import org.luaj.vm2.ast.Str;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.List;
 import java.util.UUID;
 
-public class ServerAPI implements ILuaAPI {
+public class ServerAPI implements INonYieldingAPI, ISuspendableAPI {
     private Terminal m_terminal;
     private IComputerEnvironment m_environment;
 
@@ -42,6 +44,15 @@ public class ServerAPI implements ILuaAPI {
 
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public String[] getMethodNames() {
         return new String[]
@@ -9,9 +9,19 @@ package dan200.computercraft.core.apis;
 import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
 import dan200.computercraft.core.computer.IComputerEnvironment;
+import dan200.computercraft.core.lua.INativeLuaObject;
+import dan200.computercraft.core.lua.LuaJLuaMachine;
+import dan200.computercraft.core.lua.LuaMethod;
+import dan200.computercraft.core.lua.LuaMethodDispatcher;
+import dan200.computercraft.core.lua.TermLib;
 import dan200.computercraft.core.terminal.Terminal;
+import org.luaj.vm2.LuaTable;
 
-public class TermAPI implements ILuaAPI {
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+public class TermAPI implements INonYieldingAPI, ISuspendableAPI, INativeLuaObject {
     private Terminal m_terminal;
     private IComputerEnvironment m_environment;
 
@@ -24,7 +34,10 @@ public class TermAPI implements ILuaAPI {
         if (args.length != 1 || args[0] == null || !(args[0] instanceof Double)) {
             throw new LuaException("Expected number");
         }
-        int colour = (int) ((Double) args[0]).doubleValue();
+        return parseColour((int) ((Double) args[0]).doubleValue(), _enableColours);
+    }
+
+    public static int parseColour(int colour, boolean _enableColours) throws LuaException {
         if (colour <= 0) {
             throw new LuaException("Colour out of range");
         }
@@ -53,6 +66,10 @@ public class TermAPI implements ILuaAPI {
         return bit;
     }
 
+    public Terminal getTerminal() {
+        return m_terminal;
+    }
+
     @Override
     public String[] getNames() {
         return new String[]{
@@ -74,169 +91,146 @@ public class TermAPI implements ILuaAPI {
 
     @Override
     public String[] getMethodNames() {
-        return new String[]{
-                "write",
-                "scroll",
-                "setCursorPos",
-                "setCursorBlink",
-                "getCursorPos",
-                "getSize",
-                "clear",
-                "clearLine",
-                "setTextColour",
-                "setTextColor",
-                "setBackgroundColour",
-                "setBackgroundColor",
-                "isColour",
-                "isColor",
-                "getTextColour",
-                "getTextColor",
-                "getBackgroundColour",
-                "getBackgroundColor",
-                "blit"
-        };
+        return LuaMethodDispatcher.get(TermAPI.class).getMethodNames();
+    }
+
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
+    @Override
+    public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
+        return LuaMethodDispatcher.get(TermAPI.class).call(this, null, context, method, args);
     }
 
     @Override
-    public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException {
-        switch (method) {
-            case 0: {
-                // write
-                String text;
-                if (args.length > 0 && args[0] != null) {
-                    text = args[0].toString();
-                } else {
-                    text = "";
-                }
-
-                synchronized (m_terminal) {
-                    m_terminal.write(text);
-                    m_terminal.setCursorPos(m_terminal.getCursorX() + text.length(), m_terminal.getCursorY());
-                }
-                return null;
-            }
-            case 1: {
-                // scroll
-                if (args.length != 1 || args[0] == null || !(args[0] instanceof Double)) {
-                    throw new LuaException("Expected number");
-                }
-
-                int y = (int) ((Double) args[0]).doubleValue();
-                synchronized (m_terminal) {
-                    m_terminal.scroll(y);
-                }
-                return null;
-            }
-            case 2: {
-                // setCursorPos
-                if (args.length != 2 || args[0] == null || !(args[0] instanceof Double) || args[1] == null || !(args[1] instanceof Double)) {
-                    throw new LuaException("Expected number, number");
-                }
-                int x = (int) ((Double) args[0]).doubleValue() - 1;
-                int y = (int) ((Double) args[1]).doubleValue() - 1;
-                synchronized (m_terminal) {
-                    m_terminal.setCursorPos(x, y);
-                }
-                return null;
-            }
-            case 3: {
-                // setCursorBlink
-                if (args.length != 1 || args[0] == null || !(args[0] instanceof Boolean)) {
-                    throw new LuaException("Expected boolean");
-                }
-                boolean b = ((Boolean) args[0]).booleanValue();
-                synchronized (m_terminal) {
-                    m_terminal.setCursorBlink(b);
-                }
-                return null;
-            }
-            case 4: {
-                // getCursorPos
-                int x, y;
-                synchronized (m_terminal) {
-                    x = m_terminal.getCursorX();
-                    y = m_terminal.getCursorY();
-                }
-                return new Object[]{x + 1, y + 1};
-            }
-            case 5: {
-                // getSize
-                int width, height;
-                synchronized (m_terminal) {
-                    width = m_terminal.getWidth();
-                    height = m_terminal.getHeight();
-                }
-                return new Object[]{width, height};
-            }
-            case 6: {
-                // clear
-                synchronized (m_terminal) {
-                    m_terminal.clear();
-                }
-                return null;
-            }
-            case 7: {
-                // clearLine
-                synchronized (m_terminal) {
-                    m_terminal.clearLine();
-                }
-                return null;
-            }
-            case 8:
-            case 9: {
-                // setTextColour/setTextColor
-                int colour = parseColour(args, m_environment.isColour());
-                synchronized (m_terminal) {
-                    m_terminal.setTextColour(colour);
-                }
-                return null;
-            }
-            case 10:
-            case 11: {
-                // setBackgroundColour/setBackgroundColor
-                int colour = parseColour(args, m_environment.isColour());
-                synchronized (m_terminal) {
-                    m_terminal.setBackgroundColour(colour);
-                }
-                return null;
-            }
-            case 12:
-            case 13: {
-                // isColour/isColor
-                return new Object[]{m_environment.isColour()};
-            }
-            case 14:
-            case 15: {
-                // getTextColour/getTextColor
-                return encodeColour(m_terminal.getTextColour());
-            }
-            case 16:
-            case 17: {
-                // getBackgroundColour/getBackgroundColor
-                return encodeColour(m_terminal.getBackgroundColour());
-            }
-            case 18: {
-                // blit
-                if (args.length < 3 || !(args[0] instanceof String) || !(args[1] instanceof String) || !(args[2] instanceof String)) {
-                    throw new LuaException("Expected string, string, string");
-                }
-
-                String text = (String) args[0];
-                String textColour = (String) args[1];
-                String backgroundColour = (String) args[2];
-                if (textColour.length() != text.length() || backgroundColour.length() != text.length()) {
-                    throw new LuaException("Arguments must be the same length");
-                }
-
-                synchronized (m_terminal) {
-                    m_terminal.blit(text, textColour, backgroundColour);
-                    m_terminal.setCursorPos(m_terminal.getCursorX() + text.length(), m_terminal.getCursorY());
-                }
-                return null;
-            }
-            default: {
-                return null;
-            }
+    public LuaTable createLuaTable(LuaJLuaMachine machine) {
+        // term is called so often it has its own native functions
+        return TermLib.create(machine, this);
+    }
+
+    @LuaMethod(order = 0)
+    public void write(Object arg) {
+        String text;
+        if (arg != null) {
+            text = arg.toString();
+        } else {
+            text = "";
+        }
+
+        synchronized (m_terminal) {
+            m_terminal.write(text);
+            m_terminal.setCursorPos(m_terminal.getCursorX() + text.length(), m_terminal.getCursorY());
+        }
+    }
+
+    public void write(ByteBuffer text) {
+        synchronized (m_terminal) {
+            m_terminal.write(text);
+            m_terminal.setCursorPos(m_terminal.getCursorX() + text.remaining(), m_terminal.getCursorY());
+        }
+    }
+
+    @LuaMethod(order = 1)
+    public void scroll(int y) {
+        synchronized (m_terminal) {
+            m_terminal.scroll(y);
+        }
+    }
+
+    @LuaMethod(order = 2)
+    public void setCursorPos(int x, int y) {
+        synchronized (m_terminal) {
+            m_terminal.setCursorPos(x - 1, y - 1);
+        }
+    }
+
+    @LuaMethod(order = 3)
+    public void setCursorBlink(boolean blink) {
+        synchronized (m_terminal) {
+            m_terminal.setCursorBlink(blink);
+        }
+    }
+
+    @LuaMethod(order = 4)
+    public Object[] getCursorPos() {
+        int x, y;
+        synchronized (m_terminal) {
+            x = m_terminal.getCursorX();
+            y = m_terminal.getCursorY();
+        }
+        return new Object[]{x + 1, y + 1};
+    }
+
+    @LuaMethod(order = 5)
+    public Object[] getSize() {
+        int width, height;
+        synchronized (m_terminal) {
+            width = m_terminal.getWidth();
+            height = m_terminal.getHeight();
+        }
+        return new Object[]{width, height};
+    }
+
+    @LuaMethod(order = 6)
+    public void clear() {
+        synchronized (m_terminal) {
+            m_terminal.clear();
+        }
+    }
+
+    @LuaMethod(order = 7)
+    public void clearLine() {
+        synchronized (m_terminal) {
+            m_terminal.clearLine();
+        }
+    }
+
+    @LuaMethod(value = {"setTextColour", "setTextColor"}, order = 8)
+    public void setTextColour(int colour) throws LuaException {
+        colour = parseColour(colour, m_environment.isColour());
+        synchronized (m_terminal) {
+            m_terminal.setTextColour(colour);
+        }
+    }
+
+    @LuaMethod(value = {"setBackgroundColour", "setBackgroundColor"}, order = 9)
+    public void setBackgroundColour(int colour) throws LuaException {
+        colour = parseColour(colour, m_environment.isColour());
+        synchronized (m_terminal) {
+            m_terminal.setBackgroundColour(colour);
+        }
+    }
+
+    @LuaMethod(value = {"isColour", "isColor"}, order = 10)
+    public Object isColour() {
+        return m_environment.isColour();
+    }
+
+    @LuaMethod(value = {"getTextColour", "getTextColor"}, order = 11)
+    public Object[] getTextColour() throws LuaException {
+        return encodeColour(m_terminal.getTextColour());
+    }
+
+    @LuaMethod(value = {"getBackgroundColour", "getBackgroundColor"}, order = 12)
+    public Object[] getBackgroundColour() throws LuaException {
+        return encodeColour(m_terminal.getBackgroundColour());
+    }
+
+    @LuaMethod(order = 13)
+    public void blit(ByteBuffer text, ByteBuffer textColour, ByteBuffer backgroundColour) throws LuaException {
+        if (textColour.remaining() != text.remaining() || backgroundColour.remaining() != text.remaining()) {
+            throw new LuaException("Arguments must be the same length");
+        }
+
+        synchronized (m_terminal) {
+            m_terminal.blit(text, textColour, backgroundColour);
+            m_terminal.setCursorPos(m_terminal.getCursorX() + text.remaining(), m_terminal.getCursorY());
         }
     }
 }
@@ -3,13 +3,15 @@ package dan200.computercraft.core.apis;
 import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 
 
-public class TimeAPI implements ILuaAPI {
+public class TimeAPI implements INonYieldingAPI, ISuspendableAPI {
 
     private static final String DEFAULT_TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
 
@@ -63,6 +65,15 @@ public class TimeAPI implements ILuaAPI {
         };
     }
 
+    @Override
+    public boolean saveState(DataOutputStream output) {
+        return true;
+    }
+
+    @Override
+    public void restoreState(DataInputStream input) {
+    }
+
     @Override
     public Object[] callMethod(ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
 
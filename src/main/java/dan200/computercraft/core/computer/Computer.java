@@ -17,17 +17,22 @@ import dan200.computercraft.core.filesystem.FileSystemException;
 import dan200.computercraft.core.lua.ILuaMachine;
 import dan200.computercraft.core.lua.LuaJLuaMachine;
 import dan200.computercraft.core.terminal.Terminal;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class Computer {
     public static final String[] s_sideNames = new String[]{
             "bottom", "top", "back", "front", "right", "left",
     };
+    private static final int SUSPENDED_STATE_FORMAT = 1;
     private static IMount s_romMount = null;
     private final IComputerEnvironment m_environment;
     private int m_id;
@@ -131,7 +136,7 @@ public class Computer {
 
     public void unload() {
         synchronized (this) {
-            stopComputer(false);
+            stopComputer(false, ComputerCraft.Config.suspend_computers);
         }
     }
 
@@ -383,7 +388,7 @@ public class Computer {
         }
     }
 
-    private void initLua() {
+    private ILuaMachine createMachine() {
         // Create the lua machine
         ILuaMachine machine = new LuaJLuaMachine(this);
 
@@ -392,6 +397,27 @@ public class Computer {
             machine.addAPI(api);
             api.startup();
         }
+        return machine;
+    }
+
+    private boolean initLua() {
+        ILuaMachine machine = createMachine();
+
+        // Carry on from where the computer was suspended, if it was
+        InputStream state = takeSuspendedState();
+        if (state != null) {
+            if (ComputerCraft.Config.suspend_computers && resumeState(machine, state)) {
+                m_machine = machine;
+                return true;
+            }
+
+            // Restoring may have got part of the way, so start again from scratch
+            machine.unload();
+            for (ILuaAPI api : m_apis) {
+                api.shutdown();
+            }
+            machine = createMachine();
+        }
 
         // Load the bios resource
         InputStream biosStream;
@@ -430,6 +456,147 @@ public class Computer {
             machine.unload();
             m_machine = null;
         }
+        return false;
+    }
+
+    // Suspending
+
+    private IWritableMount getSuspendedStateMount() {
+        return m_environment.createSaveDirMount("computer/suspended/" + assignID(), m_environment.getComputerSpaceLimit());
+    }
+
+    private void suspendState() {
+        // Write everything to memory first, so nothing is left behind if the computer can't be suspended
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream output = new DataOutputStream(new GZIPOutputStream(bytes));
+            output.writeInt(SUSPENDED_STATE_FORMAT);
+
+            // The terminal and redstone output belong to the computer, everything else to the APIs and the machine
+            synchronized (m_terminal) {
+                CompressedStreamTools.write(m_terminal.writeToNBT(new NBTTagCompound()), output);
+            }
+            synchronized (m_internalOutput) {
+                for (int i = 0; i < 6; ++i) {
+                    output.writeInt(m_internalOutput[i]);
+                    output.writeInt(m_internalBundledOutput[i]);
+                }
+            }
+            synchronized (m_apis) {
+                output.writeInt(m_apis.size());
+                for (ILuaAPI api : m_apis) {
+                    if (!(api instanceof ISuspendableAPI)) {
+                        return;
+                    }
+                    output.writeUTF(api.getClass().getName());
+                    if (!((ISuspendableAPI) api).saveState(output)) {
+                        return;
+                    }
+                }
+            }
+            synchronized (m_machine) {
+                if (!m_machine.saveState(output)) {
+                    return;
+                }
+            }
+            output.close();
+        } catch (IOException e) {
+            return;
+        }
+
+        IWritableMount mount = getSuspendedStateMount();
+        if (mount == null) {
+            return;
+        }
+        try {
+            OutputStream output = mount.openForWrite("state");
+            try {
+                bytes.writeTo(output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            // Don't leave part of a state behind, it would fail to resume anyway
+            try {
+                mount.delete("state");
+            } catch (IOException e2) {
+                // meh
+            }
+        }
+    }
+
+    private InputStream takeSuspendedState() {
+        IWritableMount mount = getSuspendedStateMount();
+        try {
+            if (mount == null || !mount.exists("state")) {
+                return null;
+            }
+
+            // Only try to resume from a state once, so a broken one doesn't stop the computer from starting
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                InputStream input = mount.openForRead("state");
+                try {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = input.read(buffer)) > 0) {
+                        bytes.write(buffer, 0, n);
+                    }
+                } finally {
+                    input.close();
+                }
+            } finally {
+                mount.delete("state");
+            }
+            return new ByteArrayInputStream(bytes.toByteArray());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private boolean resumeState(ILuaMachine machine, InputStream state) {
+        try {
+            DataInputStream input = new DataInputStream(new GZIPInputStream(state));
+            if (input.readInt() != SUSPENDED_STATE_FORMAT) {
+                return false;
+            }
+
+            NBTTagCompound terminal = CompressedStreamTools.read(input);
+            int[] output = new int[6];
+            int[] bundledOutput = new int[6];
+            for (int i = 0; i < 6; ++i) {
+                output[i] = input.readInt();
+                bundledOutput[i] = input.readInt();
+            }
+
+            // The computer must have the same APIs as when it was suspended
+            if (input.readInt() != m_apis.size()) {
+                return false;
+            }
+            for (ILuaAPI api : m_apis) {
+                if (!(api instanceof ISuspendableAPI) || !input.readUTF().equals(api.getClass().getName())) {
+                    return false;
+                }
+                ((ISuspendableAPI) api).restoreState(input);
+            }
+            if (!machine.restoreState(input)) {
+                return false;
+            }
+
+            synchronized (m_terminal) {
+                m_terminal.readFromNBT(terminal);
+            }
+            synchronized (m_internalOutput) {
+                for (int i = 0; i < 6; ++i) {
+                    m_internalOutput[i] = output[i];
+                    m_internalBundledOutput[i] = bundledOutput[i];
+                }
+                m_internalOutputChanged = true;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     // Lua
@@ -477,7 +644,7 @@ public class Computer {
                     }
 
                     // Init lua
-                    initLua();
+                    boolean resumed = initLua();
                     if (m_machine == null) {
                         m_terminal.reset();
                         m_terminal.write("Error loading bios.lua");
@@ -490,10 +657,12 @@ public class Computer {
                         return;
                     }
 
-                    // Start a new state
+                    // Start a new state, unless the computer was resumed and is waiting for an event
                     m_state = State.Running;
-                    synchronized (m_machine) {
-                        m_machine.handleEvent(null, null);
+                    if (!resumed) {
+                        synchronized (m_machine) {
+                            m_machine.handleEvent(null, null);
+                        }
                     }
                 }
             }
@@ -501,6 +670,10 @@ public class Computer {
     }
 
     private void stopComputer(final boolean reboot) {
+        stopComputer(reboot, false);
+    }
+
+    private void stopComputer(final boolean reboot, final boolean suspend) {
         synchronized (this) {
             if (m_state != State.Running) {
                 return;
@@ -523,6 +696,11 @@ public class Computer {
                         return;
                     }
 
+                    // Save the state of the computer, so it can be resumed the next time it is started
+                    if (suspend && m_machine != null) {
+                        suspendState();
+                    }
+
                     // Shutdown our APIs
                     synchronized (m_apis) {
                         Iterator<ILuaAPI> it = m_apis.iterator();
@@ -567,43 +745,108 @@ public class Computer {
         }, computer);
     }
 
-    public void queueEvent(final String event, final Object[] arguments) {
+    public boolean queueEvent(String event, Object[] arguments) {
         synchronized (this) {
             if (m_state != State.Running) {
-                return;
+                return false;
             }
         }
 
-        final Computer computer = this;
-        ITask task = new ITask() {
-            @Override
-            public Computer getOwner() {
-                return computer;
+        return ComputerThread.queueTask(new EventTask(event, arguments), this);
+    }
+
+    public boolean isEventQueueFull() {
+        return ComputerThread.isQueueFull(this);
+    }
+
+    public long getDroppedEvents() {
+        return ComputerThread.getDroppedTasks(this);
+    }
+
+    public long getMergedEvents() {
+        return ComputerThread.getMergedTasks(this);
+    }
+
+    public long getMemoryUsage() {
+        ILuaMachine machine = m_machine;
+        return machine != null ? machine.getMemoryUsage() : 0;
+    }
+
+    public long getMemoryLimit() {
+        ILuaMachine machine = m_machine;
+        return machine != null ? machine.getMemoryLimit() : 0;
+    }
+
+    private static boolean isRepeatableEvent(String event) {
+        // Events which only say that something has changed, so a second copy tells the computer nothing new
+        return "redstone".equals(event) || "term_resize".equals(event) || "monitor_resize".equals(event);
+    }
+
+    private class EventTask implements IMergeableTask {
+        private final String m_event;
+        private Object[] m_arguments; // Guarded by ComputerThread's lock while queued
+
+        public EventTask(String event, Object[] arguments) {
+            m_event = event;
+            m_arguments = arguments;
+        }
+
+        @Override
+        public Computer getOwner() {
+            return Computer.this;
+        }
+
+        @Override
+        public boolean mergeInto(ITask queued) {
+            if (!(queued instanceof EventTask) || ((EventTask) queued).getOwner() != Computer.this) {
+                return false;
             }
 
-            @Override
-            public void execute() {
-                synchronized (this) {
-                    if (m_state != State.Running) {
-                        return;
-                    }
+            EventTask other = (EventTask) queued;
+            if (m_event == null || !m_event.equals(other.m_event)) {
+                return false;
+            }
+
+            if (isRepeatableEvent(m_event)) {
+                return Arrays.equals(m_arguments, other.m_arguments);
+            }
+
+            if ("mouse_drag".equals(m_event)) {
+                // A run of drags with the same button only needs to report where the mouse ended up
+                if (m_arguments != null && other.m_arguments != null && m_arguments.length > 0 && other.m_arguments.length > 0 &&
+                        Objects.equal(m_arguments[0], other.m_arguments[0])) {
+                    other.m_arguments = m_arguments;
+                    return true;
                 }
+            }
+            return false;
+        }
 
-                synchronized (m_machine) {
-                    m_machine.handleEvent(event, arguments);
-                    if (m_machine.isFinished()) {
-                        m_terminal.reset();
-                        m_terminal.write("Error resuming bios.lua");
-                        m_terminal.setCursorPos(0, 1);
-                        m_terminal.write("ComputerCraft may be installed incorrectly");
+        @Override
+        public boolean canPass(ITask queued) {
+            return isRepeatableEvent(m_event);
+        }
 
-                        stopComputer(false);
-                    }
+        @Override
+        public void execute() {
+            synchronized (this) {
+                if (m_state != State.Running) {
+                    return;
                 }
             }
-        };
 
-        ComputerThread.queueTask(task, computer);
+            synchronized (m_machine) {
+                m_machine.handleEvent(m_event, m_arguments);
+                if (m_machine.isFinished()) {
+                    m_terminal.reset();
+                    m_terminal.write("Error resuming bios.lua");
+                    m_terminal.setCursorPos(0, 1);
+                    m_terminal.write("ComputerCraft may be installed incorrectly");
+
+                    stopComputer(false);
+                }
+            }
+        }
     }
 
     private enum State {
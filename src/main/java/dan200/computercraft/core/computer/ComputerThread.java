@@ -6,186 +6,474 @@
 
 package dan200.computercraft.core.computer;
 
+import dan200.computercraft.ComputerCraft;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.PriorityQueue;
 import java.util.WeakHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class ComputerThread {
-    private static Object m_lock;
-
-    private static Thread m_thread;
-    private static WeakHashMap<Object, LinkedBlockingQueue<ITask>> m_computerTasks;
-    private static ArrayList<LinkedBlockingQueue<ITask>> m_computerTasksActive;
-    private static ArrayList<LinkedBlockingQueue<ITask>> m_computerTasksPending;
-    private static Object m_defaultQueue;
-    private static Object m_monitor;
-
-    private static boolean m_running;
-    private static boolean m_stopped;
-
-    static {
-        m_lock = new Object();
-        m_thread = null;
-        m_computerTasks = new WeakHashMap<Object, LinkedBlockingQueue<ITask>>();
-        m_computerTasksPending = new ArrayList<LinkedBlockingQueue<ITask>>();
-        m_computerTasksActive = new ArrayList<LinkedBlockingQueue<ITask>>();
-        m_defaultQueue = new Object();
-        m_monitor = new Object();
-        m_running = false;
-        m_stopped = false;
-    }
+    private static final int QUEUE_LIMIT = 256;
+
+    // How long a task may run before the computer is aborted, in milliseconds
+    private static final long TIMEOUT_SOFT_ABORT = 7000;
+    private static final long TIMEOUT_HARD_ABORT = TIMEOUT_SOFT_ABORT + 1500;
+    private static final long TIMEOUT_ABANDON = TIMEOUT_HARD_ABORT + 1500;
+    private static final long MONITOR_INTERVAL = 100;
+
+    // The length of a scheduling period for the time budget, in nanoseconds
+    private static final long TICK_LENGTH = 50 * 1000000L;
+
+    private static final Object m_lock = new Object();
+
+    private static final WeakHashMap<Object, TaskQueue> m_computerTasks = new WeakHashMap<Object, TaskQueue>();
+    private static final PriorityQueue<TaskQueue> m_computerTasksActive = new PriorityQueue<TaskQueue>(16, new Comparator<TaskQueue>() {
+        @Override
+        public int compare(TaskQueue a, TaskQueue b) {
+            // Least virtual runtime first, then in the order they were scheduled
+            if (a.m_virtualRuntime != b.m_virtualRuntime) {
+                return a.m_virtualRuntime < b.m_virtualRuntime ? -1 : 1;
+            }
+            return a.m_sequence < b.m_sequence ? -1 : (a.m_sequence > b.m_sequence ? 1 : 0);
+        }
+    });
+    private static final ArrayList<TaskQueue> m_computerTasksThrottled = new ArrayList<TaskQueue>();
+    private static final Object m_defaultQueue = new Object();
+    private static long m_minVirtualRuntime = 0;
+    private static long m_nextSequence = 0;
+
+    private static TaskRunner[] m_runners = null;
+    private static Thread m_monitor = null;
+    private static boolean m_running = false;
+
+    // A new token for each start(), which the workers and monitor started with it hold on to. A thread left over from
+    // before a stop() exits rather than carrying on alongside the new ones, even if start() is called again before
+    // it has noticed.
+    private static Object m_runToken = null;
+    private static int m_nextRunnerID = 0;
 
     public static void start() {
         synchronized (m_lock) {
             if (m_running) {
-                m_stopped = false;
                 return;
             }
 
-            m_thread = new Thread(new Runnable() {
+            m_running = true;
+            final Object token = new Object();
+            m_runToken = token;
+
+            // Start the workers. Each one takes a computer off the active queue, runs a single task from it and
+            // puts it back, so a computer is never run by more than one worker at a time.
+            int threads = Math.max(1, ComputerCraft.Config.computer_threads);
+            m_runners = new TaskRunner[threads];
+            for (int i = 0; i < threads; ++i) {
+                m_runners[i] = new TaskRunner(token);
+                m_runners[i].start();
+            }
+
+            // Start the monitor, which aborts tasks which have been running for too long
+            m_monitor = new Thread(new Runnable() {
+                @Override
                 public void run() {
                     while (true) {
-                        synchronized (m_computerTasksPending) {
-                            if (!m_computerTasksPending.isEmpty()) {
-                                Iterator<LinkedBlockingQueue<ITask>> it = m_computerTasksPending.iterator();
-                                while (it.hasNext()) {
-                                    LinkedBlockingQueue<ITask> queue = it.next();
-
-                                    if (!m_computerTasksActive.contains(queue)) {
-                                        m_computerTasksActive.add(queue);
-                                    }
-                                    it.remove();
-                                }
-                                /*
-                                m_computerTasksActive.addAll(m_computerTasksPending); // put any that have been added since
-                                m_computerTasksPending.clear();
-                                */
+                        synchronized (m_lock) {
+                            if (!isCurrent(token)) {
+                                return;
                             }
                         }
 
-                        Iterator<LinkedBlockingQueue<ITask>> it = m_computerTasksActive.iterator();
-
-                        while (it.hasNext()) {
-                            LinkedBlockingQueue<ITask> queue = it.next();
-
-                            if (queue == null || queue.isEmpty()) // we don't need the blocking part of the queue. Null check to ensure it exists due to a weird NPE I got
-                            {
-                                continue;
-                            }
-
-                            synchronized (m_lock) {
-                                if (m_stopped) {
-                                    m_running = false;
-                                    m_thread = null;
-                                    return;
-                                }
-                            }
-
-                            try {
-                                final ITask task = queue.take();
-
-                                // Create the task
-                                Thread worker = new Thread(new Runnable() {
-                                    public void run() {
-                                        try {
-                                            task.execute();
-                                        } catch (Throwable e) {
-                                            System.out.println("ComputerCraft: Error running task.");
-                                            e.printStackTrace();
-                                        }
-                                    }
-                                });
-
-                                // Run the task
-                                worker.setDaemon(true);
-                                worker.start();
-                                worker.join(7000);
-
-                                if (worker.isAlive()) {
-                                    // Task ran for too long
-                                    // Initiate escape plan
-                                    Computer computer = task.getOwner();
-                                    if (computer != null) {
-                                        // Step 1: Soft abort
-                                        computer.abort(false);
-                                        worker.join(1500);
-
-                                        if (worker.isAlive()) {
-                                            // Step 2: Hard abort
-                                            computer.abort(true);
-                                            worker.join(1500);
-                                        }
-                                    }
-
-                                    // Step 3: abandon
-                                    if (worker.isAlive()) {
-                                        //System.out.println( "computercraft: Warning! Failed to abort Computer " + computercraft.getDescription() + ". Dangling lua thread could cause errors." );
-                                        worker.interrupt();
-                                    }
-                                }
-                            } catch (InterruptedException e) {
-                                continue;
-                            }
-
-                            synchronized (queue) {
-                                if (queue.isEmpty()) {
-                                    it.remove();
-                                }
-                            }
+                        try {
+                            Thread.sleep(MONITOR_INTERVAL);
+                        } catch (InterruptedException e) {
+                            continue;
                         }
 
-                        while (m_computerTasksActive.isEmpty() && m_computerTasksPending.isEmpty()) {
-                            synchronized (m_monitor) {
-                                try {
-                                    m_monitor.wait();
-                                } catch (InterruptedException e) {
-                                }
-                            }
-                        }
+                        checkRunners(token);
                     }
                 }
-            }, "Computer Dispatch Thread");
-            m_thread.setDaemon(true);
-            m_thread.start();
-            m_running = true;
+            }, "Computer Monitor Thread");
+            m_monitor.setDaemon(true);
+            m_monitor.start();
         }
     }
 
     public static void stop() {
         synchronized (m_lock) {
             if (m_running) {
-                m_stopped = true;
-                m_thread.interrupt();
+                m_running = false;
+                m_runToken = null;
+                m_lock.notifyAll();
+                for (TaskRunner runner : m_runners) {
+                    runner.m_thread.interrupt();
+                }
+                m_runners = null;
+                m_monitor.interrupt();
+                m_monitor = null;
             }
         }
     }
 
-    public static void queueTask(ITask _task, Computer computer) {
+    public static boolean queueTask(ITask _task, Computer computer) {
         Object queueObject = computer;
 
         if (queueObject == null) {
             queueObject = m_defaultQueue;
         }
 
-        LinkedBlockingQueue<ITask> queue = m_computerTasks.get(queueObject);
+        synchronized (m_lock) {
+            TaskQueue queue = m_computerTasks.get(queueObject);
+
+            if (queue == null) {
+                m_computerTasks.put(queueObject, queue = new TaskQueue());
+            }
+
+            if (_task instanceof IMergeableTask && queue.merge((IMergeableTask) _task)) {
+                // Folded into a task which hasn't run yet, so there's nothing new to schedule
+                queue.m_merged++;
+                return true;
+            }
+
+            if (queue.m_tasks.size() < QUEUE_LIMIT) {
+                queue.m_tasks.addLast(_task);
+                queue.m_overflowing = false;
+
+                // Only schedule the computer if it isn't already waiting or being run by a worker
+                if (!queue.m_scheduled) {
+                    queue.m_scheduled = true;
+
+                    // A computer which has been idle doesn't get to catch up on the time it didn't use, otherwise
+                    // it would hold up everyone else until it had
+                    queue.m_virtualRuntime = Math.max(queue.m_virtualRuntime, m_minVirtualRuntime);
+                    queue.m_sequence = m_nextSequence++;
+                    m_computerTasksActive.add(queue);
+                    m_lock.notify();
+                }
+                return true;
+            } else {
+                // Only report the first task dropped, rather than every one while the computer catches up
+                queue.m_dropped++;
+                if (!queue.m_overflowing) {
+                    queue.m_overflowing = true;
+                    ComputerCraft.log.warn("Event queue overflow" + (computer != null ? " on computer #" + computer.getID() : "") + ", dropping events.");
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Whether a computer has as many tasks waiting as it can hold, so that anything else queued will be dropped.
+     * Producers which can hold on to their events, such as networks, should wait for it to catch up instead.
+     *
+     * @param computer The computer to check.
+     * @return Whether the computer's queue is full.
+     */
+    public static boolean isQueueFull(Computer computer) {
+        synchronized (m_lock) {
+            TaskQueue queue = m_computerTasks.get(computer);
+            return queue != null && queue.m_tasks.size() >= QUEUE_LIMIT;
+        }
+    }
+
+    public static long getDroppedTasks(Computer computer) {
+        synchronized (m_lock) {
+            TaskQueue queue = m_computerTasks.get(computer);
+            return queue != null ? queue.m_dropped : 0;
+        }
+    }
 
-        if (queue == null) {
-            m_computerTasks.put(queueObject, queue = new LinkedBlockingQueue<ITask>(256));
+    public static long getMergedTasks(Computer computer) {
+        synchronized (m_lock) {
+            TaskQueue queue = m_computerTasks.get(computer);
+            return queue != null ? queue.m_merged : 0;
         }
+    }
+
+    private static boolean isCurrent(Object token) {
+        // Must be called with m_lock held
+        return m_running && m_runToken == token;
+    }
+
+    private static TaskQueue takeQueue(Object token) throws InterruptedException {
+        synchronized (m_lock) {
+            while (true) {
+                if (!isCurrent(token)) {
+                    return null;
+                }
+
+                long now = System.nanoTime();
+                long tick = now / TICK_LENGTH;
+
+                // Let computers which used up their budget run again once a new tick has started
+                Iterator<TaskQueue> it = m_computerTasksThrottled.iterator();
+                while (it.hasNext()) {
+                    TaskQueue queue = it.next();
+                    if (queue.m_tick != tick) {
+                        it.remove();
+                        m_computerTasksActive.add(queue);
+                    }
+                }
+
+                // Pick the computer which has had the least time so far
+                TaskQueue queue = m_computerTasksActive.poll();
+                if (queue != null) {
+                    if (queue.isThrottled(tick)) {
+                        m_computerTasksThrottled.add(queue);
+                        continue;
+                    }
+
+                    m_minVirtualRuntime = Math.max(m_minVirtualRuntime, queue.m_virtualRuntime);
+                    return queue;
+                }
 
-        synchronized (m_computerTasksPending) {
-            if (queue.offer(_task)) {
-                if (!m_computerTasksPending.contains(queue)) {
-                    m_computerTasksPending.add(queue);
+                if (m_computerTasksThrottled.isEmpty()) {
+                    m_lock.wait();
+                } else {
+                    long wait = (tick + 1) * TICK_LENGTH - now;
+                    m_lock.wait(wait / 1000000L, (int) (wait % 1000000L));
                 }
+            }
+        }
+    }
+
+    private static void checkRunners(Object token) {
+        TaskRunner[] runners;
+        synchronized (m_lock) {
+            if (!isCurrent(token)) {
+                return;
+            }
+            runners = m_runners.clone();
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < runners.length; ++i) {
+            TaskRunner runner = runners[i];
+
+            ITask task;
+            long elapsed;
+            synchronized (runner) {
+                task = runner.m_currentTask;
+                if (task == null) {
+                    continue;
+                }
+                elapsed = now - runner.m_taskStart;
+            }
+
+            // Task ran for too long
+            // Initiate escape plan
+            Computer computer = task.getOwner();
+            if (computer != null && elapsed < TIMEOUT_ABANDON) {
+                if (elapsed >= TIMEOUT_HARD_ABORT && runner.claimAbortStage(task, 2)) {
+                    // Step 2: Hard abort
+                    computer.abort(true);
+                } else if (elapsed >= TIMEOUT_SOFT_ABORT && runner.claimAbortStage(task, 1)) {
+                    // Step 1: Soft abort
+                    computer.abort(false);
+                }
+            } else if (elapsed >= TIMEOUT_SOFT_ABORT && runner.claimAbortStage(task, 3)) {
+                // Step 3: abandon
+                //System.out.println( "computercraft: Warning! Failed to abort Computer " + computercraft.getDescription() + ". Dangling lua thread could cause errors." );
+                synchronized (m_lock) {
+                    if (runner.abandon(task)) {
+                        // Hand the computer back, so its other tasks don't wait on the one left dangling
+                        runner.releaseQueue();
+                        if (isCurrent(token) && m_runners[i] == runner) {
+                            // Replace the worker, so the pool doesn't lose a thread to the dangling task
+                            m_runners[i] = new TaskRunner(token);
+                            m_runners[i].start();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class TaskRunner implements Runnable {
+        private final Object m_token;
+        private final Thread m_thread;
+        private ITask m_currentTask;
+        private long m_taskStart;
+        private int m_abortStage;
+        private boolean m_abandoned;
+
+        // The computer this worker has taken off the queue, and when. Guarded by m_lock
+        private TaskQueue m_currentQueue;
+        private long m_queueStart;
+
+        public TaskRunner(Object token) {
+            m_token = token;
+            m_thread = new Thread(this, "Computer Thread #" + (++m_nextRunnerID));
+            m_thread.setDaemon(true);
+            m_currentTask = null;
+            m_abandoned = false;
+        }
+
+        public void start() {
+            m_thread.start();
+        }
+
+        public synchronized boolean claimAbortStage(ITask task, int stage) {
+            if (m_currentTask != task || m_abortStage >= stage) {
+                return false;
+            }
+            m_abortStage = stage;
+            return true;
+        }
+
+        public void releaseQueue() {
+            // Must be called with m_lock held
+            TaskQueue queue = m_currentQueue;
+            if (queue == null) {
+                return;
+            }
+            m_currentQueue = null;
+
+            // Charge the computer for the time it used, and hand it back: into the active queue if it has more
+            // work, otherwise it is rescheduled the next time a task is queued for it
+            long end = System.nanoTime();
+            queue.m_virtualRuntime += end - m_queueStart;
+            queue.addTickRuntime(end / TICK_LENGTH, end - m_queueStart);
+            if (queue.m_tasks.isEmpty()) {
+                queue.m_scheduled = false;
             } else {
-                //System.out.println( "Event queue overflow" );
+                queue.m_sequence = m_nextSequence++;
+                m_computerTasksActive.add(queue);
+                m_lock.notify();
+            }
+        }
+
+        public boolean abandon(ITask task) {
+            synchronized (this) {
+                if (m_currentTask != task) {
+                    // Finished after all
+                    return false;
+                }
+                m_abandoned = true;
+            }
+            m_thread.interrupt();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (m_lock) {
+                    if (!isCurrent(m_token)) {
+                        return;
+                    }
+                }
+
+                TaskQueue queue;
+                try {
+                    queue = takeQueue(m_token);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                if (queue == null) {
+                    return;
+                }
+
+                ITask task;
+                synchronized (m_lock) {
+                    m_currentQueue = queue;
+                    m_queueStart = System.nanoTime();
+
+                    // Once taken off the queue, nothing more can be merged into the task
+                    task = queue.m_tasks.pollFirst();
+                }
+                if (task != null) {
+                    synchronized (this) {
+                        m_currentTask = task;
+                        m_taskStart = System.currentTimeMillis();
+                        m_abortStage = 0;
+                    }
+
+                    try {
+                        task.execute();
+                    } catch (Throwable e) {
+                        System.out.println("ComputerCraft: Error running task.");
+                        e.printStackTrace();
+                    }
+
+                    synchronized (this) {
+                        m_currentTask = null;
+                    }
+                }
+
+                synchronized (m_lock) {
+                    // Does nothing if the task was abandoned, as the computer has already been handed back
+                    releaseQueue();
+                }
+
+                synchronized (this) {
+                    if (m_abandoned) {
+                        // A replacement worker has already been started
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class TaskQueue {
+        // Guarded by m_lock
+        private final ArrayDeque<ITask> m_tasks;
+        private boolean m_scheduled;
+        private long m_sequence;
+
+        // How many tasks have been dropped because the queue was full, or folded into ones already queued
+        private long m_dropped;
+        private long m_merged;
+        private boolean m_overflowing;
+
+        // Total time spent running this computer, in nanoseconds
+        private long m_virtualRuntime;
+
+        // Time spent running this computer during tick m_tick, in nanoseconds
+        private long m_tick;
+        private long m_tickRuntime;
+
+        public TaskQueue() {
+            m_tasks = new ArrayDeque<ITask>();
+            m_scheduled = false;
+            m_dropped = 0;
+            m_merged = 0;
+            m_overflowing = false;
+            m_virtualRuntime = 0;
+            m_tick = -1;
+            m_tickRuntime = 0;
+        }
+
+        public boolean merge(IMergeableTask task) {
+            // Offer the task everything waiting, latest first, until it merges or can't be moved any earlier
+            Iterator<ITask> it = m_tasks.descendingIterator();
+            while (it.hasNext()) {
+                ITask queued = it.next();
+                if (task.mergeInto(queued)) {
+                    return true;
+                }
+                if (!task.canPass(queued)) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        public void addTickRuntime(long tick, long time) {
+            if (tick != m_tick) {
+                m_tick = tick;
+                m_tickRuntime = 0;
             }
+            m_tickRuntime += time;
         }
 
-        synchronized (m_monitor) {
-            m_monitor.notify();
+        public boolean isThrottled(long tick) {
+            long budget = ComputerCraft.Config.computer_time_budget * 1000000L;
+            return budget > 0 && tick == m_tick && m_tickRuntime >= budget;
         }
     }
 }
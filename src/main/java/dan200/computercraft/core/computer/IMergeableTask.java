@@ -0,0 +1,30 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.computer;
+
+/**
+ * A task which can be folded into one which is still waiting to run, such as a repeated event. This keeps floods of
+ * redundant events from filling up a computer's queue.
+ */
+public interface IMergeableTask extends ITask {
+    /**
+     * Try to fold this task into one which is waiting to run. If this succeeds, this task is not queued.
+     *
+     * @param queued A task which is waiting to run.
+     * @return Whether this task has been merged into it.
+     */
+    boolean mergeInto(ITask queued);
+
+    /**
+     * Whether this task could run before a task which is waiting to run, so that it may be merged into one queued
+     * earlier still.
+     *
+     * @param queued A task which is waiting to run, and which this task couldn't be merged into.
+     * @return Whether the order of the two tasks doesn't matter.
+     */
+    boolean canPass(ITask queued);
+}
@@ -15,7 +15,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-public class ComboMount implements IMount {
+public class ComboMount implements IMount, ICacheableMount {
     private IMount[] m_parts;
 
     public ComboMount(IMount[] parts) {
@@ -100,4 +100,17 @@ public class ComboMount implements IMount {
         }
         throw new IOException("No such file");
     }
+
+    // ICacheableMount implementation
+
+    @Override
+    public String getCacheKey(String path) throws IOException {
+        for (int i = m_parts.length - 1; i >= 0; --i) {
+            IMount part = m_parts[i];
+            if (part.exists(path) && !part.isDirectory(path)) {
+                return (part instanceof ICacheableMount) ? ((ICacheableMount) part).getCacheKey(path) : null;
+            }
+        }
+        return null;
+    }
 }
@@ -11,7 +11,7 @@ import dan200.computercraft.api.filesystem.IWritableMount;
 import java.io.*;
 import java.util.List;
 
-public class FileMount implements IWritableMount {
+public class FileMount implements IWritableMount, ICacheableMount {
     private static int MINIMUM_FILE_SIZE = 500;
     private File m_rootPath;
     private long m_capacity;
@@ -125,6 +125,19 @@ public class FileMount implements IWritableMount {
         }
     }
 
+    // ICacheableMount implementation
+
+    @Override
+    public String getCacheKey(String path) throws IOException {
+        if (created()) {
+            File file = getRealPath(path);
+            if (file.exists() && !file.isDirectory()) {
+                return file.getCanonicalPath() + "\n" + file.length() + "\n" + file.lastModified();
+            }
+        }
+        return null;
+    }
+
     // IWritableMount implementation
 
     @Override
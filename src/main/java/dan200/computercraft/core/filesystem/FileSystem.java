@@ -299,6 +299,12 @@ public class FileSystem {
         return mount.isReadOnly(path);
     }
 
+    public synchronized String getCacheKey(String path) throws FileSystemException {
+        path = sanitizePath(path);
+        MountWrapper mount = getMount(path);
+        return mount.getCacheKey(path);
+    }
+
     public synchronized String getMountLabel(String path) throws FileSystemException {
         path = sanitizePath(path);
         MountWrapper mount = getMount(path);
@@ -532,11 +538,21 @@ public class FileSystem {
                     return stream.read();
                 }
 
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return stream.read(b, off, len);
+                }
+
                 @Override
                 public void write(int i) throws IOException {
                     throw new UnsupportedOperationException();
                 }
 
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    throw new UnsupportedOperationException();
+                }
+
                 @Override
                 public void close() throws IOException {
                     closeFile(this, stream);
@@ -563,11 +579,21 @@ public class FileSystem {
                     throw new UnsupportedOperationException();
                 }
 
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    throw new UnsupportedOperationException();
+                }
+
                 @Override
                 public void write(int i) throws IOException {
                     stream.write(i);
                 }
 
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    stream.write(b, off, len);
+                }
+
                 @Override
                 public void close() throws IOException {
                     closeFile(this, stream);
@@ -653,6 +679,19 @@ public class FileSystem {
             return (m_writableMount == null);
         }
 
+        public String getCacheKey(String path) throws FileSystemException {
+            if (!(m_mount instanceof ICacheableMount)) {
+                return null;
+            }
+
+            path = toLocal(path);
+            try {
+                return ((ICacheableMount) m_mount).getCacheKey(path);
+            } catch (IOException e) {
+                throw new FileSystemException(e.getMessage());
+            }
+        }
+
         // IMount forwarders:
 
         public boolean exists(String path) throws FileSystemException {
@@ -0,0 +1,24 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.filesystem;
+
+import java.io.IOException;
+
+/**
+ * A mount which can tell one version of a file from another, so anything worked out from its contents can be cached
+ * between server restarts.
+ */
+public interface ICacheableMount {
+    /**
+     * Get a key for the current version of a file, made from its real location, size and modification time.
+     *
+     * @param path The path of the file within the mount.
+     * @return The key, or {@code null} if the file can't be identified.
+     * @throws IOException If the file could not be inspected.
+     */
+    String getCacheKey(String path) throws IOException;
+}
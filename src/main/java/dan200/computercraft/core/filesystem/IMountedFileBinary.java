@@ -11,8 +11,12 @@ import java.io.IOException;
 public interface IMountedFileBinary extends IMountedFile {
     int read() throws IOException;
 
+    int read(byte[] b, int off, int len) throws IOException;
+
     void write(int i) throws IOException;
 
+    void write(byte[] b, int off, int len) throws IOException;
+
     void close() throws IOException;
 
     void flush() throws IOException;
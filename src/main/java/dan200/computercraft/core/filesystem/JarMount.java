@@ -19,7 +19,8 @@ import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
-public class JarMount implements IMount {
+public class JarMount implements IMount, ICacheableMount {
+    private File m_jarFile;
     private ZipFile m_zipFile;
     private FileInZip m_root;
     private String m_rootPath;
@@ -30,6 +31,7 @@ public class JarMount implements IMount {
         }
 
         // Open the zip file
+        m_jarFile = jarFile;
         try {
             m_zipFile = new ZipFile(jarFile);
         } catch (Exception e) {
@@ -126,6 +128,24 @@ public class JarMount implements IMount {
         throw new IOException("No such file");
     }
 
+    // ICacheableMount implementation
+
+    @Override
+    public String getCacheKey(String path) throws IOException {
+        FileInZip file = m_root.getFile(path);
+        if (file != null && !file.isDirectory()) {
+            String fullPath = m_rootPath;
+            if (path.length() > 0) {
+                fullPath = fullPath + "/" + path;
+            }
+            ZipEntry entry = m_zipFile.getEntry(fullPath);
+            if (entry != null) {
+                return m_jarFile.getCanonicalPath() + "\n" + m_jarFile.lastModified() + "\n" + fullPath + "\n" + entry.getSize() + "\n" + entry.getTime();
+            }
+        }
+        return null;
+    }
+
     private class FileInZip {
         private String m_path;
         private boolean m_directory;
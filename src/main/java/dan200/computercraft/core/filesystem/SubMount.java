@@ -12,7 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 
-public class SubMount implements IMount {
+public class SubMount implements IMount, ICacheableMount {
     private IMount m_parent;
     private String m_subPath;
 
@@ -48,6 +48,13 @@ public class SubMount implements IMount {
         return m_parent.openForRead(getFullPath(path));
     }
 
+    // ICacheableMount implementation
+
+    @Override
+    public String getCacheKey(String path) throws IOException {
+        return (m_parent instanceof ICacheableMount) ? ((ICacheableMount) m_parent).getCacheKey(getFullPath(path)) : null;
+    }
+
     private String getFullPath(String path) {
         if (path.length() == 0) {
             return m_subPath;
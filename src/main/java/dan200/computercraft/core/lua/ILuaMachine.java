@@ -28,5 +28,9 @@ public interface ILuaMachine {
 
     boolean isFinished();
 
+    long getMemoryUsage();
+
+    long getMemoryLimit();
+
     void unload();
 }
@@ -0,0 +1,30 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.lua;
+
+import dan200.computercraft.api.lua.ILuaObject;
+import org.luaj.vm2.LuaTable;
+
+/**
+ * An API or other object which gives lua a table of native functions, rather than having each of its methods wrapped
+ * in a function which converts its arguments to an Object[] and its results back. This is for objects whose methods
+ * are called so often that the conversion matters, such as terminals.<br>
+ * <br>
+ * The object must still implement getMethodNames() and callMethod(), which are used when it is called from anywhere
+ * other than a {@link LuaJLuaMachine}, and the native functions should behave exactly as the methods do.
+ */
+public interface INativeLuaObject extends ILuaObject {
+    /**
+     * Create the table lua sees in place of this object. This is called each time the object is added to a machine as
+     * an API, or returned to lua from a method.
+     *
+     * @param machine The machine the functions will be called from. They should call
+     *                {@link LuaJLuaMachine#tryAbort()} before doing anything, as wrapped methods do.
+     * @return The table of functions
+     */
+    LuaTable createLuaTable(LuaJLuaMachine machine);
+}
@@ -7,30 +7,41 @@
 package dan200.computercraft.core.lua;
 
 import dan200.computercraft.ComputerCraft;
+import dan200.computercraft.api.lua.ILuaBinaryArguments;
 import dan200.computercraft.api.lua.ILuaContext;
+import dan200.computercraft.api.lua.ILuaFuture;
 import dan200.computercraft.api.lua.ILuaObject;
 import dan200.computercraft.api.lua.ILuaTask;
 import dan200.computercraft.api.lua.LuaException;
 import dan200.computercraft.core.apis.ILuaAPI;
+import dan200.computercraft.core.apis.INonYieldingAPI;
+import dan200.computercraft.core.apis.IPartlyYieldingAPI;
 import dan200.computercraft.core.computer.Computer;
 import dan200.computercraft.core.computer.ITask;
 import dan200.computercraft.core.computer.MainThread;
 import org.luaj.vm2.*;
-import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.VarArgFunction;
 import org.luaj.vm2.lib.ZeroArgFunction;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.JavaLoader;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LuaJLuaMachine implements ILuaMachine {
     private static long s_nextUnusedTaskID = 0;
+    private static final Map<Class<?>, MethodTable> s_methodTables = new ConcurrentHashMap<Class<?>, MethodTable>();
     private Computer m_computer;
+    private final LuaThread.Context m_context;
     private LuaValue m_globals;
+    private LuaTable m_libraries;
+    private Snapshot m_snapshot;
+    private JavaLoader m_javaLoader;
     private LuaValue m_loadString;
     private LuaValue m_assert;
     private LuaValue m_coroutine_create;
@@ -41,49 +52,72 @@ public class LuaJLuaMachine implements ILuaMachine {
     private String m_softAbortMessage;
     private String m_hardAbortMessage;
     private Map<Object, LuaValue> m_valuesInProgress;
-    private Map<LuaValue, Object> m_objectsInProgress;
+    private final ILuaContext m_luaContext = new LuaContext();
 
     public LuaJLuaMachine(Computer computer) {
         m_computer = computer;
 
-        // Create an environment to run in
-        m_globals = JsePlatform.debugGlobals();
-        m_loadString = m_globals.get("loadstring");
-        m_assert = m_globals.get("assert");
+        // Each computer gets its own running thread and string metatable, so computers can be run in parallel
+        m_context = new LuaThread.Context();
+        m_context.setMemoryLimit((long) ComputerCraft.Config.computer_memory_limit * 1024 * 1024);
+        LuaThread.Context previousContext = LuaThread.setContext(m_context);
+        try {
+            createGlobals(computer);
+        } finally {
+            LuaThread.setContext(previousContext);
+        }
 
-        LuaValue coroutine = m_globals.get("coroutine");
-        final LuaValue native_coroutine_create = coroutine.get("create");
+        // Our main function will go here
+        m_mainRoutine = null;
+        m_eventFilter = null;
+
+        m_softAbortMessage = null;
+        m_hardAbortMessage = null;
+    }
+
+    private void createGlobals(Computer computer) {
+        // Create an environment to run in. The libraries register themselves with each other through static
+        // fields as they are loaded, so only one environment can be created at a time.
+        // Code compiled to bytecode can't be suspended by a stackless coroutine, so they can't be used together.
+        boolean compileToBytecode = ComputerCraft.Config.bytecode_compile_rom || ComputerCraft.Config.bytecode_compile_threshold > 0;
+        synchronized (LuaJLuaMachine.class) {
+            LuaThread.stackless_coroutines = ComputerCraft.Config.stackless_coroutines && !compileToBytecode;
+            m_globals = JsePlatform.standardGlobals();
+        }
 
-        LuaValue debug = m_globals.get("debug");
-        final LuaValue debug_sethook = debug.get("sethook");
+        // Classes compiled for this computer are defined by its own loader, so they are unloaded along with it
+        m_javaLoader = compileToBytecode ? new JavaLoader(m_globals) : null;
 
-        coroutine.set("create", new OneArgFunction() {
+        // Compile code through the shared cache, so the bios and ROM are only parsed once
+        m_globals.set("loadstring", new VarArgFunction() {
             @Override
-            public LuaValue call(LuaValue value) {
-                final LuaThread thread = native_coroutine_create.call(value).checkthread();
-                debug_sethook.invoke(new LuaValue[]{
-                        thread,
-                        new ZeroArgFunction() {
-                            @Override
-                            public LuaValue call() {
-                                String hardAbortMessage = m_hardAbortMessage;
-                                if (hardAbortMessage != null) {
-                                    LuaThread.yield(LuaValue.NIL);
-                                }
-                                return LuaValue.NIL;
-                            }
-                        },
-                        LuaValue.NIL,
-                        LuaValue.valueOf(100000)
-                });
-                return thread;
+            public Varargs invoke(Varargs args) {
+                LuaString script = args.checkstring(1);
+                String chunkname = args.optjstring(2, "string");
+                try {
+                    return PrototypeCache.load(script, chunkname, LuaThread.getGlobals(), m_javaLoader);
+                } catch (Exception e) {
+                    // Not every exception from the compiler has a message
+                    String message = e.getMessage() != null ? e.getMessage() : e.toString();
+                    return LuaValue.varargsOf(LuaValue.NIL, LuaValue.valueOf(message));
+                }
             }
         });
+        m_loadString = m_globals.get("loadstring");
+        m_assert = m_globals.get("assert");
 
+        LuaValue coroutine = m_globals.get("coroutine");
         m_coroutine_create = coroutine.get("create");
         m_coroutine_resume = coroutine.get("resume");
         m_coroutine_yield = coroutine.get("yield");
 
+        // Remember the libraries before any lua code runs, so a suspended computer can refer to them by name. This
+        // includes the string metatable, and the iterator returned by ipairs, which isn't a global once removed.
+        m_libraries = new LuaTable();
+        m_libraries.set("_G", m_globals);
+        m_libraries.set("__inext", m_globals.get("__inext"));
+        m_libraries.set("__string", LuaThread.getStringMetatable());
+
         // Remove globals we don't want to expose
         m_globals.set("collectgarbage", LuaValue.NIL);
         m_globals.set("dofile", LuaValue.NIL);
@@ -106,19 +140,12 @@ public class LuaJLuaMachine implements ILuaMachine {
         if (ComputerCraft.Config.disable_lua51_features) {
             m_globals.set("_CC_DISABLE_LUA51_FEATURES", toValue(true));
         }
-
-        // Our main function will go here
-        m_mainRoutine = null;
-        m_eventFilter = null;
-
-        m_softAbortMessage = null;
-        m_hardAbortMessage = null;
     }
 
     @Override
     public void addAPI(ILuaAPI api) {
-        // Add the methods of an API to the global table
-        LuaTable table = wrapLuaObject(api);
+        // Add the methods of an API to the global table. APIs called very often, like term, have native functions
+        LuaTable table = (api instanceof INativeLuaObject) ? ((INativeLuaObject) api).createLuaTable(this) : wrapLuaObject(api);
         String[] names = api.getNames();
         for (String name : names) {
             m_globals.set(name, table);
@@ -132,6 +159,7 @@ public class LuaJLuaMachine implements ILuaMachine {
             return;
         }
 
+        LuaThread.Context previousContext = LuaThread.setContext(m_context);
         try {
             // Read the whole bios into a string
             String biosText = null;
@@ -157,7 +185,13 @@ public class LuaJLuaMachine implements ILuaMachine {
                 throw new LuaError("Could not read file");
             }
 
+            // Name the libraries while they're untouched, so the computer can be suspended later
+            if (ComputerCraft.Config.suspend_computers) {
+                m_snapshot = new Snapshot(m_libraries);
+            }
+
             // Load it
+            PrototypeCache.admit(biosText, true, null);
             LuaValue program = m_assert.call(m_loadString.call(
                     toValue(biosText), toValue("bios.lua")
             ));
@@ -167,6 +201,8 @@ public class LuaJLuaMachine implements ILuaMachine {
                 ((LuaThread) m_mainRoutine).abandon();
                 m_mainRoutine = null;
             }
+        } finally {
+            LuaThread.setContext(previousContext);
         }
     }
 
@@ -180,6 +216,7 @@ public class LuaJLuaMachine implements ILuaMachine {
             return;
         }
 
+        LuaThread.Context previousContext = LuaThread.setContext(m_context);
         try {
             LuaValue[] resumeArgs;
             if (eventName != null) {
@@ -212,9 +249,14 @@ public class LuaJLuaMachine implements ILuaMachine {
         } catch (LuaError e) {
             ((LuaThread) m_mainRoutine).abandon();
             m_mainRoutine = null;
+        } catch (OrphanedThread e) {
+            ((LuaThread) m_mainRoutine).abandon();
+            m_mainRoutine = null;
         } finally {
             m_softAbortMessage = null;
             m_hardAbortMessage = null;
+            m_context.setInterruptHook(null);
+            LuaThread.setContext(previousContext);
         }
     }
 
@@ -227,16 +269,73 @@ public class LuaJLuaMachine implements ILuaMachine {
     public void hardAbort(String abortMessage) {
         m_softAbortMessage = abortMessage;
         m_hardAbortMessage = abortMessage;
+
+        // Make the running code yield at its next call or loop iteration, all the way out to handleEvent
+        m_context.setInterruptHook(new ZeroArgFunction() {
+            @Override
+            public LuaValue call() {
+                if (!LuaThread.canYield()) {
+                    // A stackless coroutine can't be suspended from here, so kill it instead
+                    throw new OrphanedThread();
+                }
+                LuaThread.yield(LuaValue.NIL);
+                return LuaValue.NIL;
+            }
+        });
     }
 
     @Override
     public boolean saveState(OutputStream output) {
-        return false;
+        // Only a computer waiting for an event can be saved, which is whenever it isn't handling one
+        if (m_mainRoutine == null || m_snapshot == null) {
+            return false;
+        }
+
+        LuaThread.Context previousContext = LuaThread.setContext(m_context);
+        try {
+            DataOutputStream data = new DataOutputStream(output);
+            data.writeBoolean(m_eventFilter != null);
+            if (m_eventFilter != null) {
+                data.writeUTF(m_eventFilter);
+            }
+            m_snapshot.save(new LuaValue[]{m_mainRoutine, m_libraries}, data);
+            data.flush();
+            return true;
+        } catch (IOException e) {
+            // Something which only exists in Java can be reached, such as an open file
+            return false;
+        } finally {
+            LuaThread.setContext(previousContext);
+        }
     }
 
     @Override
     public boolean restoreState(InputStream input) {
-        return false;
+        // Restoring replaces the contents of the libraries, so must be done instead of loading the bios
+        if (m_mainRoutine != null) {
+            return false;
+        }
+
+        LuaThread.Context previousContext = LuaThread.setContext(m_context);
+        try {
+            DataInputStream data = new DataInputStream(input);
+            String eventFilter = data.readBoolean() ? data.readUTF() : null;
+            Snapshot snapshot = new Snapshot(m_libraries);
+            LuaValue[] roots = snapshot.restore(data);
+            if (roots.length < 1 || !(roots[0] instanceof LuaThread)) {
+                return false;
+            }
+            m_mainRoutine = roots[0];
+            m_eventFilter = eventFilter;
+            m_snapshot = snapshot;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (LuaError e) {
+            return false;
+        } finally {
+            LuaThread.setContext(previousContext);
+        }
     }
 
     @Override
@@ -244,16 +343,37 @@ public class LuaJLuaMachine implements ILuaMachine {
         return (m_mainRoutine == null);
     }
 
+    @Override
+    public long getMemoryUsage() {
+        return m_context.getMemoryUsed();
+    }
+
+    @Override
+    public long getMemoryLimit() {
+        return m_context.getMemoryLimit();
+    }
+
     @Override
     public void unload() {
         if (m_mainRoutine != null) {
-            LuaThread mainThread = (LuaThread) m_mainRoutine;
-            mainThread.abandon();
-            m_mainRoutine = null;
+            LuaThread.Context previousContext = LuaThread.setContext(m_context);
+            try {
+                LuaThread mainThread = (LuaThread) m_mainRoutine;
+                mainThread.abandon();
+                m_mainRoutine = null;
+            } finally {
+                LuaThread.setContext(previousContext);
+            }
         }
+        m_context.setInterruptHook(null);
+        m_javaLoader = null;
     }
 
-    private void tryAbort() throws LuaError {
+    /**
+     * Check whether the computer has been asked to stop, or lua has run for too long, and throw the error which aborts
+     * the running code if so. Every function lua calls into Java through should call this first.
+     */
+    public void tryAbort() throws LuaError {
 //        while( m_stopped )
 //        {
 //            m_coroutine_yield.call();
@@ -268,119 +388,85 @@ public class LuaJLuaMachine implements ILuaMachine {
     }
 
     private LuaTable wrapLuaObject(ILuaObject object) {
-        LuaTable table = new LuaTable();
+        return wrapLuaObject(object, false);
+    }
+
+    /**
+     * The keys and yielding behaviour of the methods of one class of {@link ILuaObject}. Objects of a class nearly
+     * always have the same methods, so this is worked out once for the class rather than each time one of its objects
+     * is returned to lua. If the class declares its methods with {@link LuaMethod}, they are called through its
+     * dispatcher, without converting their arguments.
+     */
+    private static class MethodTable {
+        final String[] names;
+        final LuaString[] keys;
+        final boolean[] mayYield;
+        final int count;
+        final LuaMethodDispatcher dispatcher;
+
+        MethodTable(ILuaObject object, String[] methods) {
+            names = methods.clone();
+            keys = new LuaString[methods.length];
+            mayYield = new boolean[methods.length];
+            int count = 0;
+            for (int i = 0; i < methods.length; ++i) {
+                if (methods[i] != null) {
+                    keys[i] = LuaString.valueOf(methods[i]);
+                    mayYield[i] = !(object instanceof INonYieldingAPI) &&
+                            !(object instanceof IPartlyYieldingAPI && !((IPartlyYieldingAPI) object).mayYield(i));
+                    count++;
+                }
+            }
+            this.count = count;
+
+            LuaMethodDispatcher dispatcher = LuaMethodDispatcher.get(object.getClass());
+            this.dispatcher = (dispatcher != null && Arrays.equals(dispatcher.getMethodNames(), methods)) ? dispatcher : null;
+        }
+
+        static MethodTable get(ILuaObject object, String[] methods) {
+            // Some classes, such as remote peripherals, have different methods for each object, so the names are
+            // checked every time, and the table rebuilt if they've changed
+            MethodTable table = s_methodTables.get(object.getClass());
+            if (table == null || !Arrays.equals(table.names, methods)) {
+                table = new MethodTable(object, methods);
+                s_methodTables.put(object.getClass(), table);
+            }
+            return table;
+        }
+    }
+
+    private LuaTable wrapLuaObject(ILuaObject object, boolean nonYielding) {
         String[] methods = object.getMethodNames();
+        MethodTable methodTable = MethodTable.get(object, methods);
+
+        // Every object of a class shares the same key strings, which keeps their lookups in the interpreter's inline
+        // caches, and the table is made big enough for all of the methods up front
+        LuaTable table = new LuaTable(0, methodTable.count);
         for (int i = 0; i < methods.length; ++i) {
             if (methods[i] != null) {
                 final int method = i;
                 final ILuaObject apiObject = object;
-                table.set(methods[i], new VarArgFunction() {
+                final boolean mayYield = !nonYielding && methodTable.mayYield[i];
+                final boolean binary = object instanceof ILuaBinaryArguments;
+                final LuaMethodDispatcher dispatcher = methodTable.dispatcher;
+                table.rawset(methodTable.keys[i], new VarArgFunction() {
+                    @Override
+                    public int callmode() {
+                        // Methods which may pull events need a thread to wait on
+                        return mayYield ? CALLMODE_JAVAYIELD : CALLMODE_NORMAL;
+                    }
+
                     @Override
                     public Varargs invoke(Varargs _args) {
                         tryAbort();
-                        Object[] arguments = toObjects(_args, 1);
                         Object[] results = null;
                         try {
-                            results = apiObject.callMethod(new ILuaContext() {
-                                @Override
-                                public Object[] pullEvent(String filter) throws LuaException, InterruptedException {
-                                    Object[] results = pullEventRaw(filter);
-                                    if (results.length >= 1 && results[0].equals("terminate")) {
-                                        throw new LuaException("Terminated", 0);
-                                    }
-                                    return results;
-                                }
-
-                                @Override
-                                public Object[] pullEventRaw(String filter) throws InterruptedException {
-                                    return yield(new Object[]{filter});
-                                }
-
-                                @Override
-                                public Object[] yield(Object[] yieldArgs) throws InterruptedException {
-                                    try {
-                                        LuaValue[] yieldValues = toValues(yieldArgs, 0);
-                                        Varargs results = m_coroutine_yield.invoke(LuaValue.varargsOf(yieldValues));
-                                        return toObjects(results, 1);
-                                    } catch (OrphanedThread e) {
-                                        throw new InterruptedException();
-                                    }
-                                }
-
-                                @Override
-                                public long issueMainThreadTask(final ILuaTask task) throws LuaException {
-                                    // Issue command
-                                    final long taskID = MainThread.getUniqueTaskID();
-                                    final ITask iTask = new ITask() {
-                                        @Override
-                                        public Computer getOwner() {
-                                            return m_computer;
-                                        }
-
-                                        @Override
-                                        public void execute() {
-                                            try {
-                                                Object[] results = task.execute();
-                                                if (results != null) {
-                                                    Object[] eventArguments = new Object[results.length + 2];
-                                                    eventArguments[0] = taskID;
-                                                    eventArguments[1] = true;
-                                                    for (int i = 0; i < results.length; ++i) {
-                                                        eventArguments[i + 2] = results[i];
-                                                    }
-                                                    m_computer.queueEvent("task_complete", eventArguments);
-                                                } else {
-                                                    m_computer.queueEvent("task_complete", new Object[]{taskID, true});
-                                                }
-                                            } catch (LuaException e) {
-                                                m_computer.queueEvent("task_complete", new Object[]{
-                                                        taskID, false, e.getMessage()
-                                                });
-                                            } catch (Throwable t) {
-                                                m_computer.queueEvent("task_complete", new Object[]{
-                                                        taskID, false, "Java Exception Thrown: " + t.toString()
-                                                });
-                                            }
-                                        }
-                                    };
-                                    if (MainThread.queueTask(iTask)) {
-                                        return taskID;
-                                    } else {
-                                        throw new LuaException("Task limit exceeded");
-                                    }
-                                }
-
-                                @Override
-                                public Object[] executeMainThreadTask(final ILuaTask task) throws LuaException, InterruptedException {
-                                    // Issue task
-                                    final long taskID = issueMainThreadTask(task);
-
-                                    // Wait for response
-                                    while (true) {
-                                        Object[] response = pullEvent("task_complete");
-                                        if (response.length >= 3 && response[1] instanceof Number && response[2] instanceof Boolean) {
-                                            if (((Number) response[1]).intValue() == taskID) {
-                                                Object[] returnValues = new Object[response.length - 3];
-                                                if ((Boolean) response[2]) {
-                                                    // Extract the return values from the event and return them
-                                                    for (int i = 0; i < returnValues.length; ++i) {
-                                                        returnValues[i] = response[i + 3];
-                                                    }
-                                                    return returnValues;
-                                                } else {
-                                                    // Extract the error message from the event and raise it
-                                                    if (response.length >= 4 && response[3] instanceof String) {
-                                                        throw new LuaException((String) response[3]);
-                                                    } else {
-                                                        throw new LuaException();
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                }
-                            }, method, arguments);
+                            if (dispatcher != null) {
+                                results = dispatcher.invoke(apiObject, null, m_luaContext, method, _args);
+                            } else {
+                                Object[] arguments = toObjects(_args, 1, binary);
+                                results = apiObject.callMethod(m_luaContext, method, arguments);
+                            }
                         } catch (InterruptedException e) {
                             throw new OrphanedThread();
                         } catch (LuaException e) {
@@ -388,7 +474,8 @@ public class LuaJLuaMachine implements ILuaMachine {
                         } catch (Throwable t) {
                             throw new LuaError("Java Exception Thrown: " + t.toString(), 0);
                         }
-                        return LuaValue.varargsOf(toValues(results, 0));
+                        // Objects returned by a method which can't yield, such as file handles, can't yield either
+                        return toVarargs(results, !mayYield);
                     }
                 });
             }
@@ -397,6 +484,10 @@ public class LuaJLuaMachine implements ILuaMachine {
     }
 
     private LuaValue toValue(Object object) {
+        return toValue(object, false);
+    }
+
+    private LuaValue toValue(Object object, boolean nonYielding) {
         if (object == null) {
             return LuaValue.NIL;
         } else if (object instanceof Number) {
@@ -408,6 +499,24 @@ public class LuaJLuaMachine implements ILuaMachine {
         } else if (object instanceof String) {
             String s = object.toString();
             return LuaValue.valueOf(s);
+        } else if (object instanceof byte[]) {
+            // Copied, so the caller may go on using its array. Callers which give up their array return a
+            // ByteBuffer over it instead
+            byte[] b = ((byte[]) object).clone();
+            LuaThread.allocated(b, b.length);
+            return LuaValue.valueOf(b);
+        } else if (object instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) object;
+            if (buffer.hasArray()) {
+                byte[] b = buffer.array();
+                LuaThread.allocated(b, buffer.remaining());
+                return LuaString.valueOf(b, buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] b = new byte[buffer.remaining()];
+                buffer.duplicate().get(b);
+                LuaThread.allocated(b, b.length);
+                return LuaValue.valueOf(b);
+            }
         } else if (object instanceof Map) {
             // Table:
             // Start remembering stuff
@@ -426,8 +535,8 @@ public class LuaJLuaMachine implements ILuaMachine {
                 Iterator it = ((Map) object).entrySet().iterator();
                 while (it.hasNext()) {
                     Map.Entry pair = (Map.Entry) it.next();
-                    LuaValue key = toValue(pair.getKey());
-                    LuaValue value = toValue(pair.getValue());
+                    LuaValue key = toValue(pair.getKey(), nonYielding);
+                    LuaValue value = toValue(pair.getValue(), nonYielding);
                     if (!key.isnil() && !value.isnil()) {
                         table.set(key, value);
                     }
@@ -439,8 +548,10 @@ public class LuaJLuaMachine implements ILuaMachine {
                     m_valuesInProgress = null;
                 }
             }
+        } else if (object instanceof INativeLuaObject) {
+            return ((INativeLuaObject) object).createLuaTable(this);
         } else if (object instanceof ILuaObject) {
-            LuaValue table = wrapLuaObject((ILuaObject) object);
+            LuaValue table = wrapLuaObject((ILuaObject) object, nonYielding);
             return table;
         } else {
             return LuaValue.NIL;
@@ -448,6 +559,10 @@ public class LuaJLuaMachine implements ILuaMachine {
     }
 
     private LuaValue[] toValues(Object[] objects, int leaveEmpty) {
+        return toValues(objects, leaveEmpty, false);
+    }
+
+    private LuaValue[] toValues(Object[] objects, int leaveEmpty, boolean nonYielding) {
         if (objects == null || objects.length == 0) {
             return new LuaValue[leaveEmpty];
         }
@@ -459,80 +574,219 @@ public class LuaJLuaMachine implements ILuaMachine {
                 continue;
             }
             Object object = objects[i - leaveEmpty];
-            values[i] = toValue(object);
+            values[i] = toValue(object, nonYielding);
         }
         return values;
     }
 
-    private Object toObject(LuaValue value) {
-        switch (value.type()) {
-            case LuaValue.TNIL:
-            case LuaValue.TNONE: {
-                return null;
-            }
-            case LuaValue.TINT:
-            case LuaValue.TNUMBER: {
-                return value.todouble();
+    private Varargs toVarargs(Object[] objects, boolean nonYielding) {
+        // Most methods return nothing or a single value, which don't need an array
+        int count = (objects == null) ? 0 : objects.length;
+        switch (count) {
+            case 0: {
+                return LuaValue.NONE;
             }
-            case LuaValue.TBOOLEAN: {
-                return value.toboolean();
+            case 1: {
+                return toValue(objects[0], nonYielding);
             }
-            case LuaValue.TSTRING: {
-                LuaString str = value.checkstring();
-                return str.tojstring();
-            }
-            case LuaValue.TTABLE: {
-                // Table:
-                boolean clearWhenDone = false;
-                try {
-                    // Start remembering stuff
-                    if (m_objectsInProgress == null) {
-                        m_objectsInProgress = new IdentityHashMap<LuaValue, Object>();
-                        clearWhenDone = true;
-                    } else if (m_objectsInProgress.containsKey(value)) {
-                        return m_objectsInProgress.get(value);
-                    }
-                    Map table = new HashMap();
-                    m_objectsInProgress.put(value, table);
-
-                    // Convert all keys
-                    LuaValue k = LuaValue.NIL;
-                    while (true) {
-                        Varargs keyValue = value.next(k);
-                        k = keyValue.arg1();
-                        if (k.isnil()) {
-                            break;
-                        }
-
-                        LuaValue v = keyValue.arg(2);
-                        Object keyObject = toObject(k);
-                        Object valueObject = toObject(v);
-                        if (keyObject != null && valueObject != null) {
-                            table.put(keyObject, valueObject);
-                        }
-                    }
-                    return table;
-                } finally {
-                    // Clear (if exiting top level)
-                    if (clearWhenDone) {
-                        m_objectsInProgress = null;
-                    }
-                }
+            case 2: {
+                return LuaValue.varargsOf(toValue(objects[0], nonYielding), toValue(objects[1], nonYielding));
             }
             default: {
-                return null;
+                return LuaValue.varargsOf(toValues(objects, 0, nonYielding));
             }
         }
     }
 
+    private Object toObject(LuaValue value) {
+        return LuaMethodDispatcher.toObject(value);
+    }
+
     private Object[] toObjects(Varargs values, int startIdx) {
+        return toObjects(values, startIdx, false);
+    }
+
+    private Object[] toObjects(Varargs values, int startIdx, boolean binary) {
         int count = values.narg();
         Object[] objects = new Object[count - startIdx + 1];
         for (int n = startIdx; n <= count; ++n) {
             int i = n - startIdx;
             LuaValue value = values.arg(n);
-            objects[i] = toObject(value);
+            if (binary && value.type() == LuaValue.TSTRING) {
+                // Pass a read only view of the string's bytes, see ILuaBinaryArguments
+                LuaString str = value.checkstring();
+                objects[i] = ByteBuffer.wrap(str.m_bytes, str.m_offset, str.m_length).asReadOnlyBuffer();
+            } else {
+                objects[i] = toObject(value);
+            }
         }
         return objects;
     }
+
+    /**
+     * The context methods are called with. It works on whichever coroutine is running, so one is shared by every call.
+     */
+    private class LuaContext implements ILuaContext {
+        @Override
+        public Object[] pullEvent(String filter) throws LuaException, InterruptedException {
+            Object[] results = pullEventRaw(filter);
+            if (results.length >= 1 && results[0].equals("terminate")) {
+                throw new LuaException("Terminated", 0);
+            }
+            return results;
+        }
+
+        @Override
+        public Object[] pullEventRaw(String filter) throws InterruptedException {
+            return yield(new Object[]{filter});
+        }
+
+        @Override
+        public Object[] yield(Object[] yieldArgs) throws InterruptedException {
+            try {
+                LuaValue[] yieldValues = toValues(yieldArgs, 0);
+                Varargs results = m_coroutine_yield.invoke(LuaValue.varargsOf(yieldValues));
+                return toObjects(results, 1);
+            } catch (OrphanedThread e) {
+                throw new InterruptedException();
+            }
+        }
+
+        @Override
+        public long issueMainThreadTask(final ILuaTask task) throws LuaException {
+            // Issue command
+            final long taskID = MainThread.getUniqueTaskID();
+            final ITask iTask = new ITask() {
+                @Override
+                public Computer getOwner() {
+                    return m_computer;
+                }
+
+                @Override
+                public void execute() {
+                    try {
+                        Object[] results = task.execute();
+                        if (results != null) {
+                            Object[] eventArguments = new Object[results.length + 2];
+                            eventArguments[0] = taskID;
+                            eventArguments[1] = true;
+                            for (int i = 0; i < results.length; ++i) {
+                                eventArguments[i + 2] = results[i];
+                            }
+                            m_computer.queueEvent("task_complete", eventArguments);
+                        } else {
+                            m_computer.queueEvent("task_complete", new Object[]{taskID, true});
+                        }
+                    } catch (LuaException e) {
+                        m_computer.queueEvent("task_complete", new Object[]{
+                                taskID, false, e.getMessage()
+                        });
+                    } catch (Throwable t) {
+                        m_computer.queueEvent("task_complete", new Object[]{
+                                taskID, false, "Java Exception Thrown: " + t.toString()
+                        });
+                    }
+                }
+            };
+            if (MainThread.queueTask(iTask)) {
+                return taskID;
+            } else {
+                throw new LuaException("Task limit exceeded");
+            }
+        }
+
+        @Override
+        public Object[] executeMainThreadTask(final ILuaTask task) throws LuaException, InterruptedException {
+            return submitMainThreadTask(task).get();
+        }
+
+        @Override
+        public ILuaFuture submitMainThreadTask(final ILuaTask task) throws LuaException {
+            final ILuaFuture future = createFuture();
+            final ITask iTask = new ITask() {
+                @Override
+                public Computer getOwner() {
+                    return m_computer;
+                }
+
+                @Override
+                public void execute() {
+                    try {
+                        future.complete(task.execute());
+                    } catch (LuaException e) {
+                        future.fail(e.getMessage());
+                    } catch (Throwable t) {
+                        future.fail("Java Exception Thrown: " + t.toString());
+                    }
+                }
+            };
+            if (MainThread.queueTask(iTask)) {
+                return future;
+            } else {
+                throw new LuaException("Task limit exceeded");
+            }
+        }
+
+        @Override
+        public ILuaFuture createFuture() {
+            return new LuaFuture(MainThread.getUniqueTaskID());
+        }
+    }
+
+    /**
+     * A future which wakes the computer with a task_complete event when it completes. Only the event's ID is queued:
+     * the results are handed to the waiting method through the future itself, so they aren't converted to lua values
+     * and back, and the method doesn't have to pick its results out of every task_complete event.
+     */
+    private class LuaFuture implements ILuaFuture {
+        private final long m_id;
+        private Object[] m_results;
+        private String m_error;
+        private boolean m_success;
+        private volatile boolean m_done;
+
+        LuaFuture(long id) {
+            m_id = id;
+        }
+
+        @Override
+        public boolean isDone() {
+            return m_done;
+        }
+
+        @Override
+        public Object[] get() throws LuaException, InterruptedException {
+            // Coroutines are resumed by events, so wait for the one queued when this completes, ignoring others
+            while (!m_done) {
+                m_luaContext.pullEvent("task_complete");
+            }
+            if (!m_success) {
+                throw (m_error != null) ? new LuaException(m_error) : new LuaException();
+            }
+            return (m_results != null) ? m_results : new Object[0];
+        }
+
+        @Override
+        public void complete(Object[] results) {
+            finish(results, null, true);
+        }
+
+        @Override
+        public void fail(String message) {
+            finish(null, message, false);
+        }
+
+        private void finish(Object[] results, String error, boolean success) {
+            synchronized (this) {
+                if (m_done) {
+                    return;
+                }
+                m_results = results;
+                m_error = error;
+                m_success = success;
+                m_done = true;
+            }
+            m_computer.queueEvent("task_complete", new Object[]{m_id, success});
+        }
+    }
 }
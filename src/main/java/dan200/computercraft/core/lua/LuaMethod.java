@@ -0,0 +1,51 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.lua;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a public method of an {@link dan200.computercraft.api.lua.ILuaObject} or
+ * {@link dan200.computercraft.api.peripheral.IPeripheral} as callable from lua. The methods of a class are called
+ * through a {@link LuaMethodDispatcher}, which is generated for the class the first time it is needed.<br>
+ * <br>
+ * Each parameter of the method is one of the following, with the lua arguments being taken in order:
+ * <ul>
+ * <li>int or double: a lua number, converted to an int with a cast, as callMethod() implementations convert their
+ * Doubles</li>
+ * <li>boolean: a lua boolean</li>
+ * <li>String: a lua string</li>
+ * <li>java.nio.ByteBuffer: a lua string, as a read only view of its bytes, see
+ * {@link dan200.computercraft.api.lua.ILuaBinaryArguments}</li>
+ * <li>Object: any lua value, converted as it would be for callMethod(), or null if it is nil or missing</li>
+ * <li>Object[]: all of the remaining lua arguments, converted as they would be for callMethod()</li>
+ * <li>{@link dan200.computercraft.api.lua.ILuaContext} or {@link dan200.computercraft.api.peripheral.IComputerAccess}:
+ * the context or computer the method was called with, which take no lua argument</li>
+ * </ul>
+ * If an argument is of the wrong type, a LuaException such as "Expected number, string" is thrown, listing the types
+ * the method expects. The method may return nothing, an Object[] of return values, or a single Object.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface LuaMethod {
+    /**
+     * The names the method is called by in lua. If none are given, the method's own name is used.
+     */
+    String[] value() default {};
+
+    /**
+     * Where the method's names come among the lua methods of its class, lowest first, which decides the method numbers
+     * callMethod() is given. Methods with the same order are sorted by name, so give every method of a class its own
+     * order to keep the numbers of an existing getMethodNames() table.
+     */
+    int order() default 0;
+}
@@ -0,0 +1,552 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.lua;
+
+import dan200.computercraft.api.lua.ILuaBinaryArguments;
+import dan200.computercraft.api.lua.ILuaContext;
+import dan200.computercraft.api.lua.LuaException;
+import dan200.computercraft.api.peripheral.IComputerAccess;
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Calls the {@link LuaMethod}s of a class directly, without the arguments being converted to an Object[] first. A
+ * subclass is generated for each class with lua methods, which switches on the method number and extracts each
+ * argument from the lua values as the type its parameter needs, so numbers aren't boxed on the way in.<br>
+ * <br>
+ * Classes with lua methods still implement {@link dan200.computercraft.api.lua.ILuaObject} or
+ * {@link dan200.computercraft.api.peripheral.IPeripheral}, by returning {@link #getMethodNames()} and passing
+ * callMethod() on to {@link #call(Object, IComputerAccess, ILuaContext, int, Object[])}, so they can be used anywhere
+ * other objects can. The lua machine calls {@link #invoke(Object, IComputerAccess, ILuaContext, int, Varargs)}
+ * instead, when it can.
+ */
+public abstract class LuaMethodDispatcher {
+    private static final ConcurrentMap<Class<?>, LuaMethodDispatcher> s_dispatchers = new ConcurrentHashMap<Class<?>, LuaMethodDispatcher>();
+
+    private static final String DISPATCHER = LuaMethodDispatcher.class.getName();
+    private static final ObjectType TYPE_VARARGS = new ObjectType(Varargs.class.getName());
+    private static final Type TYPE_OBJECTS = new ArrayType(Type.OBJECT, 1);
+    private static final Type TYPE_STRINGS = new ArrayType(Type.STRING, 1);
+
+    // The kinds of parameter a lua method can have
+    private static final int ARG_INT = 0;
+    private static final int ARG_DOUBLE = 1;
+    private static final int ARG_BOOLEAN = 2;
+    private static final int ARG_STRING = 3;
+    private static final int ARG_BYTES = 4;
+    private static final int ARG_OBJECT = 5;
+    private static final int ARG_OBJECTS = 6;
+    private static final int ARG_CONTEXT = 7;
+    private static final int ARG_COMPUTER = 8;
+
+    private final String[] m_names;
+    private final String[] m_errors;
+
+    protected LuaMethodDispatcher(String[] names, String[] errors) {
+        m_names = names;
+        m_errors = errors;
+    }
+
+    /**
+     * Get the dispatcher for the lua methods of a class, generating it if this is the first time it has been asked for.
+     *
+     * @param type The class of the object the methods will be called on
+     * @return The dispatcher, or null if the class has no methods annotated with {@link LuaMethod}
+     * @throws IllegalStateException If the class or one of its methods can't be called from lua
+     */
+    public static LuaMethodDispatcher get(Class<?> type) {
+        LuaMethodDispatcher dispatcher = s_dispatchers.get(type);
+        if (dispatcher == null) {
+            dispatcher = generate(type);
+            if (dispatcher == null) {
+                return null;
+            }
+            LuaMethodDispatcher existing = s_dispatchers.putIfAbsent(type, dispatcher);
+            if (existing != null) {
+                dispatcher = existing;
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Get the names of the lua methods, in the order of their method numbers.
+     */
+    public final String[] getMethodNames() {
+        return m_names.clone();
+    }
+
+    /**
+     * Call a lua method with the values passed to it from lua.
+     *
+     * @param target   The object to call the method on
+     * @param computer The computer calling a peripheral's method, or null if the object is not a peripheral
+     * @param context  The context of the call
+     * @param method   The number of the method, an index into {@link #getMethodNames()}
+     * @param args     The arguments, with the first being at index 1
+     * @return The values to return to lua, or null for none
+     */
+    public abstract Object[] invoke(Object target, IComputerAccess computer, ILuaContext context, int method, Varargs args) throws LuaException, InterruptedException;
+
+    /**
+     * Call a lua method with arguments converted to Java objects, as they are given to callMethod().
+     *
+     * @see #invoke(Object, IComputerAccess, ILuaContext, int, Varargs)
+     */
+    public final Object[] call(Object target, IComputerAccess computer, ILuaContext context, int method, Object[] args) throws LuaException, InterruptedException {
+        LuaValue[] values = new LuaValue[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            values[i] = toValue(args[i]);
+        }
+        return invoke(target, computer, context, method, LuaValue.varargsOf(values));
+    }
+
+    // Used by the generated subclasses to extract their arguments
+
+    public final int getInt(Varargs args, int index, int method) throws LuaException {
+        // The same check and conversion as callMethod() implementations make of the Double they are given
+        return (int) getDouble(args, index, method);
+    }
+
+    public final double getDouble(Varargs args, int index, int method) throws LuaException {
+        LuaValue value = args.arg(index);
+        if (value.type() != LuaValue.TNUMBER) {
+            throw new LuaException(m_errors[method]);
+        }
+        return value.todouble();
+    }
+
+    public final boolean getBoolean(Varargs args, int index, int method) throws LuaException {
+        LuaValue value = args.arg(index);
+        if (value.type() != LuaValue.TBOOLEAN) {
+            throw new LuaException(m_errors[method]);
+        }
+        return value.toboolean();
+    }
+
+    public final String getString(Varargs args, int index, int method) throws LuaException {
+        LuaValue value = args.arg(index);
+        if (value.type() != LuaValue.TSTRING) {
+            throw new LuaException(m_errors[method]);
+        }
+        return value.tojstring();
+    }
+
+    public final ByteBuffer getBytes(Varargs args, int index, int method) throws LuaException {
+        LuaValue value = args.arg(index);
+        if (value.type() != LuaValue.TSTRING) {
+            throw new LuaException(m_errors[method]);
+        }
+        LuaString str = value.checkstring();
+        return ByteBuffer.wrap(str.m_bytes, str.m_offset, str.m_length).asReadOnlyBuffer();
+    }
+
+    public static Object getObject(Varargs args, int index) {
+        LuaValue value = args.arg(index);
+        if (value.type() == LuaValue.TUSERDATA) {
+            // An object passed through call() as it is
+            return value.touserdata();
+        }
+        return toObject(value);
+    }
+
+    public static Object[] getObjects(Varargs args, int index) {
+        int count = args.narg();
+        Object[] objects = new Object[Math.max(count - index + 1, 0)];
+        for (int i = 0; i < objects.length; ++i) {
+            objects[i] = getObject(args, index + i);
+        }
+        return objects;
+    }
+
+    /**
+     * As {@link #getObject(Varargs, int)}, for classes implementing ILuaBinaryArguments: strings are passed as read
+     * only views of their bytes, as they are to callMethod().
+     */
+    public static Object getBinaryObject(Varargs args, int index) {
+        LuaValue value = args.arg(index);
+        if (value.type() == LuaValue.TSTRING) {
+            LuaString str = value.checkstring();
+            return ByteBuffer.wrap(str.m_bytes, str.m_offset, str.m_length).asReadOnlyBuffer();
+        }
+        return getObject(args, index);
+    }
+
+    public static Object[] getBinaryObjects(Varargs args, int index) {
+        int count = args.narg();
+        Object[] objects = new Object[Math.max(count - index + 1, 0)];
+        for (int i = 0; i < objects.length; ++i) {
+            objects[i] = getBinaryObject(args, index + i);
+        }
+        return objects;
+    }
+
+    public static Object[] wrapResult(Object result) {
+        return new Object[]{result};
+    }
+
+    /**
+     * Convert a lua value to the Java object given to callMethod() for it.
+     *
+     * @param value The lua value
+     * @return A Double, Boolean, String or Map, or null for any other value
+     */
+    public static Object toObject(LuaValue value) {
+        return toObject(value, null);
+    }
+
+    private static Object toObject(LuaValue value, Map<LuaValue, Object> objectsInProgress) {
+        switch (value.type()) {
+            case LuaValue.TNIL:
+            case LuaValue.TNONE: {
+                return null;
+            }
+            case LuaValue.TINT:
+            case LuaValue.TNUMBER: {
+                return value.todouble();
+            }
+            case LuaValue.TBOOLEAN: {
+                return value.toboolean();
+            }
+            case LuaValue.TSTRING: {
+                LuaString str = value.checkstring();
+                return str.tojstring();
+            }
+            case LuaValue.TTABLE: {
+                // Table:
+                // Start remembering stuff
+                if (objectsInProgress == null) {
+                    objectsInProgress = new IdentityHashMap<LuaValue, Object>();
+                } else if (objectsInProgress.containsKey(value)) {
+                    return objectsInProgress.get(value);
+                }
+                Map<Object, Object> table = new HashMap<Object, Object>();
+                objectsInProgress.put(value, table);
+
+                // Convert all keys
+                LuaValue k = LuaValue.NIL;
+                while (true) {
+                    Varargs keyValue = value.next(k);
+                    k = keyValue.arg1();
+                    if (k.isnil()) {
+                        break;
+                    }
+
+                    LuaValue v = keyValue.arg(2);
+                    Object keyObject = toObject(k, objectsInProgress);
+                    Object valueObject = toObject(v, objectsInProgress);
+                    if (keyObject != null && valueObject != null) {
+                        table.put(keyObject, valueObject);
+                    }
+                }
+                return table;
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    private static LuaValue toValue(Object object) {
+        if (object == null) {
+            return LuaValue.NIL;
+        } else if (object instanceof Number) {
+            return LuaValue.valueOf(((Number) object).doubleValue());
+        } else if (object instanceof Boolean) {
+            return LuaValue.valueOf(((Boolean) object).booleanValue());
+        } else if (object instanceof String) {
+            return LuaValue.valueOf((String) object);
+        } else if (object instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) object;
+            if (buffer.hasArray()) {
+                return LuaString.valueOf(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] b = new byte[buffer.remaining()];
+                buffer.duplicate().get(b);
+                return LuaString.valueOf(b);
+            }
+        } else {
+            // Anything else, such as a table which has already been converted, is passed through to Object
+            // parameters untouched
+            return LuaValue.userdataOf(object);
+        }
+    }
+
+    private static LuaMethodDispatcher generate(Class<?> type) {
+        // Find the lua methods, in the order they ask for, and by name for a given order so it is the same each time
+        // the game is run
+        List<Method> methods = new ArrayList<Method>();
+        for (Method method : type.getMethods()) {
+            if (method.isAnnotationPresent(LuaMethod.class) && !method.isBridge()) {
+                methods.add(method);
+            }
+        }
+        if (methods.isEmpty()) {
+            return null;
+        }
+        if (!Modifier.isPublic(type.getModifiers())) {
+            throw new IllegalStateException(type.getName() + " has lua methods, so must be public");
+        }
+        Collections.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method a, Method b) {
+                int orderA = a.getAnnotation(LuaMethod.class).order();
+                int orderB = b.getAnnotation(LuaMethod.class).order();
+                if (orderA != orderB) {
+                    return orderA < orderB ? -1 : 1;
+                }
+                int result = a.getName().compareTo(b.getName());
+                return result != 0 ? result : a.toString().compareTo(b.toString());
+            }
+        });
+
+        // Number the names, and work out what each method's arguments are
+        List<String> names = new ArrayList<String>();
+        List<Integer> nameMethods = new ArrayList<Integer>();
+        int[][] argKinds = new int[methods.size()][];
+        String[] errors = new String[methods.size()];
+        for (int i = 0; i < methods.size(); ++i) {
+            Method method = methods.get(i);
+            if (Modifier.isStatic(method.getModifiers())) {
+                throw new IllegalStateException("Lua method " + method + " must not be static");
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isPrimitive() && returnType != void.class) {
+                throw new IllegalStateException("Lua method " + method + " must return an object");
+            }
+
+            String[] methodNames = method.getAnnotation(LuaMethod.class).value();
+            if (methodNames.length == 0) {
+                methodNames = new String[]{method.getName()};
+            }
+            for (String name : methodNames) {
+                if (names.contains(name)) {
+                    throw new IllegalStateException("Lua method " + name + " is declared twice in " + type.getName());
+                }
+                names.add(name);
+                nameMethods.add(i);
+            }
+
+            Class<?>[] parameters = method.getParameterTypes();
+            int[] kinds = new int[parameters.length];
+            StringBuilder expected = new StringBuilder();
+            for (int j = 0; j < parameters.length; ++j) {
+                Class<?> parameter = parameters[j];
+                String typeName = null;
+                if (parameter == int.class) {
+                    kinds[j] = ARG_INT;
+                    typeName = "number";
+                } else if (parameter == double.class) {
+                    kinds[j] = ARG_DOUBLE;
+                    typeName = "number";
+                } else if (parameter == boolean.class) {
+                    kinds[j] = ARG_BOOLEAN;
+                    typeName = "boolean";
+                } else if (parameter == String.class) {
+                    kinds[j] = ARG_STRING;
+                    typeName = "string";
+                } else if (parameter == ByteBuffer.class) {
+                    kinds[j] = ARG_BYTES;
+                    typeName = "string";
+                } else if (parameter == Object.class) {
+                    kinds[j] = ARG_OBJECT;
+                } else if (parameter == Object[].class) {
+                    kinds[j] = ARG_OBJECTS;
+                } else if (parameter == ILuaContext.class) {
+                    kinds[j] = ARG_CONTEXT;
+                } else if (parameter == IComputerAccess.class) {
+                    kinds[j] = ARG_COMPUTER;
+                } else {
+                    throw new IllegalStateException("Lua method " + method + " has a parameter of unsupported type " + parameter.getName());
+                }
+                if (j > 0 && kinds[j - 1] == ARG_OBJECTS && kinds[j] != ARG_CONTEXT && kinds[j] != ARG_COMPUTER) {
+                    throw new IllegalStateException("Lua method " + method + " takes arguments after its Object[]");
+                }
+                if (typeName != null) {
+                    expected.append(expected.length() == 0 ? "Expected " : ", ").append(typeName);
+                }
+            }
+            argKinds[i] = kinds;
+            errors[i] = expected.length() > 0 ? expected.toString() : null;
+        }
+
+        // Generate the subclass
+        String className = type.getName() + "$LuaMethods";
+        byte[] bytecode = generateClass(className, type, methods, argKinds, nameMethods);
+        try {
+            Class<?> dispatcherClass = new Loader(type).define(className, bytecode);
+            return (LuaMethodDispatcher) dispatcherClass
+                    .getConstructor(String[].class, String[].class)
+                    .newInstance(names.toArray(new String[names.size()]), errors);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not generate lua methods for " + type.getName() + ": " + e, e);
+        }
+    }
+
+    private static byte[] generateClass(String className, Class<?> type, List<Method> methods, int[][] argKinds, List<Integer> nameMethods) {
+        ClassGen cg = new ClassGen(className, DISPATCHER, "<generated>",
+                Constants.ACC_PUBLIC | Constants.ACC_FINAL | Constants.ACC_SUPER, null);
+        ConstantPoolGen cp = cg.getConstantPool();
+        InstructionFactory factory = new InstructionFactory(cg);
+
+        // Constructor, which passes the names and error messages on
+        InstructionList init = new InstructionList();
+        init.append(InstructionConstants.ALOAD_0);
+        init.append(InstructionConstants.ALOAD_1);
+        init.append(new ALOAD(2));
+        init.append(factory.createInvoke(DISPATCHER, "<init>", Type.VOID,
+                new Type[]{TYPE_STRINGS, TYPE_STRINGS}, Constants.INVOKESPECIAL));
+        init.append(InstructionConstants.RETURN);
+        MethodGen initGen = new MethodGen(Constants.ACC_PUBLIC, Type.VOID,
+                new Type[]{TYPE_STRINGS, TYPE_STRINGS}, new String[]{"names", "errors"}, "<init>", className, init, cp);
+        initGen.setMaxStack();
+        initGen.setMaxLocals();
+        cg.addMethod(initGen.getMethod());
+
+        // invoke(Object target, IComputerAccess computer, ILuaContext context, int method, Varargs args), which
+        // switches to a call of each method, with its arguments taken straight from the varargs
+        ObjectType targetType = new ObjectType(type.getName());
+        boolean binary = ILuaBinaryArguments.class.isAssignableFrom(type);
+        InstructionList[] bodies = new InstructionList[methods.size()];
+        for (int i = 0; i < methods.size(); ++i) {
+            Method method = methods.get(i);
+            InstructionList body = new InstructionList();
+            body.append(InstructionConstants.ALOAD_1);
+            body.append(factory.createCheckCast(targetType));
+            int[] kinds = argKinds[i];
+            int arg = 1;
+            for (int kind : kinds) {
+                switch (kind) {
+                    case ARG_INT:
+                        appendGet(body, factory, cp, "getInt", Type.INT, arg++, i);
+                        break;
+                    case ARG_DOUBLE:
+                        appendGet(body, factory, cp, "getDouble", Type.DOUBLE, arg++, i);
+                        break;
+                    case ARG_BOOLEAN:
+                        appendGet(body, factory, cp, "getBoolean", Type.BOOLEAN, arg++, i);
+                        break;
+                    case ARG_STRING:
+                        appendGet(body, factory, cp, "getString", Type.STRING, arg++, i);
+                        break;
+                    case ARG_BYTES:
+                        appendGet(body, factory, cp, "getBytes", new ObjectType(ByteBuffer.class.getName()), arg++, i);
+                        break;
+                    case ARG_OBJECT:
+                        body.append(new ALOAD(5));
+                        body.append(new PUSH(cp, arg++));
+                        body.append(factory.createInvoke(DISPATCHER, binary ? "getBinaryObject" : "getObject", Type.OBJECT,
+                                new Type[]{TYPE_VARARGS, Type.INT}, Constants.INVOKESTATIC));
+                        break;
+                    case ARG_OBJECTS:
+                        body.append(new ALOAD(5));
+                        body.append(new PUSH(cp, arg));
+                        body.append(factory.createInvoke(DISPATCHER, binary ? "getBinaryObjects" : "getObjects", TYPE_OBJECTS,
+                                new Type[]{TYPE_VARARGS, Type.INT}, Constants.INVOKESTATIC));
+                        break;
+                    case ARG_CONTEXT:
+                        body.append(new ALOAD(3));
+                        break;
+                    case ARG_COMPUTER:
+                        body.append(InstructionConstants.ALOAD_2);
+                        break;
+                }
+            }
+            body.append(factory.createInvoke(type.getName(), method.getName(), Type.getType(method.getReturnType()),
+                    Type.getTypes(method.getParameterTypes()), Constants.INVOKEVIRTUAL));
+            if (method.getReturnType() == void.class) {
+                body.append(InstructionConstants.ACONST_NULL);
+            } else if (method.getReturnType() != Object[].class) {
+                body.append(factory.createInvoke(DISPATCHER, "wrapResult", TYPE_OBJECTS,
+                        new Type[]{Type.OBJECT}, Constants.INVOKESTATIC));
+            }
+            body.append(InstructionConstants.ARETURN);
+            bodies[i] = body;
+        }
+
+        InstructionList unknown = new InstructionList();
+        unknown.append(InstructionConstants.ACONST_NULL);
+        unknown.append(InstructionConstants.ARETURN);
+
+        int[] match = new int[nameMethods.size()];
+        InstructionHandle[] targets = new InstructionHandle[nameMethods.size()];
+        for (int i = 0; i < match.length; ++i) {
+            match[i] = i;
+            targets[i] = bodies[nameMethods.get(i)].getStart();
+        }
+
+        InstructionList main = new InstructionList();
+        main.append(new ILOAD(4));
+        main.append(new TABLESWITCH(match, targets, unknown.getStart()));
+        for (InstructionList body : bodies) {
+            main.append(body);
+        }
+        main.append(unknown);
+
+        MethodGen mainGen = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_FINAL, TYPE_OBJECTS,
+                new Type[]{Type.OBJECT, new ObjectType(IComputerAccess.class.getName()),
+                        new ObjectType(ILuaContext.class.getName()), Type.INT, TYPE_VARARGS},
+                new String[]{"target", "computer", "context", "method", "args"}, "invoke", className, main, cp);
+        mainGen.addException(LuaException.class.getName());
+        mainGen.addException(InterruptedException.class.getName());
+        mainGen.setMaxStack();
+        mainGen.setMaxLocals();
+        cg.addMethod(mainGen.getMethod());
+
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            cg.getJavaClass().dump(output);
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not generate lua methods for " + type.getName() + ": " + e, e);
+        }
+    }
+
+    private static void appendGet(InstructionList body, InstructionFactory factory, ConstantPoolGen cp, String getter, Type result, int arg, int method) {
+        // this.getX(args, arg, method)
+        body.append(InstructionConstants.ALOAD_0);
+        body.append(new ALOAD(5));
+        body.append(new PUSH(cp, arg));
+        body.append(new PUSH(cp, method));
+        body.append(factory.createInvoke(DISPATCHER, getter, result,
+                new Type[]{TYPE_VARARGS, Type.INT, Type.INT}, Constants.INVOKEVIRTUAL));
+    }
+
+    /**
+     * Defines the generated subclass of a class, linking it against this class's luaj and ComputerCraft classes, and
+     * against the class it calls, which may have been loaded by another mod's loader.
+     */
+    private static final class Loader extends ClassLoader {
+        private final ClassLoader m_target;
+
+        Loader(Class<?> type) {
+            super(LuaMethodDispatcher.class.getClassLoader());
+            m_target = type.getClassLoader();
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            return Class.forName(name, false, m_target);
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.lua;
+
+import dan200.computercraft.ComputerCraft;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.luajc.JavaGen;
+import org.luaj.vm2.luajc.JavaLoader;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled chunks shared between every computer in the JVM, so the bios and ROM programs are only parsed once
+ * rather than once per computer. Prototypes are never modified once compiled, so computers only need to create
+ * their own closures around them.
+ *
+ * Only code which has been read from a read-only mount is cached, as that can't change underneath us and there is
+ * a limited amount of it. Entries are keyed by the hash of their source, so a chunk is only reused for code which
+ * is byte-for-byte the same as what was compiled. Text read from a file is only hashed if it is then loaded, so
+ * reading files which are never run costs nothing extra.
+ *
+ * Chunks can also be compiled to JVM bytecode: eagerly for code from read-only mounts, and for anything else once it
+ * has been loaded often enough. The generated bytecode is shared too, but each computer defines the classes in its own
+ * {@link JavaLoader}, so they can be unloaded along with the computer.
+ *
+ * Code read from files which can be identified between restarts (see
+ * {@link dan200.computercraft.core.filesystem.ICacheableMount}) is also saved to disk as a binary chunk, keyed by the
+ * file's location, size and modification time. Each entry records the hash of the source it was compiled from, and is
+ * only used for exactly that source. These chunks are only ever loaded from here, never through {@code loadstring},
+ * so user code still can't load binary chunks of its own. The least recently used chunks are deleted whenever the
+ * directory holds too many, or too large, so code which keeps loading new files can't fill up the disk.
+ */
+public class PrototypeCache {
+    private static final int MAX_ENTRIES = 1024;
+    private static final int MAX_DISK_ENTRIES = 4096;
+    private static final long MAX_DISK_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_PENDING = 16;
+    private static final int MAX_PENDING_LENGTH = 1024 * 1024;
+    private static final int DISK_FORMAT = 1;
+
+    private static final Map<String, Boolean> s_admitted = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final Map<String, Prototype> s_prototypes = new LinkedHashMap<String, Prototype>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Prototype> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final Map<String, JavaGen> s_generated = new LinkedHashMap<String, JavaGen>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JavaGen> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final Map<String, Integer> s_loadCounts = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final Map<String, String> s_files = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Text which has been read from a file, but not loaded yet, latest last
+    private static final ArrayDeque<PendingSource> s_pending = new ArrayDeque<PendingSource>();
+    private static int s_pendingLength = 0;
+
+    // The chunks saved in the cache directory, least recently used first, and their total size
+    private static final LinkedHashMap<File, Long> s_diskEntries = new LinkedHashMap<File, Long>(16, 0.75f, true);
+    private static long s_diskSize = 0;
+
+    private static volatile File s_cacheDir = null;
+
+    private static int s_nextClassID = 0;
+    private static boolean s_generatorMissing = false;
+
+    /**
+     * Mark some source code as having been read from a file, so that if it is loaded next it can be cached in memory
+     * if it came from a read-only mount, or saved to disk if the file can be identified between restarts.
+     *
+     * @param source   The contents of the file.
+     * @param readOnly Whether the file is on a read-only mount.
+     * @param fileKey  The key of the file, from {@link dan200.computercraft.core.filesystem.ICacheableMount}, or
+     *                 {@code null} if it has none.
+     */
+    public static void admit(String source, boolean readOnly, String fileKey) {
+        if ((!readOnly && fileKey == null) || source.length() > MAX_PENDING_LENGTH) {
+            return;
+        }
+
+        synchronized (s_pending) {
+            s_pending.addLast(new PendingSource(source, readOnly, fileKey));
+            s_pendingLength += source.length();
+            while (s_pending.size() > MAX_PENDING || s_pendingLength > MAX_PENDING_LENGTH) {
+                s_pendingLength -= s_pending.removeFirst().m_text.length();
+            }
+        }
+    }
+
+    /**
+     * Set the directory compiled chunks are saved in, clearing out the least recently used ones if there are too many.
+     *
+     * @param dir The directory, or {@code null} to stop saving chunks.
+     */
+    public static void setCacheDir(File dir) {
+        synchronized (s_diskEntries) {
+            s_diskEntries.clear();
+            s_diskSize = 0;
+            if (dir != null) {
+                dir.mkdirs();
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    // Oldest first, which is the order they'd be evicted in
+                    Arrays.sort(files, new Comparator<File>() {
+                        @Override
+                        public int compare(File a, File b) {
+                            return Long.compare(a.lastModified(), b.lastModified());
+                        }
+                    });
+                    for (File file : files) {
+                        if (file.getName().endsWith(".luac")) {
+                            addDiskEntry(file);
+                        } else {
+                            // Left over from a write which didn't finish
+                            file.delete();
+                        }
+                    }
+                }
+            }
+            s_cacheDir = dir;
+        }
+    }
+
+    /**
+     * Compile a chunk, or fetch it from the cache if the same code has been compiled under the same name before.
+     *
+     * @param source    The source code, or a binary chunk, which is never cached.
+     * @param chunkname The name of the chunk, as used in error messages.
+     * @return The compiled chunk.
+     * @throws IOException If the code could not be read.
+     */
+    public static Prototype compile(LuaString source, String chunkname) throws IOException {
+        if (isBinary(source)) {
+            return LuaC.compile(source, chunkname);
+        }
+
+        String hash = hash(source);
+        return compile(source, chunkname, hash, chunkname + "\n" + hash);
+    }
+
+    /**
+     * Compile a chunk and create a function from it, using JVM bytecode rather than the interpreter if the chunk is
+     * eligible and a class loader has been given.
+     *
+     * @param source    The source code, or a binary chunk, which is never cached.
+     * @param chunkname The name of the chunk, as used in error messages.
+     * @param env       The environment of the new function.
+     * @param loader    The class loader of the computer loading the chunk, or {@code null} to always interpret it.
+     * @return The new function.
+     * @throws IOException If the code could not be read.
+     */
+    public static LuaFunction load(LuaString source, String chunkname, LuaValue env, JavaLoader loader) throws IOException {
+        if (isBinary(source)) {
+            return new LuaClosure(LuaC.compile(source, chunkname), env);
+        }
+
+        String hash = hash(source);
+        String key = chunkname + "\n" + hash;
+        Prototype prototype = compile(source, chunkname, hash, key);
+        if (loader != null) {
+            JavaGen gen = generate(prototype, chunkname, hash, key);
+            if (gen != null) {
+                try {
+                    LuaFunction function = loader.load(gen);
+                    function.setfenv(env);
+                    link(gen, loader);
+                    return function;
+                } catch (ClassNotFoundException e) {
+                    discard(key, e);
+                } catch (RuntimeException e) {
+                    discard(key, e);
+                } catch (LinkageError e) {
+                    discard(key, e);
+                }
+            }
+        }
+        return new LuaClosure(prototype, env);
+    }
+
+    private static Prototype compile(LuaString source, String chunkname, String hash, String key) throws IOException {
+        claim(source, hash);
+        synchronized (s_prototypes) {
+            Prototype prototype = s_prototypes.get(key);
+            if (prototype != null) {
+                return prototype;
+            }
+        }
+
+        // Use the copy saved on disk if there is one, otherwise compile it and save it for next time
+        File file = getCacheFile(hash, chunkname);
+        Prototype prototype = (file != null) ? readCacheFile(file, hash, chunkname) : null;
+        if (prototype == null) {
+            prototype = LuaC.compile(source, chunkname);
+            if (file != null) {
+                writeCacheFile(file, hash, prototype);
+            }
+        }
+
+        synchronized (s_admitted) {
+            if (!s_admitted.containsKey(hash)) {
+                return prototype;
+            }
+        }
+        synchronized (s_prototypes) {
+            s_prototypes.put(key, prototype);
+        }
+        return prototype;
+    }
+
+    private static File getCacheFile(String hash, String chunkname) {
+        File dir = s_cacheDir;
+        if (dir == null) {
+            return null;
+        }
+
+        String fileKey;
+        synchronized (s_files) {
+            fileKey = s_files.get(hash);
+        }
+        if (fileKey == null) {
+            return null;
+        }
+        return new File(dir, hash(LuaValue.valueOf(fileKey + "\n" + chunkname)) + ".luac");
+    }
+
+    private static Prototype readCacheFile(File file, String hash, String chunkname) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                // The file may have changed without its size or modification time changing, so check it's the code
+                // we're being asked for
+                if (input.readInt() != DISK_FORMAT || !input.readUTF().equals(hash)) {
+                    return null;
+                }
+                Prototype prototype = LoadState.loadBinaryChunk(input.read(), input, chunkname);
+                file.setLastModified(System.currentTimeMillis());
+                synchronized (s_diskEntries) {
+                    s_diskEntries.get(file);
+                }
+                return prototype;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // A corrupt chunk, which will be replaced
+            return null;
+        }
+    }
+
+    private static void writeCacheFile(File file, String hash, Prototype prototype) {
+        try {
+            // Write to a temporary file first, so other threads never see a partially written chunk
+            File temp = File.createTempFile("chunk", ".tmp", file.getParentFile());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(DISK_FORMAT);
+                output.writeUTF(hash);
+                DumpState.dump(prototype, output, false);
+            } finally {
+                output.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            // The chunk just won't be saved
+            return;
+        }
+
+        synchronized (s_diskEntries) {
+            if (s_cacheDir == null || !s_cacheDir.equals(file.getParentFile())) {
+                // Saved just as the directory was changed, so it will be picked up next time it is set
+                return;
+            }
+            addDiskEntry(file);
+        }
+    }
+
+    private static void addDiskEntry(File file) {
+        // Must be called with s_diskEntries held
+        Long previous = s_diskEntries.put(file, file.length());
+        if (previous != null) {
+            s_diskSize -= previous;
+        }
+        s_diskSize += file.length();
+
+        Iterator<Map.Entry<File, Long>> it = s_diskEntries.entrySet().iterator();
+        while ((s_diskEntries.size() > MAX_DISK_ENTRIES || s_diskSize > MAX_DISK_SIZE) && it.hasNext()) {
+            Map.Entry<File, Long> eldest = it.next();
+            eldest.getKey().delete();
+            s_diskSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private static void claim(LuaString source, String hash) {
+        // If the code was just read from a file, it can now be cached according to where it came from
+        PendingSource pending = null;
+        synchronized (s_pending) {
+            Iterator<PendingSource> it = s_pending.descendingIterator();
+            while (it.hasNext()) {
+                PendingSource candidate = it.next();
+                if (candidate.matches(source)) {
+                    it.remove();
+                    s_pendingLength -= candidate.m_text.length();
+                    pending = candidate;
+                    break;
+                }
+            }
+        }
+        if (pending == null) {
+            return;
+        }
+
+        if (pending.m_readOnly) {
+            synchronized (s_admitted) {
+                s_admitted.put(hash, Boolean.TRUE);
+            }
+        }
+        if (pending.m_fileKey != null) {
+            synchronized (s_files) {
+                s_files.put(hash, pending.m_fileKey);
+            }
+        }
+    }
+
+    private static JavaGen generate(Prototype prototype, String chunkname, String hash, String key) {
+        synchronized (s_generated) {
+            if (s_generatorMissing) {
+                return null;
+            }
+            if (s_generated.containsKey(key)) {
+                // Chunks which failed to generate are remembered as null, so we don't try them again
+                return s_generated.get(key);
+            }
+
+            // Count how often the chunk has been loaded, in case it gets hot enough to compile
+            Integer count = s_loadCounts.get(key);
+            count = (count == null) ? 1 : count + 1;
+            s_loadCounts.put(key, count);
+
+            int threshold = ComputerCraft.Config.bytecode_compile_threshold;
+            if (!(threshold > 0 && count >= threshold) && !(ComputerCraft.Config.bytecode_compile_rom && isAdmitted(hash))) {
+                return null;
+            }
+        }
+
+        JavaGen gen;
+        try {
+            String classname;
+            synchronized (s_generated) {
+                classname = "luajc_" + (s_nextClassID++);
+            }
+            gen = new JavaGen(prototype, classname, chunkname);
+        } catch (NoClassDefFoundError e) {
+            // The bytecode library isn't available, so don't try again
+            System.out.println("ComputerCraft: Could not compile Lua to bytecode, as BCEL is not available.");
+            synchronized (s_generated) {
+                s_generatorMissing = true;
+            }
+            return null;
+        } catch (RuntimeException e) {
+            discard(key, e);
+            return null;
+        }
+
+        synchronized (s_generated) {
+            s_generated.put(key, gen);
+            s_loadCounts.remove(key);
+        }
+        return gen;
+    }
+
+    private static void link(JavaGen gen, JavaLoader loader) throws ClassNotFoundException {
+        // Classes are only verified when first used, so check the nested functions now rather than part way through
+        // running the chunk
+        if (gen.inners != null) {
+            for (JavaGen inner : gen.inners) {
+                Class.forName(inner.classname, true, loader);
+                link(inner, loader);
+            }
+        }
+    }
+
+    private static void discard(String key, Throwable e) {
+        System.out.println("ComputerCraft: Could not compile " + key.substring(0, key.indexOf('\n')) + " to bytecode: " + e);
+        synchronized (s_generated) {
+            s_generated.put(key, null);
+            s_loadCounts.remove(key);
+        }
+    }
+
+    private static boolean isAdmitted(String hash) {
+        synchronized (s_admitted) {
+            return s_admitted.containsKey(hash);
+        }
+    }
+
+    private static boolean isBinary(LuaString source) {
+        return source.length() > 0 && source.luaByte(0) == '\033';
+    }
+
+    private static class PendingSource {
+        private final String m_text;
+        private final boolean m_readOnly;
+        private final String m_fileKey;
+
+        public PendingSource(String text, boolean readOnly, String fileKey) {
+            m_text = text;
+            m_readOnly = readOnly;
+            m_fileKey = fileKey;
+        }
+
+        public boolean matches(LuaString source) {
+            // Compare against the text as LuaString.valueOf() would convert it, without converting it
+            if (m_text.length() != source.m_length) {
+                return false;
+            }
+            byte[] bytes = source.m_bytes;
+            int offset = source.m_offset;
+            for (int i = 0; i < m_text.length(); ++i) {
+                char c = m_text.charAt(i);
+                if (bytes[offset + i] != ((c < 256) ? (byte) c : (byte) '?')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static String hash(LuaString source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(source.m_bytes, source.m_offset, source.m_length);
+
+        byte[] bytes = digest.digest();
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.lua;
+
+import dan200.computercraft.api.lua.LuaException;
+import dan200.computercraft.core.apis.TermAPI;
+import dan200.computercraft.core.terminal.Terminal;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.LibFunction;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The term API as native lua functions. Programs call term far more often than any other API, so rather than going
+ * through the methods every other API's objects are wrapped with, these take their arguments as lua values, return
+ * lua values, and pass strings to the terminal as their bytes. They behave exactly as the methods of {@link TermAPI}
+ * do, which they call for anything that changes the terminal.<br>
+ * <br>
+ * {@link TermAPI} gives these functions to lua through {@link INativeLuaObject}.
+ */
+public class TermLib {
+    private static final int WRITE = 0;
+    private static final int SCROLL = 1;
+    private static final int SET_CURSOR_POS = 2;
+    private static final int SET_CURSOR_BLINK = 3;
+    private static final int GET_CURSOR_POS = 4;
+    private static final int GET_SIZE = 5;
+    private static final int CLEAR = 6;
+    private static final int CLEAR_LINE = 7;
+    private static final int SET_TEXT_COLOUR = 8;
+    private static final int SET_BACKGROUND_COLOUR = 9;
+    private static final int IS_COLOUR = 10;
+    private static final int GET_TEXT_COLOUR = 11;
+    private static final int GET_BACKGROUND_COLOUR = 12;
+    private static final int BLIT = 13;
+
+    /**
+     * Create the table of functions for one computer's term API.
+     *
+     * @param machine The machine the functions will be called from, which they check for aborts
+     * @param api     The computer's term API
+     * @return The table to set as the term global
+     */
+    public static LuaTable create(LuaJLuaMachine machine, TermAPI api) {
+        LuaTable table = new LuaTable(0, 19);
+        add(table, machine, api, "write", WRITE);
+        add(table, machine, api, "scroll", SCROLL);
+        add(table, machine, api, "setCursorPos", SET_CURSOR_POS);
+        add(table, machine, api, "setCursorBlink", SET_CURSOR_BLINK);
+        add(table, machine, api, "getCursorPos", GET_CURSOR_POS);
+        add(table, machine, api, "getSize", GET_SIZE);
+        add(table, machine, api, "clear", CLEAR);
+        add(table, machine, api, "clearLine", CLEAR_LINE);
+        add(table, machine, api, "setTextColour", SET_TEXT_COLOUR);
+        add(table, machine, api, "setTextColor", SET_TEXT_COLOUR);
+        add(table, machine, api, "setBackgroundColour", SET_BACKGROUND_COLOUR);
+        add(table, machine, api, "setBackgroundColor", SET_BACKGROUND_COLOUR);
+        add(table, machine, api, "isColour", IS_COLOUR);
+        add(table, machine, api, "isColor", IS_COLOUR);
+        add(table, machine, api, "getTextColour", GET_TEXT_COLOUR);
+        add(table, machine, api, "getTextColor", GET_TEXT_COLOUR);
+        add(table, machine, api, "getBackgroundColour", GET_BACKGROUND_COLOUR);
+        add(table, machine, api, "getBackgroundColor", GET_BACKGROUND_COLOUR);
+        add(table, machine, api, "blit", BLIT);
+        return table;
+    }
+
+    private static void add(LuaTable table, LuaJLuaMachine machine, TermAPI api, String name, int opcode) {
+        table.rawset(name, new TermFunction(machine, api, name, opcode));
+    }
+
+    private static ByteBuffer toBytes(LuaValue value) {
+        LuaString str = value.checkstring();
+        return ByteBuffer.wrap(str.m_bytes, str.m_offset, str.m_length).asReadOnlyBuffer();
+    }
+
+    private static final class TermFunction extends LibFunction {
+        private final LuaJLuaMachine m_machine;
+        private final TermAPI m_api;
+        private final Terminal m_terminal;
+
+        TermFunction(LuaJLuaMachine machine, TermAPI api, String name, int opcode) {
+            m_machine = machine;
+            m_api = api;
+            m_terminal = api.getTerminal();
+            this.name = name;
+            this.opcode = opcode;
+        }
+
+        // The interpreter calls functions with up to three arguments through these, so no Varargs is made
+
+        @Override
+        public LuaValue call() {
+            return call(NONE, NONE, NONE);
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg) {
+            return call(arg, NONE, NONE);
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2) {
+            return call(arg1, arg2, NONE);
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+            return invoke(arg1, arg2, arg3).arg1();
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return invoke(args.arg1(), args.arg(2), args.arg(3));
+        }
+
+        private Varargs invoke(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+            m_machine.tryAbort();
+            try {
+                switch (opcode) {
+                    case WRITE: {
+                        if (arg1.type() == TSTRING) {
+                            m_api.write(toBytes(arg1));
+                        } else {
+                            m_api.write(LuaMethodDispatcher.toObject(arg1));
+                        }
+                        return NONE;
+                    }
+                    case SCROLL: {
+                        if (arg1.type() != TNUMBER) {
+                            throw new LuaError("Expected number", 1);
+                        }
+                        m_api.scroll((int) arg1.todouble());
+                        return NONE;
+                    }
+                    case SET_CURSOR_POS: {
+                        if (arg1.type() != TNUMBER || arg2.type() != TNUMBER) {
+                            throw new LuaError("Expected number, number", 1);
+                        }
+                        m_api.setCursorPos((int) arg1.todouble(), (int) arg2.todouble());
+                        return NONE;
+                    }
+                    case SET_CURSOR_BLINK: {
+                        if (arg1.type() != TBOOLEAN) {
+                            throw new LuaError("Expected boolean", 1);
+                        }
+                        m_api.setCursorBlink(arg1.toboolean());
+                        return NONE;
+                    }
+                    case GET_CURSOR_POS: {
+                        int x, y;
+                        synchronized (m_terminal) {
+                            x = m_terminal.getCursorX();
+                            y = m_terminal.getCursorY();
+                        }
+                        return varargsOf(valueOf(x + 1), valueOf(y + 1));
+                    }
+                    case GET_SIZE: {
+                        int width, height;
+                        synchronized (m_terminal) {
+                            width = m_terminal.getWidth();
+                            height = m_terminal.getHeight();
+                        }
+                        return varargsOf(valueOf(width), valueOf(height));
+                    }
+                    case CLEAR: {
+                        m_api.clear();
+                        return NONE;
+                    }
+                    case CLEAR_LINE: {
+                        m_api.clearLine();
+                        return NONE;
+                    }
+                    case SET_TEXT_COLOUR: {
+                        if (arg1.type() != TNUMBER) {
+                            throw new LuaError("Expected number", 1);
+                        }
+                        m_api.setTextColour((int) arg1.todouble());
+                        return NONE;
+                    }
+                    case SET_BACKGROUND_COLOUR: {
+                        if (arg1.type() != TNUMBER) {
+                            throw new LuaError("Expected number", 1);
+                        }
+                        m_api.setBackgroundColour((int) arg1.todouble());
+                        return NONE;
+                    }
+                    case IS_COLOUR: {
+                        return valueOf((Boolean) m_api.isColour());
+                    }
+                    case GET_TEXT_COLOUR: {
+                        return valueOf(1 << m_terminal.getTextColour());
+                    }
+                    case GET_BACKGROUND_COLOUR: {
+                        return valueOf(1 << m_terminal.getBackgroundColour());
+                    }
+                    case BLIT: {
+                        if (arg1.type() != TSTRING || arg2.type() != TSTRING || arg3.type() != TSTRING) {
+                            throw new LuaError("Expected string, string, string", 1);
+                        }
+                        m_api.blit(toBytes(arg1), toBytes(arg2), toBytes(arg3));
+                        return NONE;
+                    }
+                    default: {
+                        return NONE;
+                    }
+                }
+            } catch (LuaException e) {
+                throw new LuaError(e.getMessage(), e.getLevel());
+            }
+        }
+    }
+}
@@ -8,6 +8,8 @@ package dan200.computercraft.core.terminal;
 
 import net.minecraft.nbt.NBTTagCompound;
 
+import java.nio.ByteBuffer;
+
 public class Terminal {
     private static final String base16 = "0123456789abcdef";
 
@@ -176,6 +178,28 @@ public class Terminal {
         }
     }
 
+    public void blit(ByteBuffer text, ByteBuffer textColour, ByteBuffer backgroundColour) {
+        int x = m_cursorX;
+        int y = m_cursorY;
+        if (y >= 0 && y < m_height) {
+            m_text[y].write(text, x);
+            m_textColour[y].write(textColour, x);
+            m_backgroundColour[y].write(backgroundColour, x);
+            m_changed = true;
+        }
+    }
+
+    public void write(ByteBuffer text) {
+        int x = m_cursorX;
+        int y = m_cursorY;
+        if (y >= 0 && y < m_height) {
+            m_text[y].write(text, x);
+            m_textColour[y].fill(base16.charAt(m_cursorColour), x, x + text.remaining());
+            m_backgroundColour[y].fill(base16.charAt(m_cursorBackgroundColour), x, x + text.remaining());
+            m_changed = true;
+        }
+    }
+
     public void scroll(int yDiff) {
         if (yDiff != 0) {
             TextBuffer[] newText = new TextBuffer[m_height];
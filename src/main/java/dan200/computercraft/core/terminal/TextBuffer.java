@@ -6,6 +6,8 @@
 
 package dan200.computercraft.core.terminal;
 
+import java.nio.ByteBuffer;
+
 public class TextBuffer {
     public char[] m_text;
 
@@ -81,6 +83,17 @@ public class TextBuffer {
         }
     }
 
+    public void write(ByteBuffer text, int start) {
+        // Each byte is one character, as when lua strings are converted to Strings
+        int pos = start;
+        int offset = text.position();
+        start = Math.max(start, 0);
+        int end = Math.min(pos + text.remaining(), m_text.length);
+        for (int i = start; i < end; ++i) {
+            m_text[i] = (char) (text.get(offset + i - pos) & 0xFF);
+        }
+    }
+
     public void write(TextBuffer text) {
         write(text, 0, text.length());
     }
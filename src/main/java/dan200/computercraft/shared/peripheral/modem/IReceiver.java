@@ -23,4 +23,6 @@ public interface IReceiver {
     void receiveSameDimension(int replyChannel, Object payload, double distance, Object senderObject);
 
     void receiveDifferentDimension(int replyChannel, Object payload, Object senderObject);
+
+    boolean isBusy(Object senderObject);
 }
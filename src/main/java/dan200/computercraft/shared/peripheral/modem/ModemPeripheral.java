@@ -10,6 +10,7 @@ import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
 import dan200.computercraft.api.peripheral.IComputerAccess;
 import dan200.computercraft.api.peripheral.IPeripheral;
+import dan200.computercraft.core.apis.IEventQueueStatus;
 import net.minecraft.util.math.Vec3d;
 import net.minecraft.world.World;
 
@@ -93,6 +94,12 @@ public abstract class ModemPeripheral
         }
     }
 
+    public boolean isBusy() {
+        // Not synchronized, as this is asked while the network holds its own locks. It's only a hint.
+        IComputerAccess computer = m_computer;
+        return computer instanceof IEventQueueStatus && ((IEventQueueStatus) computer).isEventQueueFull();
+    }
+
     public void receiveDifferentDimension(int channel, int replyChannel, Object payload) {
         synchronized (m_channels) {
             if (m_computer != null && m_channels.containsKey(channel)) {
@@ -324,6 +331,11 @@ public abstract class ModemPeripheral
             }
         }
 
+        @Override
+        public boolean isBusy(Object senderObject) {
+            return senderObject != m_owner && m_owner.isBusy();
+        }
+
         @Override
         public void receiveDifferentDimension(int replyChannel, Object payload, Object senderObject) {
             if (senderObject != m_owner) {
@@ -14,6 +14,7 @@ import dan200.computercraft.api.lua.ILuaContext;
 import dan200.computercraft.api.lua.LuaException;
 import dan200.computercraft.api.peripheral.IComputerAccess;
 import dan200.computercraft.api.peripheral.IPeripheral;
+import dan200.computercraft.core.apis.IEventQueueStatus;
 import dan200.computercraft.shared.common.BlockGeneric;
 import dan200.computercraft.shared.peripheral.PeripheralType;
 import dan200.computercraft.shared.peripheral.common.BlockCable;
@@ -40,6 +41,9 @@ public class TileCable extends TileModemBase
         implements INetwork {
     // Statics
 
+    // How long a packet may be held back while a computer on the network is too busy to take it, in milliseconds
+    private static final long MAX_PACKET_DELAY = 1000;
+
     private static int s_nextUniqueSearchID = 1;
     private Map<Integer, Set<IReceiver>> m_receivers;
 
@@ -342,10 +346,12 @@ public class TileCable extends TileModemBase
             }
             synchronized (m_transmitQueue) {
                 while (m_transmitQueue.peek() != null) {
-                    Packet p = m_transmitQueue.remove();
-                    if (p != null) {
-                        dispatchPacket(p);
+                    Packet p = m_transmitQueue.peek();
+                    if (!dispatchPacket(p)) {
+                        // Someone listening has a full event queue, so try again next tick rather than drop it
+                        break;
                     }
+                    m_transmitQueue.remove();
                 }
             }
         }
@@ -382,6 +388,7 @@ public class TileCable extends TileModemBase
         p.replyChannel = replyChannel;
         p.payload = payload;
         p.senderObject = senderObject;
+        p.transmitTime = System.currentTimeMillis();
         synchronized (m_transmitQueue) {
             m_transmitQueue.offer(p);
         }
@@ -470,12 +477,44 @@ public class TileCable extends TileModemBase
         }
     }
 
-    private void dispatchPacket(final Packet packet) {
+    private boolean dispatchPacket(final Packet packet) {
+        // Find everyone on the network first, so the packet can be held back while any of them are busy
+        final List<TileCable> modems = new ArrayList<TileCable>();
+        final List<Integer> distances = new ArrayList<Integer>();
         searchNetwork(new ICableVisitor() {
             public void visit(TileCable modem, int distance) {
-                modem.receivePacket(packet, distance);
+                modems.add(modem);
+                distances.add(distance);
             }
         });
+
+        // Don't wait forever on a computer which has stopped taking events
+        if (System.currentTimeMillis() - packet.transmitTime < MAX_PACKET_DELAY) {
+            for (TileCable modem : modems) {
+                if (modem.isBusy(packet)) {
+                    return false;
+                }
+            }
+        }
+
+        for (int i = 0; i < modems.size(); ++i) {
+            modems.get(i).receivePacket(packet, distances.get(i));
+        }
+        return true;
+    }
+
+    private boolean isBusy(Packet packet) {
+        synchronized (m_receivers) {
+            Set<IReceiver> receivers = m_receivers.get(packet.channel);
+            if (receivers != null) {
+                for (IReceiver receiver : receivers) {
+                    if (receiver.isBusy(packet.senderObject)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
     }
 
     private void receivePacket(Packet packet, int distanceTravelled) {
@@ -749,7 +788,7 @@ public class TileCable extends TileModemBase
         }
     }
 
-    private static class RemotePeripheralWrapper implements IComputerAccess {
+    private static class RemotePeripheralWrapper implements IComputerAccess, IEventQueueStatus {
         private IPeripheral m_peripheral;
         private IComputerAccess m_computer;
         private String m_name;
@@ -839,6 +878,11 @@ public class TileCable extends TileModemBase
             m_computer.queueEvent(event, arguments);
         }
 
+        @Override
+        public boolean isEventQueueFull() {
+            return m_computer instanceof IEventQueueStatus && ((IEventQueueStatus) m_computer).isEventQueueFull();
+        }
+
         @Override
         public String getAttachmentName() {
             return m_name;
@@ -856,5 +900,6 @@ public class TileCable extends TileModemBase
         public int replyChannel;
         public Object payload;
         public Object senderObject;
+        public long transmitTime;
     }
 }
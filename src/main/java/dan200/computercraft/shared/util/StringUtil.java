@@ -1,5 +1,8 @@
 package dan200.computercraft.shared.util;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public class StringUtil {
     public static String limit(String string) {
         StringBuilder builder = new StringBuilder();
@@ -10,4 +13,17 @@ public class StringUtil {
         }
         return builder.toString();
     }
+
+    /**
+     * Convert the bytes of a lua string to a String, the same way lua strings are converted when they are passed to
+     * Java: each byte becomes the character with the same value.
+     */
+    public static String fromBytes(ByteBuffer bytes) {
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.ISO_8859_1);
+        }
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return new String(copy, StandardCharsets.ISO_8859_1);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,219 @@
+/*
+ * This file is part of ComputerCraft - http://www.computercraft.info
+ * Copyright Daniel Ratcliffe, 2011-2016. Do not distribute without permission.
+ * Send enquiries to dratcliffe@gmail.com
+ */
+
+package dan200.computercraft.core.lua;
+
+import dan200.computercraft.api.filesystem.IMount;
+import dan200.computercraft.api.filesystem.IWritableMount;
+import dan200.computercraft.api.lua.ILuaContext;
+import dan200.computercraft.core.apis.ILuaAPI;
+import dan200.computercraft.core.computer.Computer;
+import dan200.computercraft.core.computer.ComputerThread;
+import dan200.computercraft.core.computer.IComputerEnvironment;
+import dan200.computercraft.core.filesystem.FileMount;
+import dan200.computercraft.core.terminal.Terminal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Times full screen redraws of a computer's terminal with term.blit(), as programs which draw their own interfaces do,
+ * and with term.write(), as most other programs do. A headless computer boots the ROM and runs a startup program, which
+ * redraws the 51x19 screen a row at a time, with setCursorPos() and blit() or write(), and reports each run's time
+ * through an API of its own. Run it from the project root, or
+ * pass the path of assets/computercraft:
+ * <pre>
+ * java -cp build/classes/main:build/classes/test:build/resources/main:libs/luaj-jse-2.0.3.jar:bcel-5.2.jar \
+ *     dan200.computercraft.core.lua.TermBenchmark
+ * </pre>
+ */
+public class TermBenchmark {
+    private static final int WIDTH = 51;
+    private static final int HEIGHT = 19;
+    private static final int FRAMES = 20000;
+    private static final int RUNS = 5;
+
+    private static final String STARTUP =
+            "local w, h = term.getSize()\n" +
+            "local text = ('CC'):rep(w):sub(1, w)\n" +
+            "local fg = ('0123456789abcdef'):rep(4):sub(1, w)\n" +
+            "local bg = ('f'):rep(w)\n" +
+            "local frames, runs = bench.config()\n" +
+            "local function blitter(target)\n" +
+            "  local setCursorPos, blit = target.setCursorPos, target.blit\n" +
+            "  return function() for y = 1, h do setCursorPos(1, y) blit(text, fg, bg) end end\n" +
+            "end\n" +
+            "-- the native functions, and term as programs see it, redirected to a multishell window\n" +
+            "local tests = {\n" +
+            "  { 'blit native', blitter(term.native()) },\n" +
+            "  { 'blit redirected', blitter(term) },\n" +
+            "  -- term.write() the way most programs call it, looking up term and its fields every time\n" +
+            "  { 'write native', function() for y = 1, h do term.native().setCursorPos(1, y) term.native().write(text) end end },\n" +
+            "  { 'write redirected', function() for y = 1, h do term.setCursorPos(1, y) term.write(text) end end },\n" +
+            "}\n" +
+            "for run = 0, runs do\n" +
+            "  for _, test in ipairs(tests) do\n" +
+            "    local draw = test[2]\n" +
+            "    local start = bench.now()\n" +
+            "    for i = 1, frames do draw() end\n" +
+            "    bench.result(test[1], run, bench.now() - start)\n" +
+            "    -- yield between runs, so the computer isn't stopped for running too long\n" +
+            "    os.queueEvent('bench') os.pullEvent('bench')\n" +
+            "  end\n" +
+            "end\n" +
+            "bench.done()\n";
+
+    public static void main(String[] args) throws Exception {
+        File assets = new File(args.length > 0 ? args[0] : "src/main/resources/assets/computercraft");
+        File world = Files.createTempDirectory("computercraft-bench").toFile();
+        writeFile(new File(world, "computer/1/startup"), STARTUP);
+
+        BenchAPI bench = new BenchAPI();
+        Terminal terminal = new Terminal(WIDTH, HEIGHT);
+        Computer computer = new Computer(new Environment(assets, world), terminal, 1);
+        computer.addAPI(bench);
+        computer.turnOn();
+        long deadline = System.currentTimeMillis() + 600 * 1000;
+        while (!bench.m_done && System.currentTimeMillis() < deadline) {
+            computer.advance(0.05);
+            Thread.sleep(50);
+        }
+        computer.unload();
+        ComputerThread.stop();
+
+        if (!bench.m_done) {
+            System.out.println("The benchmark did not finish. The screen shows:");
+            for (int y = 0; y < HEIGHT; y++) {
+                System.out.println(terminal.getLine(y).toString());
+            }
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(contents.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            output.close();
+        }
+    }
+
+    private static class BenchAPI implements ILuaAPI {
+        private volatile boolean m_done = false;
+
+        @Override
+        public String[] getNames() {
+            return new String[]{"bench"};
+        }
+
+        @Override
+        public void startup() {
+        }
+
+        @Override
+        public void advance(double _dt) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public String[] getMethodNames() {
+            return new String[]{"config", "now", "result", "done"};
+        }
+
+        @Override
+        public Object[] callMethod(ILuaContext context, int method, Object[] args) {
+            switch (method) {
+                case 0: {
+                    // config
+                    return new Object[]{FRAMES, RUNS};
+                }
+                case 1: {
+                    // now
+                    return new Object[]{(double) System.nanoTime()};
+                }
+                case 2: {
+                    // result
+                    String name = (String) args[0];
+                    int run = ((Number) args[1]).intValue();
+                    double time = ((Number) args[2]).doubleValue();
+                    if (run > 0) {
+                        // The first run warms up
+                        System.out.printf("%-16s run %d: %7.0f frames/s, %7.2f us/frame%n", name, run, FRAMES * 1e9 / time, time / FRAMES / 1e3);
+                    }
+                    return null;
+                }
+                case 3: {
+                    // done
+                    m_done = true;
+                    return null;
+                }
+                default: {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static class Environment implements IComputerEnvironment {
+        private final File m_assets;
+        private final File m_world;
+
+        Environment(File assets, File world) {
+            m_assets = assets;
+            m_world = world;
+        }
+
+        @Override
+        public int getDay() {
+            return 0;
+        }
+
+        @Override
+        public double getTimeOfDay() {
+            return 0;
+        }
+
+        @Override
+        public boolean isColour() {
+            return true;
+        }
+
+        @Override
+        public long getComputerSpaceLimit() {
+            return 1000000;
+        }
+
+        @Override
+        public String getHostString() {
+            return "TermBenchmark";
+        }
+
+        @Override
+        public int assignNewID() {
+            return 1;
+        }
+
+        @Override
+        public IWritableMount createSaveDirMount(String subPath, long capacity) {
+            return new FileMount(new File(m_world, subPath), capacity);
+        }
+
+        @Override
+        public IMount createResourceMount(String domain, String subPath) {
+            return new FileMount(new File(m_assets, subPath), 0);
+        }
+    }
+}